@@ -0,0 +1,132 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package amazon.bench;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * This class reaches the client's classes for the benchmarks.  JMH needs
+ * benchmarks in a named package, and a named package cannot import classes
+ * of the default package, so each method is looked up once by name into a
+ * static final handle, which the JIT inlines like a direct call.
+ *
+ */
+
+final class App {
+
+   private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+   static final Class<?> AMAZON = type("Amazon");
+   static final Class<?> SESSION = type("Session");
+   static final Class<?> ROW = type("Row");
+   static final Class<?> CALLBACK = type("Row$Callback");
+   static final Class<?> HIT = type("StoreIndex$Hit");
+
+   static final MethodHandle NEW_AMAZON = constructor(AMAZON, String.class, String.class, String.class, String.class);
+   static final MethodHandle CALCULATE_DISTANCE = method(AMAZON, "calculateDistance", double.class, double.class, double.class, double.class);
+   static final MethodHandle STORES_WITHIN = method(AMAZON, "storesWithin", double.class, double.class, double.class);
+   static final MethodHandle NEW_HIT = constructor(HIT, int.class, double.class, double.class, double.class);
+   static final MethodHandle SORT_BY_DISTANCE = method(type("StoreIndex"), "sortByDistance", List.class);
+   static final MethodHandle EXECUTE_UPDATE = method(AMAZON, "executeUpdate", String.class, Object[].class);
+   static final MethodHandle EXECUTE_QUERY_AND_RETURN_RESULT = method(AMAZON, "executeQueryAndReturnResult", String.class, Object[].class);
+   static final MethodHandle EXECUTE_QUERY_STREAMING = method(AMAZON, "executeQueryStreaming", String.class, CALLBACK, Object[].class);
+   static final MethodHandle GET_STRING = method(ROW, "getString", int.class);
+   static final MethodHandle CLEANUP = method(AMAZON, "cleanup");
+   static final MethodHandle GET_INVENTORY = method(AMAZON, "getInventory");
+   static final MethodHandle GET_SALES = method(AMAZON, "getSales");
+   static final MethodHandle INVALIDATE_STOCK = method(type("Inventory"), "invalidateAll");
+   static final MethodHandle RECONCILE = method(type("Sales"), "reconcile", int.class);
+   static final MethodHandle NEWEST = method(type("Partitions"), "newest", String.class, String.class, String.class, String.class, int.class);
+
+   static final MethodHandle NEW_SESSION = constructor(SESSION, BufferedReader.class, PrintStream.class, PrintStream.class);
+   static final MethodHandle LOGIN = method(SESSION, "login", int.class, String.class, double.class, double.class, String.class);
+
+   static final MethodHandle PLACE_ORDER = method(AMAZON, "placeOrder", AMAZON, SESSION);
+   static final MethodHandle VIEW_PRODUCTS = method(AMAZON, "viewProducts", AMAZON, SESSION);
+   static final MethodHandle VIEW_POPULAR_PRODUCTS = method(AMAZON, "viewPopularProducts", AMAZON, SESSION);
+
+   // output of the menu operations is thrown away
+   static final PrintStream NOWHERE = new PrintStream(OutputStream.nullOutputStream());
+
+   private App() {
+   }
+
+   private static Class<?> type(String name) {
+      try{
+         return Class.forName(name);
+      }catch (ClassNotFoundException e){
+         throw new ExceptionInInitializerError(e);
+      }
+   }//end type
+
+   private static MethodHandle method(Class<?> owner, String name, Class<?>... params) {
+      try{
+         return LOOKUP.unreflect(owner.getMethod(name, params));
+      }catch (ReflectiveOperationException e){
+         throw new ExceptionInInitializerError(e);
+      }
+   }//end method
+
+   private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+      try{
+         return LOOKUP.findConstructor(owner, MethodType.methodType(void.class, params));
+      }catch (ReflectiveOperationException e){
+         throw new ExceptionInInitializerError(e);
+      }
+   }//end constructor
+
+   /**
+    * Connects a client to a database.
+    */
+   static Object connect(String dbname, String port, String user) throws Throwable {
+      return NEW_AMAZON.invoke(dbname, port, user, "");
+   }
+
+   /**
+    * Returns a logged in session whose operations read their answers from
+    * input and print nowhere.
+    */
+   static Object session(int userID, double latitude, double longitude, String type, String input) throws Throwable {
+      Object s = NEW_SESSION.invoke(new BufferedReader(new StringReader(input)), NOWHERE, NOWHERE);
+      LOGIN.invoke(s, userID, "bench", latitude, longitude, type);
+      return s;
+   }//end session
+
+   /**
+    * Returns a Row.Callback that calls the static method name(Object row) of
+    * the caller for each row.  The callback is spun like a lambda, so rows
+    * are not passed through reflection.
+    */
+   static Object callback(MethodHandles.Lookup caller, String name) throws Throwable {
+      MethodHandle impl = caller.findStatic(caller.lookupClass(), name, MethodType.methodType(void.class, Object.class));
+      return LambdaMetafactory.metafactory(caller, "row", MethodType.methodType(CALLBACK), MethodType.methodType(void.class, ROW),
+                                           impl, MethodType.methodType(void.class, ROW)).getTarget().invoke();
+   }//end callback
+
+   @SuppressWarnings("unchecked")
+   static List<List<String>> executeQueryAndReturnResult(Object esql, String query, Object... params) throws Throwable {
+      return (List<List<String>>) EXECUTE_QUERY_AND_RETURN_RESULT.invoke(esql, query, params);
+   }
+
+   static int executeUpdate(Object esql, String sql, Object... params) throws Throwable {
+      return (int) EXECUTE_UPDATE.invoke(esql, sql, params);
+   }
+}//end App
@@ -0,0 +1,75 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package amazon.bench;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * This driver answers the client's jdbc:postgresql://localhost:port/dbname
+ * URLs with an in-memory H2 database named dbname, so the data access code
+ * can be measured without a server.  H2 runs in PostgreSQL mode and keeps
+ * the database until the JVM exits.
+ *
+ */
+
+final class H2Driver implements Driver {
+
+   private static final String PREFIX = "jdbc:postgresql:";
+
+   /**
+    * Registers the driver ahead of any other for jdbc:postgresql URLs.
+    */
+   static void register() throws SQLException {
+      DriverManager.registerDriver(new H2Driver());
+   }
+
+   /**
+    * Opens a direct connection to the in-memory database, e.g. to create
+    * the tables before the client connects.
+    */
+   static Connection open(String dbname) throws SQLException {
+      return DriverManager.getConnection(url(dbname), "sa", "");
+   }
+
+   private static String url(String dbname) {
+      return "jdbc:h2:mem:" + dbname + ";DB_CLOSE_DELAY=-1;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE";
+   }
+
+   public Connection connect(String url, Properties info) throws SQLException {
+      if (!acceptsURL(url)) return null;
+      return open(url.substring(url.lastIndexOf('/') + 1));
+   }
+
+   public boolean acceptsURL(String url) {
+      return url != null && url.startsWith(PREFIX);
+   }
+
+   public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+   }
+
+   public int getMajorVersion() { return 1; }
+   public int getMinorVersion() { return 0; }
+   public boolean jdbcCompliant() { return false; }
+
+   public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+   }
+}//end H2Driver
@@ -0,0 +1,117 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package amazon.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmarks of menu operations against a local PostgreSQL
+ * database with a dataset loaded (BulkLoader or DataGenerator).  Each call
+ * runs the operation as a user would, through a session that answers its
+ * prompts, as the manager of the first store.  The database is taken from
+ *
+ *    -Damazon.bench.db=&lt;dbname&gt; -Damazon.bench.port=&lt;port&gt; -Damazon.bench.user=&lt;user&gt;
+ *
+ * placeOrder orders one unit at a time.  The product's stock is raised for
+ * the run; the orders placed are deleted and the stock and sales
+ * aggregates restored afterwards.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OperationsBench {
+
+   private static final int STOCK = 1000000000;
+
+   private Object _esql;
+   private int _store, _manager, _units, _lastOrder;
+   private double _lat, _lon;
+   private String _product;
+   private String _orderInput, _storeInput;
+
+   @Setup(Level.Trial)
+   public void setup() throws Throwable {
+      Class.forName("org.postgresql.Driver");
+      this._esql = App.connect(System.getProperty("amazon.bench.db", System.getProperty("user.name") + "_project_phase_3_DB"),
+                               System.getProperty("amazon.bench.port", "5432"),
+                               System.getProperty("amazon.bench.user", System.getProperty("user.name")));
+      List<List<String>> r = App.executeQueryAndReturnResult(this._esql,
+         "SELECT s.storeID, s.managerID, s.latitude, s.longitude, p.productName, p.numberOfUnits FROM Store s, Product p " +
+         "WHERE p.storeID = s.storeID ORDER BY s.storeID, p.productName LIMIT 1");
+      if (r.isEmpty()) throw new IllegalStateException("No products; load a dataset first");
+      List<String> row = r.get(0);
+      this._store = Integer.parseInt(row.get(0));
+      this._manager = Integer.parseInt(row.get(1));
+      this._lat = Double.parseDouble(row.get(2));
+      this._lon = Double.parseDouble(row.get(3));
+      this._product = row.get(4).trim();
+      this._units = Integer.parseInt(row.get(5));
+      this._lastOrder = Integer.parseInt(App.executeQueryAndReturnResult(this._esql, "SELECT COALESCE(MAX(orderNumber), 0) FROM Orders").get(0).get(0));
+
+      App.executeUpdate(this._esql, "UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?", STOCK, this._store, this._product);
+      App.INVALIDATE_STOCK.invoke(App.GET_INVENTORY.invoke(this._esql));
+      this._orderInput = this._store + "\n" + this._product + "\n1\n";
+      this._storeInput = this._store + "\n";
+   }//end setup
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Throwable {
+      try{
+         App.executeUpdate(this._esql, "DELETE FROM Orders WHERE orderNumber > ? AND storeID = ? AND customerID = ?",
+                           this._lastOrder, this._store, this._manager);
+         App.executeUpdate(this._esql, "UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+                           this._units, this._store, this._product);
+         App.RECONCILE.invoke(App.GET_SALES.invoke(this._esql), this._store);
+      }finally{
+         App.CLEANUP.invoke(this._esql);
+      }
+   }//end tearDown
+
+   private Object session(String input) throws Throwable {
+      return App.session(this._manager, this._lat, this._lon, "manager", input);
+   }
+
+   @Benchmark
+   public void placeOrder() throws Throwable {
+      App.PLACE_ORDER.invoke(this._esql, session(this._orderInput));
+   }
+
+   @Benchmark
+   public void viewProducts() throws Throwable {
+      App.VIEW_PRODUCTS.invoke(this._esql, session(this._storeInput));
+   }
+
+   @Benchmark
+   public void viewPopularProducts() throws Throwable {
+      App.VIEW_POPULAR_PRODUCTS.invoke(this._esql, session(this._storeInput));
+   }
+}//end OperationsBench
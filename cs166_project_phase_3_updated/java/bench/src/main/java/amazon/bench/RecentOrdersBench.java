@@ -0,0 +1,102 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package amazon.bench;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A customer's 5 most recent orders (viewRecentOrders), read through the
+ * hot partitions first (pruned) and as one query over every partition
+ * (unpruned), for customers that ordered in the last two months of the
+ * data.  The database is taken as in OperationsBench and must have been
+ * partitioned (sql/src/partitions.sql).
+ *
+ * To compare sizes, run it on two databases generated with DataGenerator:
+ * scale factor 20 has 1M orders, 2000 has 100M.  The setup prints the
+ * number of orders and partitions.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecentOrdersBench {
+
+   private static final String UNPRUNED = "SELECT * FROM Orders WHERE customerID = ? ORDER BY orderTime DESC, orderNumber DESC LIMIT 5";
+
+   private Object _esql;
+   private String _pruned;
+   private Timestamp _hot;
+   private int[] _customers;
+   private int _next = 0;
+
+   @Setup(Level.Trial)
+   public void setup() throws Throwable {
+      Class.forName("org.postgresql.Driver");
+      this._esql = App.connect(System.getProperty("amazon.bench.db", System.getProperty("user.name") + "_project_phase_3_DB"),
+                               System.getProperty("amazon.bench.port", "5432"),
+                               System.getProperty("amazon.bench.user", System.getProperty("user.name")));
+      // generated data is in the past: the hot months are the data's last two
+      List<List<String>> r = App.executeQueryAndReturnResult(this._esql,
+         "SELECT date_trunc('month', MAX(orderTime)) - interval '1 month', COUNT(*), " +
+         "(SELECT COUNT(*) FROM pg_inherits WHERE inhparent = 'orders'::regclass) FROM Orders");
+      if (r.get(0).get(0) == null) throw new IllegalStateException("Orders is empty; load a dataset first");
+      this._hot = Timestamp.valueOf(r.get(0).get(0));
+      System.out.println("Orders: " + r.get(0).get(1) + " rows in " + r.get(0).get(2) + " partitions, hot since " + this._hot);
+      List<List<String>> customers = App.executeQueryAndReturnResult(this._esql,
+         "SELECT DISTINCT customerID FROM Orders WHERE orderTime >= ? LIMIT 1000", this._hot);
+      this._customers = new int[customers.size()];
+      for (int i = 0; i < this._customers.length; ++i) this._customers[i] = Integer.parseInt(customers.get(i).get(0));
+      this._pruned = (String) App.NEWEST.invoke("Orders", "orderTime", "customerID = ?", "orderNumber", 5);
+   }//end setup
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Throwable {
+      App.CLEANUP.invoke(this._esql);
+   }
+
+   private int customer() {
+      int c = this._customers[this._next];
+      this._next = (this._next + 1) % this._customers.length;
+      return c;
+   }
+
+   @Benchmark
+   public Object pruned() throws Throwable {
+      int c = customer();
+      return App.executeQueryAndReturnResult(this._esql, this._pruned, c, this._hot, c, this._hot);
+   }
+
+   @Benchmark
+   public Object unpruned() throws Throwable {
+      return App.executeQueryAndReturnResult(this._esql, UNPRUNED, customer());
+   }
+}//end RecentOrdersBench
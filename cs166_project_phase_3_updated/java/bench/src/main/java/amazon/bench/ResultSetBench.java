@@ -0,0 +1,107 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package amazon.bench;
+
+import java.lang.invoke.MethodHandles;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Result materialization benchmarks over an in-memory Orders table of
+ * the given number of rows.  returnResult builds the whole result as
+ * executeQueryAndReturnResult does; streaming reads the same columns row
+ * by row through executeQueryStreaming.  Both go through the client's
+ * connection pool and statement cache.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultSetBench {
+
+   private static final String QUERY = "SELECT * FROM Orders";
+   private static final int COLUMNS = 6;
+
+   @Param({ "1000", "100000" })
+   public int rows;
+
+   private Object _esql;
+   private Object _callback;
+
+   // what the streaming callback read, so it is not optimized away
+   private static long _sink;
+
+   @Setup(Level.Trial)
+   public void setup() throws Throwable {
+      H2Driver.register();
+      String dbname = "orders" + this.rows;
+      Connection c = H2Driver.open(dbname);
+      try{
+         Statement stmt = c.createStatement();
+         stmt.execute("CREATE TABLE Orders (orderNumber integer PRIMARY KEY, customerID integer NOT NULL, storeID integer NOT NULL, " +
+                      "productName char(30) NOT NULL, unitsOrdered integer NOT NULL, orderTime timestamp NOT NULL)");
+         // SYSTEM_RANGE's column is upper case X
+         stmt.execute("INSERT INTO Orders SELECT \"X\", MOD(\"X\", 1000), MOD(\"X\", 20) + 1, 'product ' || MOD(\"X\", 100), MOD(\"X\", 5) + 1, " +
+                      "DATEADD('SECOND', \"X\", TIMESTAMP '2020-01-01 00:00:00') FROM SYSTEM_RANGE(1, " + this.rows + ")");
+         // the client's tables have no Store rows here; StoreIndex loads an empty grid
+         stmt.execute("CREATE TABLE Store (storeID integer PRIMARY KEY, latitude float NOT NULL, longitude float NOT NULL)");
+         stmt.close();
+      }finally{
+         c.close();
+      }
+      this._esql = App.connect(dbname, "0", "sa");
+      this._callback = App.callback(MethodHandles.lookup(), "row");
+   }//end setup
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Throwable {
+      App.CLEANUP.invoke(this._esql);
+   }
+
+   private static void row(Object row) throws Throwable {
+      long h = 0;
+      for (int i = 1; i <= COLUMNS; ++i)
+         h += ((String) App.GET_STRING.invoke(row, i)).length();
+      _sink += h;
+   }//end row
+
+   @Benchmark
+   public List<List<String>> returnResult() throws Throwable {
+      return App.executeQueryAndReturnResult(this._esql, QUERY);
+   }
+
+   @Benchmark
+   public long streaming() throws Throwable {
+      return (long) App.EXECUTE_QUERY_STREAMING.invoke(this._esql, QUERY, this._callback, new Object[0]) + _sink;
+   }
+}//end ResultSetBench
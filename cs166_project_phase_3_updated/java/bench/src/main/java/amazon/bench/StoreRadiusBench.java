@@ -0,0 +1,135 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package amazon.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Distance and "stores within 30 miles" benchmarks.  scan is the filter
+ * the client started with, every store against calculateDistance, and
+ * returns the same sorted list of StoreIndex.Hit as storesWithin, the
+ * client's grid index (StoreIndex) loaded from an in-memory Store table.  Stores and users are spread over the same
+ * 100 x 100 map as DataGenerator's.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreRadiusBench {
+
+   private static final double RADIUS = 30;
+   private static final int POINTS = 1024;
+
+   @Param({ "1000", "100000" })
+   public int stores;
+
+   private double[] _lat, _lon;
+   private final double[] _userLat = new double[POINTS], _userLon = new double[POINTS];
+   private int _next = 0;
+   private Object _esql;
+
+   @Setup(Level.Trial)
+   public void setup() throws Throwable {
+      SplittableRandom rnd = new SplittableRandom(42);
+      this._lat = new double[this.stores];
+      this._lon = new double[this.stores];
+      for (int i = 0; i < this.stores; ++i){
+         this._lat[i] = 100 * rnd.nextDouble();
+         this._lon[i] = 100 * rnd.nextDouble();
+      }
+      for (int i = 0; i < POINTS; ++i){
+         this._userLat[i] = 100 * rnd.nextDouble();
+         this._userLon[i] = 100 * rnd.nextDouble();
+      }
+
+      H2Driver.register();
+      String dbname = "stores" + this.stores;
+      Connection c = H2Driver.open(dbname);
+      try{
+         Statement stmt = c.createStatement();
+         stmt.execute("CREATE TABLE Store (storeID integer PRIMARY KEY, latitude float NOT NULL, longitude float NOT NULL, managerID integer)");
+         stmt.close();
+         PreparedStatement insert = c.prepareStatement("INSERT INTO Store (storeID, latitude, longitude, managerID) VALUES (?, ?, ?, 0)");
+         for (int i = 0; i < this.stores; ++i){
+            insert.setInt(1, i + 1);
+            insert.setDouble(2, this._lat[i]);
+            insert.setDouble(3, this._lon[i]);
+            insert.addBatch();
+         }
+         insert.executeBatch();
+         insert.close();
+      }finally{
+         c.close();
+      }
+      this._esql = App.connect(dbname, "0", "sa");
+   }//end setup
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Throwable {
+      App.CLEANUP.invoke(this._esql);
+   }
+
+   private int point() {
+      return this._next = (this._next + 1) & (POINTS - 1);
+   }
+
+   @Benchmark
+   @OutputTimeUnit(TimeUnit.NANOSECONDS)
+   public double calculateDistance() throws Throwable {
+      int p = point();
+      return (double) App.CALCULATE_DISTANCE.invokeExact(this._lat[p], this._lon[p], this._userLat[p], this._userLon[p]);
+   }
+
+   @Benchmark
+   public List<?> scan() throws Throwable {
+      int p = point();
+      double lat = this._userLat[p], lon = this._userLon[p];
+      List<Object> hits = new ArrayList<Object>();
+      for (int i = 0; i < this._lat.length; ++i){
+         double d = (double) App.CALCULATE_DISTANCE.invokeExact(this._lat[i], this._lon[i], lat, lon);
+         if (d <= RADIUS) hits.add(App.NEW_HIT.invoke(i + 1, this._lat[i], this._lon[i], d));
+      }
+      App.SORT_BY_DISTANCE.invoke(hits);
+      return hits;
+   }//end scan
+
+   @Benchmark
+   public List<?> storesWithin() throws Throwable {
+      int p = point();
+      return (List<?>) App.STORES_WITHIN.invoke(this._esql, this._userLat[p], this._userLon[p], RADIUS);
+   }
+}//end StoreRadiusBench
@@ -0,0 +1,19 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# build the client and the benchmarks (needs Maven and Java 21)
+(cd $DIR/.. && mvn -B -q package) || exit 1
+
+#run the JMH benchmarks and write the results as JSON to RESULTS
+#OperationsBench and RecentOrdersBench need a loaded database; they run only
+#when PGPORT is set
+#Extra arguments go to JMH, e.g. a benchmark name regex or -f 2 -wi 5
+RESULTS=${RESULTS:-$DIR/../bench/results/jmh-$(date +%Y%m%d-%H%M%S).json}
+mkdir -p $(dirname $RESULTS)
+EXCLUDE=""
+if [ -z "$PGPORT" ]; then EXCLUDE="-e (Operations|RecentOrders)Bench"; fi
+java -cp $DIR/../bench/target/benchmarks.jar:$DIR/../lib/pg73jdbc3.jar \
+     -Damazon.bench.db=$USER"_project_phase_3_DB" -Damazon.bench.port=$PGPORT -Damazon.bench.user=$USER \
+     org.openjdk.jmh.Main -rf json -rff $RESULTS $EXCLUDE "$@"
+echo "results written to $RESULTS"
@@ -2,8 +2,9 @@
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
-# compile the java program
-javac -d $DIR/../classes $DIR/../src/Amazon.java
+# compile the java program (needs Java 21 or later: the sources include the HTTP
+# server and the load generator, which use virtual threads)
+javac --release 21 -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program (needs Java 21 or later: the sources include the HTTP
+# server and the load generator, which use virtual threads)
+javac --release 21 -d $DIR/../classes $DIR/../src/*.java
+
+#load the CSV datasets into tables created by sql/src/create_tables.sql
+#Use your database name, port number and login; DATA_DIR defaults to the project's data directory
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER ${DATA_DIR:-$DIR/../../data} --truncate "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program (the load generator needs Java 21 or later for virtual threads)
+javac --release 21 -d $DIR/../classes $DIR/../src/*.java
+
+#run simulated users against the database: [mix] [users] [seconds] [ramp-up seconds] [think ms]
+#mixes: browse, checkout, reporting, or <operation>=<weight>,...
+#Use your database name, port number and login
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadGenerator $USER"_project_phase_3_DB" $PGPORT $USER "$@"
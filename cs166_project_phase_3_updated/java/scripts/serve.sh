@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program (the server needs Java 21 or later for virtual threads)
+javac --release 21 -d $DIR/../classes $DIR/../src/*.java
+
+#run the java program as an HTTP server on localhost
+#Use your database name, port number and login
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER --serve ${HTTP_PORT:-8080}
@@ -12,8 +12,7 @@
 
 
 import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,11 +20,21 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.lang.Math;
-import java.util.Calendar;
-import java.text.SimpleDateFormat;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,22 +42,79 @@ import java.text.SimpleDateFormat;
  *
  */
 
-public class Amazon {
+public final class Amazon {
+
+   // pool of physical database connections, each with its own statement cache.
+   private ConnectionPool _pool = null;
+
+   // in-memory grid of store coordinates; null when amazon.stores.index=false
+   private StoreIndex _stores = null;
+
+   // the same for the warehouses
+   private StoreIndex _warehouses = null;
+
+   // in-memory stock counters and batched order writer
+   private Inventory _inventory = null;
+
+   // per-store sales aggregates and their reconciler
+   private Sales _sales = null;
+
+   // product list of each store, read through on a miss
+   private Catalog _catalog = null;
+
+   // ProductUpdates rows, written in batches by a background thread
+   private AuditLog _audit = null;
+
+   // supply requests for products that run low, written in batches
+   private Replenisher _replenisher = null;
+
+   // creates the monthly partitions of Orders and ProductUpdates ahead
+   private Partitions _partitions = null;
+
+   // latency histograms and counters of the database calls and operations
+   private final Metrics _metrics = new Metrics(System.getProperty("amazon.metrics.file") == null ? null : new File(System.getProperty("amazon.metrics.file")),
+                                                Long.getLong("amazon.metrics.interval", 60 * 1000L));
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // statements slower than amazon.slowQuery.millis, with their plans;
+   // created last by the constructor
+   private final SlowQueryLog _slowQueries;
+
+   // columnar copy of Orders for the analytics reports, loaded on first use
+   private final Analytics _analytics = new Analytics(Long.getLong("amazon.analytics.refresh", 60 * 1000L),
+                                                      Long.getLong("amazon.analytics.prices", 10 * 60 * 1000L),
+                                                      Integer.getInteger("amazon.analytics.overlap", 10000),
+                                                      Integer.getInteger("amazon.analytics.threads", Runtime.getRuntime().availableProcessors()));
+
+   // trending products of the last 5 minutes, hour and day, in memory
+   private final Trending _trending = new Trending(Integer.getInteger("amazon.trending.counters", 64),
+                                                   Integer.getInteger("amazon.trending.stores", 1024));
+
+   // primary keys handed out from blocks of each sequence
+   private final ConcurrentHashMap<String, KeyAllocator> _keys = new ConcurrentHashMap<String, KeyAllocator>();
+   private final int _keyBlockSize = Integer.getInteger("amazon.keys.block", KeyAllocator.DEFAULT_BLOCK_SIZE);
+
+   // role and managed stores of every logged in user
+   private final Principal.Registry _principals = new Principal.Registry(Long.getLong("amazon.principals.ttl", 60 * 1000L));
+
+   // rows fetched per round trip by executeQueryStreaming; 0 fetches the
+   // whole result at once
+   private int _fetchSize = Integer.getInteger("amazon.fetchSize", 1000);
+
+   // false once the driver refused a fetch size, as the bundled 7.3 driver
+   // does: it always reads the whole result
+   private volatile boolean _fetchSizeSupported = true;
+
+   // the distance a customer can order from
+   public static final double STORE_RADIUS = 30;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // the keyboard user of the interactive menu
+   private static Session session_main = new Session(in, System.out, System.err);
 
-   private static String username_main = "";
-   private static String password_main = "";
-   private static String long_main = "";
-   private static String lat_main = "";
-   private static String id_main = "";
    /**
     * Creates a new instance of Amazon store
     *
@@ -59,6 +125,15 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Amazon(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, new ConnectionPool.Config());
+   }//end Amazon
+
+   /**
+    * Creates a new instance of Amazon store with explicit pool settings
+    *
+    * @param config the connection pool settings
+    */
+   public Amazon(String dbname, String dbport, String user, String passwd, ConnectionPool.Config config) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -66,14 +141,36 @@ public class Amazon {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // opens the pool's initial physical connections
+         this._pool = new ConnectionPool(url, user, passwd, config);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      this._inventory = new Inventory(this, Integer.getInteger("amazon.inventory.batch", 256),
+                                      Long.getLong("amazon.inventory.flushMillis", 2L), Long.getLong("amazon.inventory.waitMillis", 60 * 1000L));
+      this._sales = new Sales(this, Long.getLong("amazon.sales.reconcile", 10 * 60 * 1000L));
+      this._catalog = new Catalog(this, Integer.getInteger("amazon.catalog.stores", 1000),
+                                  Long.getLong("amazon.catalog.ttl", 60 * 1000L), Long.getLong("amazon.catalog.listen", 0L));
+      this._audit = new AuditLog(this, Integer.getInteger("amazon.audit.batch", 256), Long.getLong("amazon.audit.flushMillis", 50L),
+                                 Integer.getInteger("amazon.audit.queue", 16384), Long.getLong("amazon.audit.blockMillis", 1000L));
+      this._replenisher = new Replenisher(this, Long.getLong("amazon.replenish.interval", 1000L), Integer.getInteger("amazon.replenish.batch", 256),
+                                          Integer.getInteger("amazon.replenish.lowWater", 10), Integer.getInteger("amazon.replenish.restockTo", 100),
+                                          Long.getLong("amazon.replenish.levelsRefresh", 60 * 1000L));
+      this._partitions = new Partitions(this, Long.getLong("amazon.partitions.interval", 60 * 60 * 1000L),
+                                        Integer.getInteger("amazon.partitions.ahead", 2), Integer.getInteger("amazon.partitions.archiveMonths", 0));
+
+      if (!"false".equals(System.getProperty("amazon.stores.index"))){
+         // both loaded on first use
+         this._stores = new StoreIndex(StoreIndex.DEFAULT_CELL_SIZE, Long.getLong("amazon.stores.refresh", 60 * 1000L));
+         this._warehouses = new StoreIndex(StoreIndex.WAREHOUSES, StoreIndex.DEFAULT_CELL_SIZE, Long.getLong("amazon.stores.refresh", 60 * 1000L));
+      }//end if
+
+      // the calls the threads above make until now are not checked
+      this._slowQueries = new SlowQueryLog(this);
    }//end Amazon
 
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
@@ -82,22 +179,67 @@ public class Amazon {
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+   /**
+    * Binds the given values to the statement placeholders, in order.  Values
+    * are passed through setObject, so callers should pass the Java type that
+    * matches the column (Integer for integer columns, Double for decimals,
+    * java.sql.Timestamp for timestamps and String for char columns).
+    */
+   private static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+   }//end bind
+
+   /**
+    * Returns the connection's cached statement for the SQL shape with the
+    * parameters bound.
+    */
+   private static PreparedStatement prepare(ConnectionPool.Pooled c, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = c.getStatements().prepare(sql);
+      try{
+         bind(stmt, params);
+      }catch(SQLException e){
+         c.getStatements().invalidate(sql);
+         throw e;
+      }
+      return stmt;
+   }//end prepare
+
+   /*
+    * Records a database call that started at start in the metrics, and in
+    * the slow query log when it took too long.
+    */
+   private void recorded (Metrics.Stat stat, long start, long rows, String sql, Object[] params) {
+      stat.record (start, rows);
+      SlowQueryLog slow = this._slowQueries;
+      if (slow != null){
+         slow.check (sql, params, start, rows);
+      }//end if
+   }
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, using '?' for parameters
+    * @param params the values bound to the '?' placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      // borrows a connection and issues the update instruction
+      long start = System.nanoTime ();
+      ConnectionPool.Pooled c = this._pool.borrow ();
+      try{
+         int rows = prepare(c, sql, params).executeUpdate ();
+         recorded (this._metrics.executeUpdate, start, rows, sql, params);
+         return rows;
+      }catch (SQLException e){
+         this._metrics.executeUpdate.failed (start);
+         throw e;
+      }finally{
+         this._pool.release (c);
+      }
    }//end executeUpdate
 
    /**
@@ -105,135 +247,532 @@ public class Amazon {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string, using '?' for parameters
+    * @param params the values bound to the '?' placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndPrintResult (System.out, query, params);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Same as executeQueryAndPrintResult(query, params), printing to the given
+    * stream instead of standard out.
+    */
+   public int executeQueryAndPrintResult (PrintStream out, String query, Object... params) throws SQLException {
+      // rows go through a buffer instead of one print per value
+      ResultWriter writer = new ResultWriter(out, ResultWriter.Format.TEXT, 0);
+      try{
+         stream(query, this._fetchSize, writer, this._metrics.executeQueryAndPrintResult, params);
+      }finally{
+         writer.finish();
+      }
+      return (int) writer.getRows();
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * write the rows to the writer as they arrive.
+    *
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query or to
+    *         write the rows
+    */
+   public long executeQueryAndWrite (ResultWriter writer, String query, Object... params) throws SQLException {
+      try{
+         stream(query, this._fetchSize, writer, this._metrics.executeQueryStreaming, params);
+      }finally{
+         writer.finish();
+      }
+      return writer.getRows();
+   }//end executeQueryAndWrite
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, using '?' for parameters
+    * @param params the values bound to the '?' placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ConnectionPool.Pooled c = this._pool.borrow ();
+      try{
+         // issues the query instruction
+         ResultSet rs = prepare(c, query, params).executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         rs.close ();
+         recorded (this._metrics.executeQueryAndReturnResult, start, result.size (), query, params);
+         return result;
+      }catch (SQLException e){
+         this._metrics.executeQueryAndReturnResult.failed (start);
+         throw e;
+      }finally{
+         this._pool.release (c);
+      }
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, using '?' for parameters
+    * @param params the values bound to the '?' placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query)throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params)throws SQLException {
+       long start = System.nanoTime ();
+       ConnectionPool.Pooled c = this._pool.borrow ();
+       try{
+          // issues the query instruction
+          ResultSet rs = prepare(c, query, params).executeQuery ();
+
+          int rowCount = 0;
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          rs.close ();
+          recorded (this._metrics.executeQuery, start, rowCount, query, params);
+          return rowCount;
+       }catch (SQLException e){
+          this._metrics.executeQuery.failed (start);
+          throw e;
+       }finally{
+          this._pool.release (c);
+       }
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and pass
+    * each row to the callback as it arrives, without building the result in
+    * memory.  With a driver that supports a fetch size, and a positive one,
+    * the driver reads the rows fetch size at a time; the bundled 7.3 driver
+    * does not, and reads the whole result before the first row is passed on.
+    *
+    * @param query the input query string, using '?' for parameters
+    * @param callback called once per row; may call row.stop() to end early
+    * @param params the values bound to the '?' placeholders
+    * @return the number of rows passed to the callback
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long executeQueryStreaming (String query, Row.Callback callback, Object... params) throws SQLException {
+      return stream(query, this._fetchSize, callback, this._metrics.executeQueryStreaming, params);
+   }//end executeQueryStreaming
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return every row converted by the mapper.  Meant for small results; use
+    * executeQueryStreaming for large ones.
+    *
+    * @param query the input query string, using '?' for parameters
+    * @param mapper converts the current row to a T
+    * @param params the values bound to the '?' placeholders
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryAndMap (String query, final Row.Mapper<T> mapper, Object... params) throws SQLException {
+      final List<T> result = new ArrayList<T>();
+      stream(query, 0, row -> result.add(mapper.map(row)), this._metrics.executeQueryStreaming, params);
+      return result;
+   }//end executeQueryAndMap
 
-       int rowCount = 0;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return the first row converted by the mapper.
+    *
+    * @return the mapped first row, or null when the query returns no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T executeQueryForObject (String query, final Row.Mapper<T> mapper, Object... params) throws SQLException {
+      final List<T> result = new ArrayList<T>(1);
+      stream(query, 0, row -> { result.add(mapper.map(row)); row.stop(); }, this._metrics.executeQueryStreaming, params);
+      return result.isEmpty() ? null : result.get(0);
+   }//end executeQueryForObject
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * Method to check whether a query returns any row.  The query is wrapped
+    * in EXISTS, so the server stops at the first match and no rows are sent.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean executeExists (String query, Object... params) throws SQLException {
+      Boolean exists = executeQueryForObject("SELECT EXISTS (" + query + ")", row -> row.getBoolean(1), params);
+      return exists != null && exists;
+   }//end executeExists
+
+   /**
+    * Method to count the rows of a query on the server.  Unlike executeQuery,
+    * the rows themselves are never sent to the client.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long executeCount (String query, Object... params) throws SQLException {
+      Long count = executeQueryForObject("SELECT COUNT(*) FROM (" + query + ") AS counted", row -> row.getLong(1), params);
+      return count == null ? 0 : count;
+   }//end executeCount
+
+   /**
+    * Sets the number of rows executeQueryStreaming fetches per round trip,
+    * when the driver supports a fetch size.
+    */
+   public void setFetchSize (int fetchSize){
+      this._fetchSize = fetchSize;
    }
 
+   private long stream (String query, int fetchSize, Row.Callback callback, Metrics.Stat stat, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ConnectionPool.Pooled c = this._pool.borrow ();
+      try{
+         PreparedStatement stmt = prepare(c, query, params);
+         boolean fetching = fetchSize > 0 && this._fetchSizeSupported;
+         if (fetching){
+            try{
+               stmt.setFetchSize(fetchSize);
+            }catch (SQLException e){
+               // not implemented by the driver; read whole results from now on
+               this._fetchSizeSupported = fetching = false;
+            }//end catch
+         }//end if
+         // the driver only reads fetch size rows at a time inside a transaction
+         if (fetching)
+            c.getConnection().setAutoCommit(false);
+         ResultSet rs = stmt.executeQuery ();
+         Row row = new Row(rs);
+         long rowCount = 0;
+         try{
+            while (!row.isStopped() && rs.next()){
+               row._number = ++rowCount;
+               callback.row(row);
+            }//end while
+         }finally{
+            rs.close ();
+         }
+         if (fetching){
+            c.getConnection().commit();
+            c.getConnection().setAutoCommit(true);
+         }//end if
+         recorded (stat, start, rowCount, query, params);
+         return rowCount;
+      }catch (SQLException e){
+         stat.failed (start);
+         throw e;
+      }finally{
+         // rolls back and restores autocommit if the callback failed
+         this._pool.release (c);
+      }
+   }//end stream
+
+   /**
+    * Method to run several statements in one database transaction on one
+    * pooled connection.  The transaction commits when the work returns and
+    * rolls back when it throws.
+    *
+    * @param work the statements to run
+    * @return what the work returned
+    * @throws java.sql.SQLException when a statement or the commit failed
+    */
+   public <T> T executeInTransaction (Transaction.Work<T> work) throws SQLException {
+      long start = System.nanoTime ();
+      ConnectionPool.Pooled c = this._pool.borrow ();
+      try{
+         c.getConnection().setAutoCommit(false);
+         T result = work.run(new Transaction(c));
+         c.getConnection().commit();
+         c.getConnection().setAutoCommit(true);
+         this._metrics.executeInTransaction.record (start, 0);
+         return result;
+      }catch (SQLException e){
+         this._metrics.executeInTransaction.failed (start);
+         throw e;
+      }finally{
+         // rolls back when the work or the commit failed
+         this._pool.release (c);
+      }
+   }//end executeInTransaction
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is local to a
+    * database session, so with pooled connections the result is only
+    * meaningful when the connection that advanced the sequence is reused.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	ConnectionPool.Pooled c = this._pool.borrow ();
+	try{
+		ResultSet rs = prepare(c, "Select currval(?)", sequence).executeQuery ();
+		int value = -1;
+		if (rs.next())
+			value = rs.getInt(1);
+		rs.close ();
+		return value;
+	}finally{
+		this._pool.release (c);
+	}
+   }
+
+   /**
+    * Method to find the stores within radius of a point, nearest first.  Uses
+    * the in-memory store index when it is enabled, otherwise a bounding box
+    * query (served by store_lat_long_idx) followed by an exact distance check.
+    *
+    * @param latitude the latitude of the point
+    * @param longitude the longitude of the point
+    * @param radius the maximum distance
+    * @return the stores found
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<StoreIndex.Hit> storesWithin (double latitude, double longitude, double radius) throws SQLException {
+      if (this._stores != null)
+         return this._stores.withinRadius(this, latitude, longitude, radius);
+
+      final List<StoreIndex.Hit> hits = new ArrayList<StoreIndex.Hit>();
+      executeQueryStreaming(
+         "SELECT s.storeID, s.latitude, s.longitude FROM Store s WHERE s.latitude BETWEEN ? AND ? AND s.longitude BETWEEN ? AND ?",
+         row -> {
+            StoreIndex.Hit h = StoreIndex.hit(row.getInt(1), row.getDouble(2), row.getDouble(3), latitude, longitude);
+            if (h.distance <= radius)
+               hits.add(h);
+         },
+         latitude - radius, latitude + radius, longitude - radius, longitude + radius);
+      StoreIndex.sortByDistance(hits);
+      return hits;
+   }//end storesWithin
+
+   /**
+    * Method to find the k stores nearest to a point, nearest first.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<StoreIndex.Hit> nearestStores (double latitude, double longitude, int k) throws SQLException {
+      if (this._stores != null)
+         return this._stores.nearest(this, latitude, longitude, k);
+
+      return executeQueryAndMap(
+         "SELECT s.storeID, s.latitude, s.longitude FROM Store s ORDER BY (s.latitude - ?) * (s.latitude - ?) + (s.longitude - ?) * (s.longitude - ?) LIMIT ?",
+         row -> StoreIndex.hit(row.getInt(1), row.getDouble(2), row.getDouble(3), latitude, longitude),
+         latitude, latitude, longitude, longitude, k);
+   }//end nearestStores
+
+   /**
+    * Method to look up one store and its distance from a point.
+    *
+    * @return the store, or null when it does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public StoreIndex.Hit findStore (int storeID, double latitude, double longitude) throws SQLException {
+      if (this._stores != null){
+         StoreIndex.Hit h = this._stores.find(this, storeID, latitude, longitude);
+         if (h != null)
+            return h;
+         // the store may be newer than the snapshot
+         this._stores.refresh(this);
+         return this._stores.find(this, storeID, latitude, longitude);
+      }//end if
+
+      return executeQueryForObject("SELECT s.latitude, s.longitude FROM Store s WHERE s.storeID = ?",
+         row -> StoreIndex.hit(storeID, row.getDouble(1), row.getDouble(2), latitude, longitude), storeID);
+   }//end findStore
+
+   /**
+    * Method to find the warehouse nearest to a point.
+    *
+    * @return the warehouse, or null when there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public StoreIndex.Hit nearestWarehouse (double latitude, double longitude) throws SQLException {
+      if (this._warehouses != null){
+         List<StoreIndex.Hit> hits = this._warehouses.nearest(this, latitude, longitude, 1);
+         return hits.isEmpty() ? null : hits.get(0);
+      }//end if
+
+      return executeQueryForObject(
+         "SELECT w.WarehouseID, w.latitude, w.longitude FROM Warehouse w ORDER BY (w.latitude - ?) * (w.latitude - ?) + (w.longitude - ?) * (w.longitude - ?) LIMIT 1",
+         row -> StoreIndex.hit(row.getInt(1), row.getDouble(2), row.getDouble(3), latitude, longitude),
+         latitude, latitude, longitude, longitude);
+   }//end nearestWarehouse
+
+   /**
+    * Returns the store index, or null when it is disabled.  Call its
+    * invalidate() after changing the Store table.
+    */
+   public StoreIndex getStoreIndex(){
+      return this._stores;
+   }
+
+   /**
+    * Returns the stock counters that orders are placed against.
+    */
+   public Inventory getInventory(){
+      return this._inventory;
+   }
+
+   /**
+    * Returns the per-store sales aggregates, e.g. to reconcile them now.
+    */
+   public Sales getSales(){
+      return this._sales;
+   }
+
+   /**
+    * Returns the cache of each store's products.
+    */
+   public Catalog getCatalog(){
+      return this._catalog;
+   }
+
+   /**
+    * Returns the latency histograms and counters.
+    */
+   public Metrics getMetrics(){
+      return this._metrics;
+   }
+
+   /**
+    * Returns the writer of the ProductUpdates rows.
+    */
+   public AuditLog getAudit(){
+      return this._audit;
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * Returns the writer of the automatic supply requests, fed as orders are
+    * placed.
+    */
+   public Replenisher getReplenisher(){
+      return this._replenisher;
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Returns the maintainer of the Orders and ProductUpdates partitions.
+    */
+   public Partitions getPartitions(){
+      return this._partitions;
+   }
+
+   /**
+    * Returns the log of slow statements.
+    */
+   public SlowQueryLog getSlowQueries(){
+      return this._slowQueries;
+   }
+
+   /**
+    * Returns the columnar snapshot of Orders behind the analytics reports.
+    */
+   public Analytics getAnalytics(){
+      return this._analytics;
+   }
+
+   /**
+    * Returns the trending products tracker, fed as orders are placed.
+    */
+   public Trending getTrending(){
+      return this._trending;
+   }
+
+   /**
+    * Method to allocate a new primary key from a sequence, e.g.
+    * KeyAllocator.ORDERS.  Keys are fetched in blocks, so most calls do not
+    * touch the database.
+    *
+    * @param sequence name of the DB sequence
+    * @return a key no other caller has been given
+    * @throws java.sql.SQLException when failed to fetch a new block of keys
+    */
+   public int nextKey(String sequence) throws SQLException {
+      KeyAllocator keys = this._keys.get(sequence);
+      if (keys == null){
+         KeyAllocator created = new KeyAllocator(sequence, this._keyBlockSize);
+         keys = this._keys.putIfAbsent(sequence, created);
+         if (keys == null) keys = created;
+      }
+      return keys.next(this);
+   }//end nextKey
+
+   /**
+    * Returns the cache of user roles and managed stores.
+    */
+   public Principal.Registry getPrincipals(){
+      return this._principals;
+   }
+
+   /**
+    * Method to call after the Store table changed (stores added or moved, or
+    * store managers reassigned), so cached store data is reloaded.
+    */
+   public void storesChanged(){
+      if (this._stores != null)
+         this._stores.invalidate();
+      this._principals.invalidateAll();
+   }//end storesChanged
+
+   /**
+    * Returns the connection pool, for its active/idle/wait/timeout and
+    * statement cache metrics.
+    */
+   public ConnectionPool getPool(){
+      return this._pool;
+   }
+
+   /**
+    * Method to close every pooled physical connection.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._inventory != null){
+         this._inventory.close ();
+      }//end if
+      // before the audit log and catalog it writes to
+      if (this._replenisher != null){
+         this._replenisher.close ();
+      }//end if
+      if (this._sales != null){
+         this._sales.close ();
+      }//end if
+      if (this._catalog != null){
+         this._catalog.close ();
+      }//end if
+      if (this._audit != null){
+         this._audit.close ();
+      }//end if
+      if (this._partitions != null){
+         this._partitions.close ();
+      }//end if
+      // may still run EXPLAINs on the pool
+      if (this._slowQueries != null){
+         this._slowQueries.close ();
+      }//end if
+      this._analytics.close ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+      this._metrics.close ();
    }//end cleanup
 
    /**
@@ -242,12 +781,12 @@ public class Amazon {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length != 3 && !(args.length == 5 && args[3].equals("--serve"))) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Amazon.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--serve <http port>]");
          return;
       }//end if
 
@@ -263,6 +802,12 @@ public class Amazon {
          String user = args[2];
          esql = new Amazon (dbname, dbport, user, "");
 
+         if (args.length == 5) {
+            serve(esql, Integer.parseInt(args[4]));
+            return;
+         }//end if
+
+         Session s = session_main;
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -272,9 +817,10 @@ public class Amazon {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
+            final String[] login = { null };
             switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 1: run(esql, s, "createUser", Amazon::CreateUser); break;
+               case 2: run(esql, s, "login", (e, t) -> login[0] = LogIn(e, t)); authorisedUser = login[0]; break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
@@ -295,24 +841,38 @@ public class Amazon {
                 System.out.println("8. View 5 Popular Customers");
                 System.out.println("9. Place Product Supply Request to Warehouse");
 		System.out.println("10. View 10 most recent orders for store(Manager)");
+		System.out.println("11. Check out a cart");
+		System.out.println("12. View Trending Items");
+		System.out.println("13. Export store data to a file (Manager)");
+		System.out.println("14. View Hourly Sales by Product (Manager)");
+		System.out.println("15. View Store Revenue (Manager)");
+		System.out.println("16. View Customer Retention (Manager)");
 		System.out.println("25. Admin");
+		System.out.println("26. View Metrics (Admin)");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
                 switch (readChoice()){
-                   case 1: viewStores(esql); break;
-                   case 2: viewProducts(esql); break;
-                   case 3: placeOrder(esql); break;
-                   case 4: viewRecentOrders(esql); break;
-                   case 5: updateProduct(esql); break;
-                   case 6: viewRecentUpdates(esql); break;
-                   case 7: viewPopularProducts(esql); break;
-                   case 8: viewPopularCustomers(esql); break;
-                   case 9: placeProductSupplyRequests(esql); break;
-		   case 10: recentStoreOrders(esql); break;
-		   case 25: update(esql); break;
-
-                   case 20: usermenu = false; break;
+                   case 1: run(esql, s, "viewStores", Amazon::viewStores); break;
+                   case 2: run(esql, s, "viewProducts", Amazon::viewProducts); break;
+                   case 3: run(esql, s, "placeOrder", Amazon::placeOrder); break;
+                   case 4: run(esql, s, "viewRecentOrders", Amazon::viewRecentOrders); break;
+                   case 5: run(esql, s, "updateProduct", Amazon::updateProduct); break;
+                   case 6: run(esql, s, "viewRecentUpdates", Amazon::viewRecentUpdates); break;
+                   case 7: run(esql, s, "viewPopularProducts", Amazon::viewPopularProducts); break;
+                   case 8: run(esql, s, "viewPopularCustomers", Amazon::viewPopularCustomers); break;
+                   case 9: run(esql, s, "placeProductSupplyRequests", Amazon::placeProductSupplyRequests); break;
+		   case 10: run(esql, s, "recentStoreOrders", Amazon::recentStoreOrders); break;
+		   case 11: run(esql, s, "checkout", Amazon::checkout); break;
+		   case 12: run(esql, s, "viewTrendingProducts", Amazon::viewTrendingProducts); break;
+		   case 13: run(esql, s, "exportStoreData", Amazon::exportStoreData); break;
+		   case 14: run(esql, s, "viewHourlySales", Amazon::viewHourlySales); break;
+		   case 15: run(esql, s, "viewStoreRevenue", Amazon::viewStoreRevenue); break;
+		   case 16: run(esql, s, "viewCustomerRetention", Amazon::viewCustomerRetention); break;
+		   case 25: run(esql, s, "update", Amazon::update); break;
+		   case 26: run(esql, s, "viewMetrics", Amazon::viewMetrics); break;
+
+                   case 20: s.logout(); usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -334,6 +894,24 @@ public class Amazon {
       }//end try
    }//end main
 
+   /*
+    * Runs the HTTP server until the process is stopped
+    **/
+   private static void serve(final Amazon esql, int httpPort) throws Exception {
+      final AmazonServer server = new AmazonServer(esql, httpPort, Long.getLong("amazon.server.sessionIdle", 30 * 60 * 1000L),
+                                                   Integer.getInteger("amazon.server.sessions", 100000));
+      final CountDownLatch stopped = new CountDownLatch(1);
+      Runtime.getRuntime().addShutdownHook(new Thread(){
+         public void run(){
+            server.stop(5);
+            stopped.countDown();
+         }
+      });
+      server.start();
+      System.out.println("Serving on http://localhost:" + httpPort + "/ (Ctrl-C to stop)");
+      stopped.await();
+   }//end serve
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -364,25 +942,24 @@ public class Amazon {
    /*
     * Creates a new user
     **/
-   public static void CreateUser(Amazon esql){
+   public static void CreateUser(Amazon esql, Session s){
       try{
-         System.out.print("\tEnter name: ");
-         String name = in.readLine();
-         System.out.print("\tEnter password: ");
-         String password = in.readLine();
-         System.out.print("\tEnter latitude: ");   
-         String latitude = in.readLine();       //enter lat value between [0.0, 100.0]
-         System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
-         String longitude = in.readLine();
+         s.out.print("\tEnter name: ");
+         String name = s.in.readLine();
+         s.out.print("\tEnter password: ");
+         String password = s.in.readLine();
+         s.out.print("\tEnter latitude: ");   
+         double latitude = Double.parseDouble(s.in.readLine());       //enter lat value between [0.0, 100.0]
+         s.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
+         double longitude = Double.parseDouble(s.in.readLine());
          
          String type="Customer";
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         esql.executeUpdate("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)",
+                            name, password, latitude, longitude, type);
+         s.out.println ("User successfully created!");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         error(esql, s, e);
       }
    }//end CreateUser
 
@@ -391,432 +968,659 @@ public class Amazon {
     * Check log in credentials for an existing user
     * @return User login or null is the user does not exist
     **/
-   public static String LogIn(Amazon esql){
+   public static String LogIn(Amazon esql, Session s){
       try{
-         System.out.print("\tEnter name: ");
-         String name = in.readLine();
-         System.out.print("\tEnter password: ");
-         String pass = in.readLine();
-
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, pass);
-         int userNum = esql.executeQuery(query);
-	 List<List<String>> user_info = esql.executeQueryAndReturnResult(query);
-	 if (userNum > 0){
-		username_main = name;
-		password_main = pass;
-		long_main = user_info.get(0).get(4);
-		lat_main = user_info.get(0).get(3);
-		id_main = user_info.get(0).get(0);
+         s.out.print("\tEnter name: ");
+         String name = s.in.readLine();
+         s.out.print("\tEnter password: ");
+         String pass = s.in.readLine();
+
+	 Boolean found = esql.executeQueryForObject("SELECT userID, latitude, longitude, type FROM USERS WHERE name = ? AND password = ?",
+	    row -> { s.login(row.getInt(1), name, row.getDouble(2), row.getDouble(3), row.getTrimmed(4)); return Boolean.TRUE; },
+	    name, pass);
+	 if (found != null){
+		s.principal = esql.getPrincipals().login(esql, s.userID, s.type);
 		return name;
 	 }
          return null;
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         error(esql, s, e);
          return null;
       }
    }//end
 
 //THIS FUNCTION IS ENTIRELY FINISHED
-   public static void viewStores(Amazon esql) {
+   public static void viewStores(Amazon esql, Session s) {
 	   try{
-		   String store_loc_query = "SELECT DISTINCT s.latitude, s.longitude, s.storeID FROM Store s";
-		   List<List<String>> store_pos = esql.executeQueryAndReturnResult(store_loc_query);
-		   for(int i = 0; i < store_pos.size(); i++){
-			   double lat1 = Double.parseDouble(store_pos.get(i).get(0));
-			   double long1 = Double.parseDouble(store_pos.get(i).get(1));
-			   double lat2 = Double.parseDouble(lat_main);
-			   double long2 = Double.parseDouble(long_main);
-			   double dist = calculateDistance(lat1, long1, lat2, long2);
-			   if(dist <= 30){
-				   System.out.print("Store ID: " + store_pos.get(i).get(2));
-				   System.out.println(", Distance: " + dist);
-			   }	
+		   List<StoreIndex.Hit> stores = esql.storesWithin(s.latitude, s.longitude, STORE_RADIUS);
+		   for(int i = 0; i < stores.size(); i++){
+			   s.out.print("Store ID: " + stores.get(i).storeID);
+			   s.out.println(", Distance: " + stores.get(i).distance);
 		   }
 		
 	}catch(Exception e){
-		System.err.println(e.getMessage());
+		error(esql, s, e);
 	}
    }
 
 //THIS FUNCTION IS ENTIRELY FINISHED
-   public static void viewProducts(Amazon esql) {
+   public static void viewProducts(Amazon esql, Session s) {
    	try{
 		int store_id = 0;
-		System.out.print("Enter Amazon Store ID: ");
+		s.out.print("Enter Amazon Store ID: ");
 		try{
-			store_id = Integer.parseInt(in.readLine());
+			store_id = Integer.parseInt(s.in.readLine());
 		}catch(NumberFormatException e){
-			System.out.println("ID must be a 32-bit Integer.");
+			s.out.println("ID must be a 32-bit Integer.");
 			return;
 		}
-		String query = "SELECT p.productName, p.numberOfUnits, p.pricePerUnit FROM Store s, Product p WHERE s.storeID = p.storeID AND s.storeID = " + store_id;
-		String store_id_exists = "SELECT s.managerID FROM Store s WHERE s.storeID = " + store_id;
-		int does_exist = esql.executeQuery(store_id_exists);
-		if(does_exist == 0){
-			System.out.println("Amazon store with that ID does not exist.");
+		// cached per store; one query on a miss tells whether the store exists too
+		List<Catalog.Product> products = esql.getCatalog().get(esql, store_id);
+		if(products == null){
+			s.out.println("Amazon store with that ID does not exist.");
 			return;
 		}
-		int rows = esql.executeQueryAndPrintResult(query);
-		if(rows == 0){
-			System.out.println("This store has no current products");
+		if(products.isEmpty()){
+			s.out.println("This store has no current products");
+			return;
 		}
+		s.out.println("productname\tnumberofunits\tpriceperunit\t");
+		for(Catalog.Product p : products)
+			s.out.println(p.productName + "\t" + p.numberOfUnits + "\t" + p.pricePerUnit + "\t");
 	}catch(Exception e){
-		System.err.println(e.getMessage());
+		error(esql, s, e);
 	}
    }
-   public static void placeOrder(Amazon esql) {
+   public static void placeOrder(Amazon esql, Session s) {
    	try{
-		System.out.print("Enter Amazon Store ID: ");
-		String store_id = in.readLine();
+		s.out.print("Enter Amazon Store ID: ");
+		int store_id = Integer.parseInt(s.in.readLine().trim());
 		//within 30 miles of user
-		String store_loc_query = "SELECT s.latitude, s.longitude FROM Store s WHERE s.storeID = " + store_id;
-		List<List<String>> store_loc = esql.executeQueryAndReturnResult(store_loc_query);
-		double lat1 = Double.parseDouble(store_loc.get(0).get(0));
-                double long1 = Double.parseDouble(store_loc.get(0).get(1));
-                double lat2 = Double.parseDouble(lat_main);
-                double long2 = Double.parseDouble(long_main);
-                double dist = calculateDistance(lat1, long1, lat2, long2);
-                if(dist > 30){
-                	System.out.println("Store too far.");
+		StoreIndex.Hit store = esql.findStore(store_id, s.latitude, s.longitude);
+		if(store == null){
+			s.out.println("Amazon store with that ID does not exist.");
+			return;
+		}
+                if(store.distance > STORE_RADIUS){
+                	s.out.println("Store too far.");
 		 	return;	
                 }
-		System.out.print("Enter Product Name: ");
-		String productName = in.readLine();
-		System.out.print("Enter Amount: ");
-		int amount = Integer.parseInt(in.readLine());
-		String productQuery = "SELECT p.productName, p.numberOfUnits FROM Store s, Product p WHERE s.storeID = p.storeID AND s.storeID = " + store_id;
-		List<List<String>> product = esql.executeQueryAndReturnResult(productQuery);
-		List<List<String>> numOrdersQuery = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Orders");
-		//int numOrders = Integer.parseInt(numOrdersQuery.get(0).get(0)) + 1;
-		int numOrders = 1;
-		for(int i = 0; i < product.size(); i++){
-			if(product.get(i).get(0).trim().equals(productName.trim())){
-				int totalProductAmount = Integer.parseInt(product.get(i).get(1));
-				if(amount < totalProductAmount){
-					int newAmount = totalProductAmount - amount;
-					String updateProductsQuery = "UPDATE Product SET numberOfUnits = " + newAmount + " WHERE productName = '" + product.get(i).get(0) + "' AND storeID = " + store_id;
-					esql.executeUpdate(updateProductsQuery);
-					String currentTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
-					String orderQuery = String.format("INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%s, %s, %s, '%s', %s, '%s')", numOrders, id_main, store_id, product.get(i).get(0), amount, currentTime);
-					esql.executeUpdate(orderQuery);
-					return;
-				}else{
-					System.out.println("We do not have enough of that product in stock");
-				}
+		s.out.print("Enter Product Name: ");
+		String productName = s.in.readLine();
+		s.out.print("Enter Amount: ");
+		int amount = Integer.parseInt(s.in.readLine());
+		// reserved in memory, then written with the stock change in one transaction
+		Inventory.Order order = esql.getInventory().placeOrder(s.userID, store_id, productName, amount);
+		if(order.result == Inventory.Result.NO_SUCH_PRODUCT){
+			s.out.println("Product does not exist at this store");
+		}else if(order.result == Inventory.Result.INSUFFICIENT_STOCK){
+			s.out.println("We do not have enough of that product in stock");
+		}else{
+			s.out.println("Placed order number " + order.orderNumber);
+		}
+	 }catch(Exception e){
+		error(esql, s, e);
+	 }
+   }
+   public static void checkout(Amazon esql, Session s) {
+   	try{
+		s.out.println("Enter the cart, one product per line as <store ID>,<product name>,<amount>. An empty line ends the cart.");
+		List<Inventory.Line> cart = new ArrayList<Inventory.Line>();
+		String line;
+		while((line = s.in.readLine()) != null && !line.trim().isEmpty()){
+			String[] parts = line.split(",");
+			if(parts.length != 3){
+				s.out.println("Expected <store ID>,<product name>,<amount>: " + line);
+				return;
+			}
+			int store_id = Integer.parseInt(parts[0].trim());
+			//within 30 miles of user
+			StoreIndex.Hit store = esql.findStore(store_id, s.latitude, s.longitude);
+			if(store == null){
+				s.out.println("Amazon store " + store_id + " does not exist.");
+				return;
+			}
+			if(store.distance > STORE_RADIUS){
+				s.out.println("Store " + store_id + " too far.");
+				return;
+			}
+			cart.add(new Inventory.Line(store_id, parts[1], Integer.parseInt(parts[2].trim())));
+		}
+		if(cart.isEmpty()){
+			s.out.println("The cart is empty");
+			return;
+		}
+		// every line in one transaction: all are ordered or none is
+		Inventory.Checkout result = esql.getInventory().checkout(s.userID, cart);
+		for(int i = 0; i < cart.size(); ++i){
+			Inventory.Line l = result.lines.get(i);
+			Inventory.Order o = result.orders[i];
+			String status;
+			switch(o.result){
+				case PLACED: status = "order number " + o.orderNumber; break;
+				case INSUFFICIENT_STOCK: status = "not enough in stock"; break;
+				case NO_SUCH_PRODUCT: status = "product does not exist at this store"; break;
+				default: status = "not ordered"; break;
 			}
+			s.out.println(l.storeID + ", " + l.productName + ", " + l.units + ": " + status);
+		}
+		if(!result.placed){
+			s.out.println("Nothing was ordered");
 		}
-		System.out.println("Product does not exist at this store");
 	 }catch(Exception e){
-		System.err.print(e.getMessage());	
+		error(esql, s, e);
 	 }
    }
-   public static void viewRecentOrders(Amazon esql) {
+   public static void viewRecentOrders(Amazon esql, Session s) {
    	try{
-		String recentOrderQueries = "SELECT * FROM Orders WHERE customerID = " + id_main + " ORDER BY orderNumber DESC LIMIT 5";
-		int recentOrders = esql.executeQueryAndPrintResult(recentOrderQueries);
+		s.out.println("Page token? (Enter for the most recent orders)");
+		int recentOrders = Pages.print(esql, s.out, Pages.Kind.CUSTOMER_ORDERS, s.userID, s.in.readLine(), Pages.size(5));
 		if(recentOrders == 0){
-			System.out.println("No order history");
+			s.out.println("No order history");
 		}
 	}catch(Exception e){
-		System.err.print(e.getMessage());
+		error(esql, s, e);
 	}	
    }
-   public static void updateProduct(Amazon esql) {
+   /**
+    * A menu operation, run from the menu or by the server.
+    */
+   public interface Operation {
+      void run(Amazon esql, Session s);
+   }
+
+   /**
+    * Runs a menu operation, timing it and counting its database calls and
+    * errors under its name.
+    */
+   public static void run(Amazon esql, Session s, String name, Operation op) {
+      Metrics metrics = esql.getMetrics();
+      Metrics.Stat stat = metrics.operation(name);
+      Metrics.Stat outer = metrics.enter(stat);
+      long start = System.nanoTime();
+      try{
+         op.run(esql, s);
+      }finally{
+         metrics.exit(stat, outer, start);
+      }
+   }//end run
+
+   /*
+    * Tells the user why the operation failed and counts the error.
+    */
+   private static void error(Amazon esql, Session s, Exception e) {
+      esql.getMetrics().error();
+      s.error = e;
+      s.err.println(e.getMessage());
+   }
+
+   /*
+    * Returns the role and managed stores of the logged in user.  Loaded once
+    * at log in and only read again after it has been invalidated.
+    **/
+   private static Principal principal(Amazon esql, Session s) throws SQLException {
+	Principal p = s.principal;
+	if(p == null || p.isStale()){
+		p = esql.getPrincipals().get(esql, s.userID);
+		s.principal = p;
+	}
+	return p;
+   }
+   public static void updateProduct(Amazon esql, Session s) {
    	try{
-		String userTypeQuery = "SELECT type FROM Users WHERE userID = " + id_main;
-		List<List<String>> type = esql.executeQueryAndReturnResult(userTypeQuery);
-		if(type.get(0).get(0).trim().equals("manager") || type.get(0).get(0).trim().equals("admin")){
+		Principal p = principal(esql, s);
+		if(p.isManager() || p.isAdmin()){
 			//skip this first part if admin
-			System.out.println("Which store's products would you like to update?");
-		        String st_id = in.readLine();
-			if(!type.get(0).get(0).trim().equals("admin")){
-				String storeManages = "SELECT s.storeID FROM Store s WHERE s.managerID = " + id_main;
-				List<List<String>> stores = esql.executeQueryAndReturnResult(storeManages);
-				boolean isIn = false;
-				for(int j = 0; j < stores.size(); j++){
-					if(stores.get(j).get(0).trim().equals(st_id)){
-						isIn = true;
-						break;
-					}
-				}
-				if(!isIn){
-					System.out.println("You cannot update that store!");
-					return;
-				}
+			s.out.println("Which store's products would you like to update?");
+		        int st_id = Integer.parseInt(s.in.readLine().trim());
+			if(!p.canManage(st_id)){
+				s.out.println("You cannot update that store!");
+				return;
 			}
-			List<List<String>> manID = esql.executeQueryAndReturnResult("SELECT managerID FROM Store WHERE storeID = " + st_id);
-			String id_to_use = type.get(0).get(0).trim().equals("admin") ? manID.get(0).get(0) : id_main;
-			//its because we use id_main which would reject and say no to s.managerID for admin
-			String productNamesQuery = "SELECT p.productName, p.storeID FROM Product p, Store s WHERE s.storeID = p.storeID AND s.managerID = " + id_to_use + " AND s.storeID = " + st_id;
-			List<List<String>> productNames = esql.executeQueryAndReturnResult(productNamesQuery);
-			System.out.println("Which product would you like to update?");
-			String name = in.readLine();
-			for(int i = 0; i < productNames.size(); i++){
-				if(name.equals(productNames.get(i).get(0).trim())){
-					System.out.println("Update amount or price? (amount/price)");
-					String ans = in.readLine();
-					if(ans.equals("amount")){
-						System.out.print("Enter new amount: ");
-						int newAmount = Integer.parseInt(in.readLine());
-						String updateAmountQuery = "UPDATE Product SET numberOfUnits = " + newAmount + " WHERE productName = '" + name + "' AND storeID = '" + productNames.get(i).get(1) + "'";
-						esql.executeUpdate(updateAmountQuery);
-						List<List<String>> updateSize = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM ProductUpdates");
-						int upSize = Integer.parseInt(updateSize.get(0).get(0)) + 1;
-						String currentTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
-						String productUpdateTableQuery = String.format("INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES (%s, %s, %s, '%s', '%s')", upSize, id_main, productNames.get(i).get(1), name, currentTime);
-					        esql.executeUpdate(productUpdateTableQuery);	
-						break;
-					}else if(ans.equals("price")){
-						System.out.print("Enter new price: ");
-						int newPrice = Integer.parseInt(in.readLine());
-						String updatePriceQuery = "UPDATE Product SET pricePerUnit = " + newPrice + " WHERE productName = '" + name + "' AND storeID = '" + productNames.get(i).get(1) + "'";
-						esql.executeUpdate(updatePriceQuery);
-
-						List<List<String>> updateSize = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM ProductUpdates");
-						int upSize = Integer.parseInt(updateSize.get(0).get(0)) + 1;
-						String currentTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
-                                                String productUpdateTableQuery = String.format("INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES (%s, %s, %s, '%s', '%s')", upSize, id_main, productNames.get(i).get(1), name, currentTime);
-                                                esql.executeUpdate(productUpdateTableQuery);
-						break;
-					}else{
-						System.out.println("Unknown choice");
-						break;
-					}
+			s.out.println("Which product would you like to update?");
+			String name = s.in.readLine();
+			if(esql.getCatalog().get(esql, st_id, name) != null){
+				s.out.println("Update amount or price? (amount/price)");
+				String ans = s.in.readLine();
+				if(ans.equals("amount")){
+					s.out.print("Enter new amount: ");
+					int newAmount = Integer.parseInt(s.in.readLine());
+					esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE productName = ? AND storeID = ?", newAmount, name, st_id);
+					esql.getInventory().stockSet(st_id, name, newAmount);
+					esql.getCatalog().unitsSet(st_id, name, newAmount);
+				}else if(ans.equals("price")){
+					s.out.print("Enter new price: ");
+					int newPrice = Integer.parseInt(s.in.readLine());
+					esql.executeUpdate("UPDATE Product SET pricePerUnit = ? WHERE productName = ? AND storeID = ?", (double) newPrice, name, st_id);
+					esql.getCatalog().priceSet(st_id, name, newPrice);
+				}else{
+					s.out.println("Unknown choice");
+					return;
 				}
+				// written in the background with other updates
+				esql.getAudit().append(s.userID, st_id, name);
+				esql.getCatalog().publish(esql, st_id);
 			}
 		}else{
-			System.out.println("Something didn't work...");
+			s.out.println("Something didn't work...");
 		}
 	}catch(Exception e){
-		System.err.print(e.getMessage());
+		error(esql, s, e);
 	}
    }
-   public static void viewRecentUpdates(Amazon esql) {
+   public static void viewRecentUpdates(Amazon esql, Session s) {
    	try{
-         String userTypeQuery = "SELECT type FROM Users WHERE userID = " + id_main;
-         List<List<String>> type = esql.executeQueryAndReturnResult(userTypeQuery);
-         if(type.get(0).get(0).trim().equals("manager") || type.get(0).get(0).trim().equals("admin")){
-            System.out.println("Which store’s updates would you like to see? (Enter StoreID)");
-            String st_id = in.readLine();
-	    //List<List<String>> manID = esql.executeQueryAndReturnResult("SELECT managerID FROM Store WHERE storeID = " + st_id);
-	    //String id_to_use = type.get(0).get(0).trim().equals("admin") ? manID.get(0).get(0) : id_main;
-	    if(!type.get(0).get(0).trim().equals("admin")){
-            	String storeManages = "SELECT s.storeID FROM Store s WHERE s.managerID = " + id_main;
-            	List<List<String>> stores = esql.executeQueryAndReturnResult(storeManages);
-            	boolean isIn = false;
-            	for(int j = 0; j < stores.size(); j++){
-               	    if(stores.get(j).get(0).trim().equals(st_id)){
-                  	isIn = true;
-                  	break;
-               	    }	
-                }
-                if(!isIn){
-                    System.out.println("You cannot view that store’s updates!");
-                    return;
-                }
-	    }
-	    String recentUpdatesQuery = "SELECT * FROM ProductUpdates WHERE storeID = " + st_id + " ORDER BY updateNumber DESC LIMIT 5";
-            //String recentUpdatesQuery = "SELECT * FROM ProductUpdates WHERE storeID = " + st_id + " AND managerID = " + id_to_use + " ORDER BY updateNumber DESC LIMIT 5";
-            int recentUpdates = esql.executeQueryAndPrintResult(recentUpdatesQuery);
+         Principal p = principal(esql, s);
+         if(p.isManager() || p.isAdmin()){
+            s.out.println("Which store’s updates would you like to see? (Enter StoreID)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(!p.canManage(st_id)){
+               s.out.println("You cannot view that store’s updates!");
+               return;
+            }
+            s.out.println("Page token? (Enter for the most recent updates)");
+            String token = s.in.readLine();
+            // include the updates still queued
+            esql.getAudit().flush(5 * 1000L);
+            int recentUpdates = Pages.print(esql, s.out, Pages.Kind.STORE_UPDATES, st_id, token, Pages.size(5));
             if(recentUpdates == 0){
-               System.out.println("No update history");
+               s.out.println("No update history");
             }
          }
       }catch(Exception e){
-         System.err.print(e.getMessage());
+         error(esql, s, e);
       }
    }
-   public static void viewPopularProducts(Amazon esql) {
+   public static void viewPopularProducts(Amazon esql, Session s) {
   	  try{
          //check User Type
-         String userTypeQuery = "SELECT type FROM Users WHERE userID = " + id_main;
-         List<List<String>> type = esql.executeQueryAndReturnResult(userTypeQuery);
-         if(type.get(0).get(0).trim().equals("manager") || type.get(0).get(0).trim().equals("admin")){
-            System.out.println("Which store’s 5 most popular products would you like to see? (Enter StoreID)");
-            String st_id = in.readLine();
-	    List<List<String>> manID = esql.executeQueryAndReturnResult("SELECT managerID FROM Store WHERE storeID = " + st_id);
-	    String id_to_use = type.get(0).get(0).trim().equals("admin") ? manID.get(0).get(0) : id_main;
-            if(!type.get(0).get(0).trim().equals("admin")){
-	    	String storeManages = "SELECT s.storeID FROM Store s WHERE s.managerID = " + id_main;
-            	List<List<String>> stores = esql.executeQueryAndReturnResult(storeManages);
-            	boolean isIn = false;
-            	for(int j = 0; j < stores.size(); j++){
-                    if(stores.get(j).get(0).trim().equals(st_id)){
-                        isIn = true;
-                  	break;
-               	    }
-                }
-                if(!isIn){
-                    System.out.println("You cannot view that store’s updates!");
-                    return;
-                }
-	    }
-            // get popular products
-            String popularProdQuery = "SELECT productName, SUM(unitsOrdered) AS NumUnitsPurchased FROM Orders WHERE storeID = " + st_id + " GROUP BY productName ORDER BY NumUnitsPurchased LIMIT 5";
-            esql.executeQueryAndPrintResult(popularProdQuery);
+         Principal p = principal(esql, s);
+         if(p.isManager() || p.isAdmin()){
+            s.out.println("Which store’s 5 most popular products would you like to see? (Enter StoreID)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(!p.canManage(st_id)){
+               s.out.println("You cannot view that store’s updates!");
+               return;
+            }
+            // get popular products, kept up to date as orders are placed
+            esql.executeQueryAndPrintResult(s.out, "SELECT productName, unitsSold AS NumUnitsPurchased FROM StoreProductSales WHERE storeID = ? ORDER BY unitsSold DESC LIMIT 5", st_id);
          }
       }catch(Exception e){
-         System.err.print(e.getMessage());
+         error(esql, s, e);
       } 
    }
-   public static void viewPopularCustomers(Amazon esql) {
+   public static void viewHourlySales(Amazon esql, Session s) {
+      try{
+         Principal p = principal(esql, s);
+         if(p.isManager() || p.isAdmin()){
+            s.out.println("Which store’s hourly sales would you like to see? (Enter StoreID, 0 for all stores)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(st_id == 0 ? !p.isAdmin() : !p.canManage(st_id)){
+               s.out.println("You cannot view that store’s sales!");
+               return;
+            }
+            s.out.println("How many hours? (Enter for 24)");
+            String h = s.in.readLine();
+            int hours = h == null || h.trim().isEmpty() ? 24 : Integer.parseInt(h.trim());
+            if(hours < 1 || hours > 24 * 7){
+               s.out.println("Between 1 and 168 hours, please");
+               return;
+            }
+            // scanned in memory; the database only sends the new orders
+            Analytics.Snapshot snap = esql.getAnalytics().snapshot(esql);
+            long[][] sales = esql.getAnalytics().hourlySales(snap, st_id, hours);
+            long hour = Analytics.hourlyStart(snap, hours);
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:00");
+            s.out.printf("%-16s %8s  %s%n", "hour", "units", "top products");
+            for(long[] products : sales){
+               long total = 0;
+               Integer[] top = new Integer[products.length];
+               for(int i = 0; i < products.length; ++i){ total += products[i]; top[i] = i; }
+               if(total > 0){
+                  Arrays.sort(top, (a, b) -> Long.compare(products[b], products[a]));
+                  StringBuilder line = new StringBuilder();
+                  for(int i = 0; i < 3 && products[top[i]] > 0; ++i)
+                     line.append(i > 0 ? ", " : "").append(snap.products[top[i]]).append(" (").append(products[top[i]]).append(')');
+                  s.out.printf("%-16s %8d  %s%n", format.format(new Date(hour)), total, line);
+               }
+               hour += 3600 * 1000L;
+            }
+         }
+      }catch(Exception e){
+         error(esql, s, e);
+      }
+   }
+   public static void viewStoreRevenue(Amazon esql, Session s) {
+      try{
+         Principal p = principal(esql, s);
+         if(p.isManager() || p.isAdmin()){
+            Analytics.Snapshot snap = esql.getAnalytics().snapshot(esql);
+            double[][] listings = esql.getAnalytics().listingSales(snap);
+            // rolled up by store; managers see their stores, admins all
+            TreeMap<Integer, double[]> stores = new TreeMap<Integer, double[]>();
+            for(int l = 0; l < snap.listings; ++l){
+               int store = snap.listingStore[l];
+               if(!p.canManage(store)) continue;
+               double[] t = stores.get(store);
+               if(t == null) stores.put(store, t = new double[3]);
+               for(int k = 0; k < 3; ++k) t[k] += listings[k][l];
+            }
+            List<Map.Entry<Integer, double[]>> rows = new ArrayList<Map.Entry<Integer, double[]>>(stores.entrySet());
+            rows.sort((a, b) -> Double.compare(b.getValue()[2], a.getValue()[2]));
+            s.out.printf("%8s %10s %12s %14s%n", "storeID", "orders", "units", "revenue");
+            for(int i = 0; i < rows.size() && i < 20; ++i){
+               double[] t = rows.get(i).getValue();
+               s.out.printf("%8d %10.0f %12.0f %14.2f%n", rows.get(i).getKey(), t[0], t[1], t[2]);
+            }
+            if(rows.size() > 20) s.out.println("... " + (rows.size() - 20) + " more stores");
+            s.out.println("Revenue is units times the current pricePerUnit.");
+         }
+      }catch(Exception e){
+         error(esql, s, e);
+      }
+   }
+   public static void viewCustomerRetention(Amazon esql, Session s) {
+      try{
+         Principal p = principal(esql, s);
+         if(p.isManager() || p.isAdmin()){
+            s.out.println("Which store’s customer retention would you like to see? (Enter StoreID, 0 for all stores)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(st_id == 0 ? !p.isAdmin() : !p.canManage(st_id)){
+               s.out.println("You cannot view that store’s customers!");
+               return;
+            }
+            Analytics.Snapshot snap = esql.getAnalytics().snapshot(esql);
+            List<int[]> cohorts = esql.getAnalytics().retention(snap, st_id);
+            s.out.printf("%-8s %10s %8s %8s %8s%n", "cohort", "customers", "+1 mo", "+2 mo", "+3 mo");
+            // the last 12 cohorts
+            for(int[] c : cohorts.subList(Math.max(0, cohorts.size() - 12), cohorts.size()))
+               s.out.printf("%04d-%02d  %10d %7.1f%% %7.1f%% %7.1f%%%n", c[0] / 12, c[0] % 12 + 1, c[1],
+                            100.0 * c[2] / c[1], 100.0 * c[3] / c[1], 100.0 * c[4] / c[1]);
+         }
+      }catch(Exception e){
+         error(esql, s, e);
+      }
+   }
+   public static void viewTrendingProducts(Amazon esql, Session s) {
       try{
          //check User Type
-         String userTypeQuery = "SELECT type FROM Users WHERE userID = " + id_main;
-         List<List<String>> type = esql.executeQueryAndReturnResult(userTypeQuery);
-         if(type.get(0).get(0).trim().equals("manager") || type.get(0).get(0).trim().equals("admin")){
-            System.out.println("Which store’s 5 most popular customers would you like to see? (Enter StoreID)");
-            String st_id = in.readLine();
-	    List<List<String>> manID = esql.executeQueryAndReturnResult("SELECT managerID FROM Store WHERE storeID = " + st_id);                                                                                                                            String id_to_use = type.get(0).get(0).trim().equals("admin") ? manID.get(0).get(0) : id_main;
-	    if(!type.get(0).get(0).trim().equals("admin")){
-            	String storeManages = "SELECT s.storeID FROM Store s WHERE s.managerID = " + id_main;
-            	List<List<String>> stores = esql.executeQueryAndReturnResult(storeManages);
-            	boolean isIn = false;
-            	for(int j = 0; j < stores.size(); j++){
-               	    if(stores.get(j).get(0).trim().equals(st_id)){
-                    	isIn = true;
-                  	break;
-               	    }
-                }
-                if(!isIn){
-                   System.out.println("You cannot view that store’s customers!");
-                   return;
-                }
-	       }
-               // get popular products
-            	String popularCustomersQuery = "SELECT U.name, O.customerID FROM Users U, Orders O, Store S WHERE S.managerID = " + id_to_use + " AND U.userID = O.customerID AND S.storeID = O.storeID AND S.storeID = " + st_id + " ORDER BY O.orderNumber LIMIT 5";   
-	    int topCust = esql.executeQueryAndPrintResult(popularCustomersQuery);
-               // if(recentOrders == 0){
-               //    System.out.println(“No update history”);
-               // }
+         Principal p = principal(esql, s);
+         if(p.isManager() || p.isAdmin()){
+            s.out.println("Which store’s trending products would you like to see? (Enter StoreID, 0 for all stores)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(st_id == 0 ? !p.isAdmin() : !p.canManage(st_id)){
+               s.out.println("You cannot view that store’s products!");
+               return;
+            }
+            s.out.println("Over the last 5m, 1h or 24h?");
+            int window = Trending.window(s.in.readLine().trim());
+            if(window < 0){
+               s.out.println("Unrecognized window!");
+               return;
+            }
+            // counted in memory as orders are placed; the database is not read
+            s.out.printf("%-30s %10s %21s%n", "productName", "units", "true units between");
+            for(Trending.Item item : esql.getTrending().top(st_id, window, 5))
+               s.out.printf("%-30s %10d %10d %10d%n", item.productName, item.units, item.atLeast, item.atMost);
          }
       }catch(Exception e){
-         System.err.print(e.getMessage());
+         error(esql, s, e);
       }
    }
-   public static void placeProductSupplyRequests(Amazon esql) {
-   	try{
+   public static void viewPopularCustomers(Amazon esql, Session s) {
+      try{
          //check User Type
-         String userTypeQuery = "SELECT type FROM Users WHERE userID = " + id_main;
-         List<List<String>> type = esql.executeQueryAndReturnResult(userTypeQuery);
-         if(type.get(0).get(0).trim().equals("manager")){
-            System.out.println("Which store would you like to request products for? (Enter StoreID)");
-            String st_id = in.readLine();
-            String storeManages = "SELECT s.storeID FROM Store s WHERE s.managerID = " + id_main;
-            List<List<String>> stores = esql.executeQueryAndReturnResult(storeManages);
-            boolean isIn = false;
-            for(int j = 0; j < stores.size(); j++){
-               if(stores.get(j).get(0).trim().equals(st_id)){
-                  isIn = true;
-                  break;
-               }
+         Principal p = principal(esql, s);
+         if(p.isManager() || p.isAdmin()){
+            s.out.println("Which store’s 5 most popular customers would you like to see? (Enter StoreID)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(!p.canManage(st_id)){
+               s.out.println("You cannot view that store’s customers!");
+               return;
             }
-            if(!isIn){
-               System.out.println("You cannot order products for that store!");
+               // get popular customers
+	    esql.executeQueryAndPrintResult(s.out, "SELECT U.name, C.customerID, C.orders, C.unitsOrdered FROM StoreCustomerSales C, Users U WHERE C.storeID = ? AND U.userID = C.customerID ORDER BY C.orders DESC LIMIT 5", st_id);
+         }
+      }catch(Exception e){
+         error(esql, s, e);
+      }
+   }
+   public static void placeProductSupplyRequests(Amazon esql, Session s) {
+   	try{
+         //check User Type
+         Principal p = principal(esql, s);
+         if(p.isManager()){
+            s.out.println("Which store would you like to request products for? (Enter StoreID)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(!p.manages(st_id)){
+               s.out.println("You cannot order products for that store!");
                return;
             }
-               System.out.println("Input Product Name: ");
-               String ProductName = in.readLine();
-               System.out.println("Enter number of units needed: ");
-               int productAmount = Integer.parseInt(in.readLine());
-               System.out.println("Enter warehouse ID: ");
-               int warehouse = Integer.parseInt(in.readLine());
-	       //List<List<String>> request_number_list = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM ProductSupplyRequests");
-	       int request_number = 1;
-	       //int request_number = Integer.parseInt(request_number_list.get(0).get(0)) + 1;
-               String productSupplyRequestQuery = String.format("INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%s, %s, %s, %s, '%s', %s)", request_number, id_main, warehouse, st_id, ProductName, productAmount);
-               esql.executeUpdate(productSupplyRequestQuery);
-	       String currentTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
-	       //List<List<String>> update_number_list = esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM ProductUpdates");
-	       //int update_number = Integer.parseInt(update_number_list.get(0).get(0)) + 1;
-	       int update_number = 1;
-	       //update_number++;
-	       String productUpdateQuery = String.format("INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES (%s, %s, %s, '%s', '%s')", update_number, id_main, st_id, ProductName, currentTime);
-	       esql.executeUpdate(productUpdateQuery);
-	       String productQuery = "UPDATE Product SET numberOfUnits = numberOfUnits + " + productAmount + " WHERE productName = '" + ProductName + "' AND storeID = " + st_id;
-	       esql.executeUpdate(productQuery);
+               s.out.println("Input Product Name: ");
+               String ProductName = s.in.readLine();
+               s.out.println("Enter number of units needed: ");
+               int productAmount = Integer.parseInt(s.in.readLine());
+               s.out.println("Enter warehouse ID (Enter for the nearest): ");
+               String w = s.in.readLine();
+               int warehouse;
+               if(w == null || w.trim().isEmpty()){
+                  StoreIndex.Hit store = esql.findStore(st_id, 0, 0);
+                  StoreIndex.Hit nearest = store == null ? null : esql.nearestWarehouse(store.latitude, store.longitude);
+                  if(nearest == null){
+                     s.out.println("There is no warehouse to request from!");
+                     return;
+                  }
+                  warehouse = nearest.storeID;
+               }else{
+                  warehouse = Integer.parseInt(w.trim());
+               }
+	       int request_number = esql.nextKey(KeyAllocator.SUPPLY_REQUESTS);
+               esql.executeUpdate("INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?, ?)",
+                                  request_number, s.userID, warehouse, st_id, ProductName, productAmount);
+	       esql.getAudit().append(s.userID, st_id, ProductName);
+	       esql.executeUpdate("UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE productName = ? AND storeID = ?", productAmount, ProductName, st_id);
+	       esql.getInventory().stockAdded(st_id, ProductName, productAmount);
+	       esql.getCatalog().unitsAdded(st_id, ProductName, productAmount);
+	       esql.getCatalog().publish(esql, st_id);
+	       s.out.println("Placed supply request number " + request_number + " to warehouse " + warehouse);
          }else{
-		System.out.println("You must be manager at this store!");
+		s.out.println("You must be manager at this store!");
 	 }
       }catch(Exception e){
-         System.err.print(e.getMessage());
+         error(esql, s, e);
       } 
    }
-   public static void recentStoreOrders(Amazon esql){
+   /**
+    * Writes all of a store's orders (live and archived) or products to a
+    * file in amazon.export.dir, as an aligned table, CSV or JSON lines.
+    * Orders are read amazon.export.chunk (10000) at a time, in orderNumber
+    * order, so the client never holds more than one chunk even with a
+    * driver that reads whole results.
+    */
+   public static void exportStoreData(Amazon esql, Session s){
+	try{
+		Principal p = principal(esql, s);
+		if(!p.isManager() && !p.isAdmin()){
+			s.out.println("You must be manager at this store!");
+			return;
+		}
+		s.out.println("Which store’s data would you like to export? (Enter StoreID)");
+		int st_id = Integer.parseInt(s.in.readLine().trim());
+		if(!p.canManage(st_id)){
+			s.out.println("You cannot export that store’s data!");
+			return;
+		}
+		s.out.println("Which table? (Orders or Product)");
+		String table = s.in.readLine().trim();
+		boolean orders = table.equalsIgnoreCase("Orders");
+		if(!orders && !table.equalsIgnoreCase("Product")){
+			s.out.println("Unknown table: " + table);
+			return;
+		}
+		s.out.println("Which format? (table, csv or jsonl)");
+		ResultWriter.Format format = ResultWriter.format(s.in.readLine());
+		s.out.println("File name: ");
+		String name = s.in.readLine().trim();
+		// plain names only: the server writes these files for remote users
+		if(!name.matches("[A-Za-z0-9_][A-Za-z0-9._-]*")){
+			s.out.println("Invalid file name: " + name);
+			return;
+		}
+		s.out.println("Most rows to export? (Enter for all)");
+		String limit = s.in.readLine();
+		long maxRows = limit == null || limit.trim().isEmpty() ? 0 : Long.parseLong(limit.trim());
+
+		File dir = new File(System.getProperty("amazon.export.dir", "."));
+		dir.mkdirs();
+		File file = new File(dir, name);
+		long start = System.nanoTime();
+		ResultWriter writer;
+		try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)){
+			writer = new ResultWriter(out, format, maxRows);
+			writer.setTimeout(Long.getLong("amazon.export.timeout", 10 * 60 * 1000L));
+			if(orders){
+				try{
+					int chunk = Integer.getInteger("amazon.export.chunk", 10000);
+					if(exportOrders(esql, writer, "Orders", st_id, maxRows, chunk))
+						exportOrders(esql, writer, "OrdersArchive", st_id, maxRows, chunk);
+				}finally{
+					writer.finish();
+				}
+			}else{
+				// one row past the limit tells the writer rows were left out
+				esql.executeQueryAndWrite(writer, "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = ? ORDER BY productName" +
+				                          (maxRows > 0 ? " LIMIT ?" : ""), maxRows > 0 ? new Object[]{ st_id, maxRows + 1 } : new Object[]{ st_id });
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		s.out.printf("Exported %d rows to %s in %.1f s (%.0f rows/min)%s%n", writer.getRows(), file.getPath(), seconds,
+		             seconds > 0 ? writer.getRows() * 60 / seconds : 0.0,
+		             writer.isCancelled() ? ", stopped by the timeout" : writer.isTruncated() ? ", stopped at the limit" : "");
+	}catch(Exception e){
+		error(esql, s, e);
+	}
+   }
+
+   /*
+    * Returns the query for the next chunk of a store's rows of Orders or
+    * OrdersArchive: storeID, the last orderNumber written, the chunk size.
+    */
+   static String exportOrdersSql(String table) {
+      return "SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime FROM " + table +
+             " WHERE storeID = ? AND orderNumber > ? ORDER BY orderNumber LIMIT ?";
+   }
+
+   /*
+    * Writes a store's rows of Orders or OrdersArchive, chunk at a time after
+    * the last orderNumber written.  Returns false once the writer stopped.
+    */
+   private static boolean exportOrders(Amazon esql, final ResultWriter writer, String table, int storeID, long maxRows, int chunk) throws SQLException {
+      String query = exportOrdersSql(table);
+      final int[] last = { Integer.MIN_VALUE };
+      final boolean[] stopped = { false };
+      while (true){
+         // one row past the limit tells the writer rows were left out
+         long limit = maxRows > 0 ? Math.min(chunk, maxRows + 1 - writer.getRows()) : chunk;
+         long read = esql.executeQueryStreaming(query, row -> {
+            writer.row(row);
+            stopped[0] = row.isStopped();
+            last[0] = row.getInt(1);
+         }, storeID, last[0], limit);
+         if (stopped[0]) return false;
+         if (read < limit) return true;
+      }
+   }//end exportOrders
+   public static void recentStoreOrders(Amazon esql, Session s){
    	try{
          //check User Type
-         String userTypeQuery = "SELECT type FROM Users WHERE userID = " + id_main;
-         List<List<String>> type = esql.executeQueryAndReturnResult(userTypeQuery);
-         if(type.get(0).get(0).trim().equals("manager")){
-            System.out.println("Which store’s 10 most recent orders would you like to see? (Enter StoreID)");
-               String st_id = in.readLine();
-            String storeManages = "SELECT s.storeID FROM Store s WHERE s.managerID = " + id_main;
-            List<List<String>> stores = esql.executeQueryAndReturnResult(storeManages);
-            boolean isIn = false;
-            for(int j = 0; j < stores.size(); j++){
-               if(stores.get(j).get(0).trim().equals(st_id)){
-                  isIn = true;
-                  break;
-               }
-            }
-            if(!isIn){
-               System.out.println("You cannot check order history for that store!");
+         Principal p = principal(esql, s);
+         if(p.isManager()){
+            s.out.println("Which store’s 10 most recent orders would you like to see? (Enter StoreID)");
+            int st_id = Integer.parseInt(s.in.readLine().trim());
+            if(!p.manages(st_id)){
+               s.out.println("You cannot check order history for that store!");
                return;
             }
-	    String orderHistoryQuery = "SELECT * FROM ORDERS WHERE storeID = " + st_id + " ORDER BY orderNumber DESC LIMIT 10";
-	    esql.executeQueryAndPrintResult(orderHistoryQuery);
+	    s.out.println("Page token? (Enter for the most recent orders)");
+	    Pages.print(esql, s.out, Pages.Kind.STORE_ORDERS, st_id, s.in.readLine(), Pages.size(10));
 	 }else{
-		System.out.println("You must be manager at this store!");
+		s.out.println("You must be manager at this store!");
 	 }
 	}catch(Exception e){
-		System.err.print(e.getMessage());
+		error(esql, s, e);
+	}
+   }
+   public static void viewMetrics(Amazon esql, Session s){
+	try{
+		if(!principal(esql, s).isAdmin()){
+			s.out.println("You are not admin");
+			return;
+		}
+		s.out.print(esql.getMetrics());
+		s.out.println(esql.getSlowQueries());
+		s.out.println(esql.getAudit());
+		s.out.println(esql.getReplenisher());
+		s.out.println(esql.getPartitions());
+		s.out.println(esql.getAnalytics());
+		s.out.println(esql.getPool());
+		s.out.println(esql.getInventory());
+		s.out.println(esql.getSales());
+		s.out.println(esql.getCatalog());
+	}catch(Exception e){
+		error(esql, s, e);
 	}
    }
-   public static void update(Amazon esql){
+   public static void update(Amazon esql, Session s){
 	try{
-		 String userTypeQuery = "SELECT type FROM Users WHERE userID = " + id_main;                                                            List<List<String>> type = esql.executeQueryAndReturnResult(userTypeQuery);                                                           if(!type.get(0).get(0).trim().equals("admin")){
-			System.out.println("You are not admin");
+		if(!principal(esql, s).isAdmin()){
+			s.out.println("You are not admin");
 			 return;
 		}
-		System.out.println("Which would you like to update(user/product)?");
-		String ans = in.readLine();
+		s.out.println("Which would you like to update(user/product)?");
+		String ans = s.in.readLine();
 		if(ans.equals("user")){
-			System.out.println("Which user would you like to edit?");
-			String user_id_to_edit = in.readLine();
-	        	System.out.println("What would you like to edit about them?(id/name/password/latitude/longitude/type)");
-			String to_edit = in.readLine();
-			String updateQuery = "";
+			s.out.println("Which user would you like to edit?");
+			int user_id_to_edit = Integer.parseInt(s.in.readLine().trim());
+	        	s.out.println("What would you like to edit about them?(id/name/password/latitude/longitude/type)");
+			String to_edit = s.in.readLine();
+			// the column name is picked from a fixed list, only the value is a parameter
+			String column;
+			Object value;
 			if(to_edit.equals("id")){
-				System.out.println("What would you like their new id to be?");
-				String new_id = in.readLine();
-				updateQuery = "UPDATE Users SET userID = " + new_id + " WHERE userID = " + user_id_to_edit;
+				s.out.println("What would you like their new id to be?");
+				column = "userID";
+				value = Integer.parseInt(s.in.readLine().trim());
 			}else if(to_edit.equals("name")){
-				System.out.println("What would you like their new name to be?");
-                                String new_name = in.readLine();
-                                updateQuery = "UPDATE Users SET name = " + new_name + " WHERE userID = " + user_id_to_edit;
+				s.out.println("What would you like their new name to be?");
+				column = "name";
+				value = s.in.readLine();
 			}else if(to_edit.equals("password")){
-				System.out.println("What would you like their new password to be?");
-                                String new_password = in.readLine();
-                                updateQuery = "UPDATE Users SET password = " + new_password + " WHERE userID = " + user_id_to_edit;
+				s.out.println("What would you like their new password to be?");
+				column = "password";
+				value = s.in.readLine();
 			}else if(to_edit.equals("latitude")){
-				System.out.println("What would you like their new latitude to be?");
-                                String new_lat = in.readLine();
-                                updateQuery = "UPDATE Users SET latitude = " + new_lat + " WHERE userID = " + user_id_to_edit;
+				s.out.println("What would you like their new latitude to be?");
+				column = "latitude";
+				value = Double.parseDouble(s.in.readLine());
 			}else if(to_edit.equals("longitude")){
-				System.out.println("What would you like their new longitude to be?");
-                                String new_long = in.readLine();
-                                updateQuery = "UPDATE Users SET longitude = " + new_long + " WHERE userID = " + user_id_to_edit;
+				s.out.println("What would you like their new longitude to be?");
+				column = "longitude";
+				value = Double.parseDouble(s.in.readLine());
 			}else{
-				System.out.println("What would you like their new type to be?");
-                                String new_type = in.readLine();
-                                updateQuery = "UPDATE Users SET type = " + new_type + " WHERE userID = " + user_id_to_edit;
+				s.out.println("What would you like their new type to be?");
+				column = "type";
+				value = s.in.readLine();
 			}
-			esql.executeUpdate(updateQuery);	
+			esql.executeUpdate("UPDATE Users SET " + column + " = ? WHERE userID = ?", value, user_id_to_edit);
+			// the user's cached role, and their ID, may have changed
+			esql.getPrincipals().invalidate(user_id_to_edit);
+			if(column.equals("userID"))
+				esql.getPrincipals().invalidate((Integer) value);
 		}else{
-			updateProduct(esql);
+			updateProduct(esql, s);
 		}	
    	}catch(Exception e){
-		System.err.print(e.getMessage());
+		error(esql, s, e);
 	}
     }
 
@@ -0,0 +1,302 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class serves the Amazon menu operations over HTTP on the loopback
+ * interface, for many users at once.  Every request runs on its own virtual
+ * thread, and every logged in user has their own Session instead of the
+ * single keyboard user of the interactive menu.
+ *
+ * Requests are POST /&lt;operation&gt;.  The request body holds the answers
+ * to the operation's prompts, one per line, in the order the interactive
+ * menu asks for them.  The response body is the text the operation printed.
+ * Log in returns a session token in the X-Session header, which must be
+ * sent back on every later request.  A session unused for
+ * amazon.server.sessionIdle ms (30 minutes) is dropped, and so is the least
+ * recently used one when amazon.server.sessions are logged in.  A request
+ * whose operation failed is answered 400 (bad answers) or 500, with the
+ * error as the last line.
+ *
+ *    curl -si -d $'Amy\nxyz' localhost:8080/login
+ *    curl -s -H 'X-Session: &lt;token&gt;' -d 5 localhost:8080/viewProducts
+ *    curl -s -H 'X-Session: &lt;token&gt;' -d $'5\nPepsi\n2' localhost:8080/placeOrder
+ *
+ * Order and update lists come a page at a time; the next page is asked for
+ * with the token after "More:" as the last answer.
+ *
+ *    curl -s -H 'X-Session: &lt;token&gt;' -d $'5\n&lt;page token&gt;' localhost:8080/recentStoreOrders
+ *
+ * exportStoreData writes its file on the server, in amazon.export.dir.
+ *
+ *    curl -s -H 'X-Session: &lt;token&gt;' -d $'5\nOrders\ncsv\norders5.csv\n' localhost:8080/exportStoreData
+ *
+ * The analytics reports (viewHourlySales, viewStoreRevenue,
+ * viewCustomerRetention) scan an in-memory copy of Orders; the first one
+ * after startup loads it.
+ *
+ *    curl -s -H 'X-Session: &lt;token&gt;' -d $'5\n48' localhost:8080/viewHourlySales
+ *
+ */
+
+public class AmazonServer {
+
+   private static final String SESSION_HEADER = "X-Session";
+
+   private final Amazon _esql;
+   private final HttpServer _http;
+   private final ExecutorService _executor;
+
+   /*
+    * A logged in user and when they last sent a request.
+    */
+   private static class Login {
+      final Session session;
+      long lastUsed = System.currentTimeMillis();
+
+      Login(Session session) { this.session = session; }
+   }//end Login
+
+   // logged in users by session token, least recently used first
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final LinkedHashMap<String, Login> _sessions;
+   private final SecureRandom _random = new SecureRandom();
+   private final long _idleMillis;
+
+   /**
+    * Creates a new server bound to localhost
+    *
+    * @param esql the database access object shared by every session
+    * @param port the HTTP port to listen on
+    * @param idleMillis how long a session may go unused before it is dropped
+    * @param maxSessions the most sessions kept; logging in past it drops
+    *        the least recently used one
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public AmazonServer(Amazon esql, int port, long idleMillis, int maxSessions) throws IOException {
+      this._esql = esql;
+      this._idleMillis = idleMillis;
+      this._sessions = new LinkedHashMap<String, Login>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<String, Login> eldest){
+            return size() > maxSessions;
+         }
+      };
+      this._http = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+      this._executor = Executors.newVirtualThreadPerTaskExecutor();
+      this._http.setExecutor(this._executor);
+      this._http.createContext("/", new HttpHandler(){
+         public void handle(HttpExchange exchange) throws IOException { serve(exchange); }
+      });
+   }//end AmazonServer
+
+   public void start() {
+      this._http.start();
+   }
+
+   /**
+    * Stops accepting requests, waiting up to the given number of seconds for
+    * requests already running to finish.
+    */
+   public void stop(int delaySeconds) {
+      this._http.stop(delaySeconds);
+      this._executor.shutdown();
+   }
+
+   public int getSessionCount() {
+      this._lock.lock();
+      try{
+         return this._sessions.size();
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   /*
+    * Adds a logged in user.  The sessions idle for too long are dropped
+    * from the least recently used end, and past maxSessions the least
+    * recently used one is, so each costs O(1).
+    */
+   private void add(String token, Login login) {
+      this._lock.lock();
+      try{
+         Iterator<Login> oldest = this._sessions.values().iterator();
+         while (oldest.hasNext() && login.lastUsed - oldest.next().lastUsed > this._idleMillis) oldest.remove();
+         this._sessions.put(token, login);
+      }finally{
+         this._lock.unlock();
+      }
+   }//end add
+
+   /*
+    * Returns the user logged in with a token, marked used now, or null
+    * when there is none or it was idle for too long.
+    */
+   private Login use(String token, long now) {
+      this._lock.lock();
+      try{
+         Login stored = this._sessions.get(token);
+         if (stored == null) return null;
+         if (now - stored.lastUsed > this._idleMillis){
+            this._sessions.remove(token);
+            return null;
+         }
+         stored.lastUsed = now;
+         return stored;
+      }finally{
+         this._lock.unlock();
+      }
+   }//end use
+
+   private void remove(String token) {
+      this._lock.lock();
+      try{
+         this._sessions.remove(token);
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   /*
+    * The status of a request whose operation ran: 400 when it failed on the
+    * answers it was given, 500 when it failed otherwise.
+    */
+   private static int status(Session s) {
+      if (s.error == null) return 200;
+      return s.error instanceof IllegalArgumentException ? 400 : 500;
+   }
+
+   private void serve(HttpExchange exchange) throws IOException {
+      try{
+         String op = exchange.getRequestURI().getPath().substring(1);
+         if(!"POST".equals(exchange.getRequestMethod())){
+            respond(exchange, 405, "Use POST\n");
+            return;
+         }
+         String body = readBody(exchange.getRequestBody());
+         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+         PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+         BufferedReader in = new BufferedReader(new StringReader(body));
+
+         // operations that do not need a logged in user
+         if(op.equals("createUser")){
+            Session s = new Session(in, out, out);
+            Amazon.run(this._esql, s, op, Amazon::CreateUser);
+            respond(exchange, status(s), buffer);
+            return;
+         }
+         if(op.equals("login")){
+            Session s = new Session(in, out, out);
+            final String[] user = { null };
+            Amazon.run(this._esql, s, op, (esql, t) -> user[0] = Amazon.LogIn(esql, t));
+            if(user[0] == null){
+               respond(exchange, 401, "Invalid name or password\n");
+               return;
+            }
+            String token = newToken();
+            add(token, new Login(s.withStreams(null, null, null)));
+            exchange.getResponseHeaders().set(SESSION_HEADER, token);
+            respond(exchange, 200, "Logged in as " + s.name + "\n");
+            return;
+         }
+
+         String token = exchange.getRequestHeaders().getFirst(SESSION_HEADER);
+         Login stored = token == null ? null : use(token, System.currentTimeMillis());
+         if(stored == null){
+            respond(exchange, 401, "Log in first\n");
+            return;
+         }
+         Session s = stored.session.withStreams(in, out, out);
+         switch(op){
+            case "logout": remove(token); out.println("Logged out"); break;
+            case "viewStores": Amazon.run(this._esql, s, op, Amazon::viewStores); break;
+            case "viewProducts": Amazon.run(this._esql, s, op, Amazon::viewProducts); break;
+            case "placeOrder": Amazon.run(this._esql, s, op, Amazon::placeOrder); break;
+            case "checkout": Amazon.run(this._esql, s, op, Amazon::checkout); break;
+            case "viewRecentOrders": Amazon.run(this._esql, s, op, Amazon::viewRecentOrders); break;
+            case "updateProduct": Amazon.run(this._esql, s, op, Amazon::updateProduct); break;
+            case "viewRecentUpdates": Amazon.run(this._esql, s, op, Amazon::viewRecentUpdates); break;
+            case "viewPopularProducts": Amazon.run(this._esql, s, op, Amazon::viewPopularProducts); break;
+            case "viewTrendingProducts": Amazon.run(this._esql, s, op, Amazon::viewTrendingProducts); break;
+            case "viewPopularCustomers": Amazon.run(this._esql, s, op, Amazon::viewPopularCustomers); break;
+            case "viewHourlySales": Amazon.run(this._esql, s, op, Amazon::viewHourlySales); break;
+            case "viewStoreRevenue": Amazon.run(this._esql, s, op, Amazon::viewStoreRevenue); break;
+            case "viewCustomerRetention": Amazon.run(this._esql, s, op, Amazon::viewCustomerRetention); break;
+            case "placeProductSupplyRequests": Amazon.run(this._esql, s, op, Amazon::placeProductSupplyRequests); break;
+            case "recentStoreOrders": Amazon.run(this._esql, s, op, Amazon::recentStoreOrders); break;
+            case "exportStoreData": Amazon.run(this._esql, s, op, Amazon::exportStoreData); break;
+            case "update": Amazon.run(this._esql, s, op, Amazon::update); break;
+            case "metrics": Amazon.run(this._esql, s, op, Amazon::viewMetrics); break;
+            default:
+               respond(exchange, 404, "Unknown operation: " + op + "\n");
+               return;
+         }
+         // keeps a principal the operation reloaded for the next request
+         stored.session.principal = s.principal;
+         respond(exchange, status(s), buffer);
+      }catch(Exception e){
+         respond(exchange, 500, e.getMessage() + "\n");
+      }finally{
+         exchange.close();
+      }
+   }//end serve
+
+   private String newToken() {
+      byte[] bytes = new byte[16];
+      this._random.nextBytes(bytes);
+      StringBuilder sb = new StringBuilder(32);
+      for(byte b : bytes)
+         sb.append(String.format("%02x", b & 0xff));
+      return sb.toString();
+   }//end newToken
+
+   private static String readBody(InputStream body) throws IOException {
+      return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+   }
+
+   private static void respond(HttpExchange exchange, int status, ByteArrayOutputStream buffer) throws IOException {
+      respond(exchange, status, buffer.toByteArray());
+   }
+
+   private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+      respond(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+   }
+
+   private static void respond(HttpExchange exchange, int status, byte[] bytes) throws IOException {
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+      if(bytes.length > 0){
+         OutputStream os = exchange.getResponseBody();
+         os.write(bytes);
+         os.close();
+      }
+   }//end respond
+}//end AmazonServer
@@ -0,0 +1,436 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a columnar copy of Orders in memory for the manager
+ * reports, so they scan arrays instead of loading the database.
+ *
+ * Every order is a position in four primitive arrays: its listing, its
+ * customer, its units and its time.  A listing is a (storeID, productName)
+ * pair, dictionary encoded, with the product's price from Product; product
+ * names are encoded once more so a product sold by many stores is one id.
+ *
+ * The first use loads Orders and OrdersArchive.  After that, a snapshot
+ * older than refreshMillis is brought up to date on the next report by
+ * reading only the orders numbered above the highest one loaded, less
+ * overlap: keys are handed out in blocks, so an order can commit after
+ * higher numbered ones.  A BitSet of loaded orderNumbers skips the ones
+ * read again.  Prices are reread every pricesMillis.  Readers never block:
+ * they scan the snapshot published last.
+ *
+ * Reports run as fork/join tasks: each task folds a slice of the arrays
+ * into its own partial aggregate, and partials are merged pairwise.  A
+ * slice is never shorter than its partial has cells, so filling and
+ * merging the partials costs no more than scanning the orders.
+ *
+ */
+
+public class Analytics {
+
+   /**
+    * An aggregate of the orders, computed by a parallel scan.
+    */
+   public interface Aggregate<A> {
+      /** Returns an empty partial result. */
+      A create();
+      /** Adds the order at position i of the snapshot to the partial result. */
+      void add(A partial, Snapshot s, int i);
+      /** Returns the merge of two partial results; may reuse either. */
+      A merge(A a, A b);
+   }//end Aggregate
+
+   /**
+    * One published state of the columns.  Positions below size and
+    * listings below listings never change.
+    */
+   public static class Snapshot {
+      public final int size;
+      public final int[] listing;
+      public final int[] customer;
+      public final int[] units;
+      public final long[] time;
+      // the time of the newest order
+      public final long newest;
+
+      public final int listings;
+      public final int[] listingStore;
+      public final int[] listingProduct;
+      public final double[] price;
+      public final String[] products;
+      public final long builtAt;
+
+      Snapshot(int size, int[] listing, int[] customer, int[] units, long[] time, long newest,
+               int listings, int[] listingStore, int[] listingProduct, double[] price, String[] products) {
+         this.size = size;
+         this.listing = listing;
+         this.customer = customer;
+         this.units = units;
+         this.time = time;
+         this.newest = newest;
+         this.listings = listings;
+         this.listingStore = listingStore;
+         this.listingProduct = listingProduct;
+         this.price = price;
+         this.products = products;
+         this.builtAt = System.currentTimeMillis();
+      }
+
+      /** Returns the store of the order at position i. */
+      public int store(int i) { return this.listingStore[this.listing[i]]; }
+
+      /** Returns the product id of the order at position i. */
+      public int product(int i) { return this.listingProduct[this.listing[i]]; }
+   }//end Snapshot
+
+   // fewest positions per fork/join task
+   private static final int SPLIT = 1 << 16;
+   private static final String COLUMNS = "orderNumber, storeID, productName, customerID, unitsOrdered, orderTime";
+
+   private final long _refreshMillis;
+   private final long _pricesMillis;
+   private final int _overlap;
+   private final ForkJoinPool _pool;
+
+   private volatile Snapshot _snapshot = null;
+   // held while the snapshot is brought up to date, so only one caller reads
+   private final ReentrantLock _refreshing = new ReentrantLock();
+
+   // the columns being appended to, owned by the refreshing caller
+   private int _size = 0;
+   private int[] _listing = new int[1024];
+   private int[] _customer = new int[1024];
+   private int[] _units = new int[1024];
+   private long[] _time = new long[1024];
+   private final BitSet _loaded = new BitSet();
+   private int _maxOrder = 0;
+   private long _newest = 0;
+
+   // dictionaries
+   private final HashMap<String, Integer> _listingIds = new HashMap<String, Integer>();
+   private int _listings = 0;
+   private int[] _listingStore = new int[256];
+   private int[] _listingProduct = new int[256];
+   private double[] _price = new double[256];
+   private final HashMap<String, Integer> _productIds = new HashMap<String, Integer>();
+   private final List<String> _products = new ArrayList<String>();
+   private long _pricesAt = 0;
+
+   // metrics
+   private long _refreshes = 0;
+   private long _lastRefreshRows = 0;
+   private long _lastRefreshMillis = 0;
+
+   /**
+    * Creates a new, empty snapshot; nothing is read until the first report
+    *
+    * @param refreshMillis how old the snapshot may get before a report
+    *        brings it up to date
+    * @param pricesMillis how old the prices may get
+    * @param overlap how many orderNumbers below the highest one loaded are
+    *        read again on every refresh
+    * @param threads the parallelism of the scans
+    */
+   public Analytics(long refreshMillis, long pricesMillis, int overlap, int threads) {
+      this._refreshMillis = refreshMillis;
+      this._pricesMillis = pricesMillis;
+      this._overlap = overlap;
+      this._pool = new ForkJoinPool(threads);
+   }//end Analytics
+
+   /**
+    * Returns the snapshot, loading or bringing it up to date first when it
+    * is older than refreshMillis.
+    */
+   public Snapshot snapshot(Amazon esql) throws SQLException {
+      Snapshot s = this._snapshot;
+      if (s == null || System.currentTimeMillis() - s.builtAt > this._refreshMillis){
+         this._refreshing.lock();
+         try{
+            s = this._snapshot;
+            if (s == null || System.currentTimeMillis() - s.builtAt > this._refreshMillis){
+               refresh(esql);
+               s = this._snapshot;
+            }
+         }finally{
+            this._refreshing.unlock();
+         }
+      }
+      return s;
+   }//end snapshot
+
+   /**
+    * Reads the orders added since the last refresh (every order the first
+    * time) and publishes a new snapshot.
+    */
+   public void refresh(Amazon esql) throws SQLException {
+      this._refreshing.lock();
+      try{
+         long start = System.currentTimeMillis();
+         int before = this._size;
+         if (this._snapshot == null){
+            esql.executeQueryStreaming("SELECT " + COLUMNS + " FROM Orders UNION ALL SELECT " + COLUMNS + " FROM OrdersArchive", this::append);
+         }else{
+            esql.executeQueryStreaming("SELECT " + COLUMNS + " FROM Orders WHERE orderNumber > ?", this::append, Math.max(0, this._maxOrder - this._overlap));
+         }
+         if (start - this._pricesAt > this._pricesMillis){
+            esql.executeQueryStreaming("SELECT storeID, productName, pricePerUnit FROM Product", row -> {
+               Integer id = this._listingIds.get(key(row.getInt(1), row.getTrimmed(2)));
+               if (id != null) this._price[id] = row.getDouble(3);
+            });
+            this._pricesAt = start;
+         }
+         // readers keep the price array they have; new rows only go past size
+         this._snapshot = new Snapshot(this._size, this._listing, this._customer, this._units, this._time, this._newest,
+                                       this._listings, this._listingStore, this._listingProduct, this._price.clone(),
+                                       this._products.toArray(new String[0]));
+         this._refreshes++;
+         this._lastRefreshRows = this._size - before;
+         this._lastRefreshMillis = System.currentTimeMillis() - start;
+      }finally{
+         this._refreshing.unlock();
+      }
+   }//end refresh
+
+   private static String key(int storeID, String productName) {
+      return storeID + "\u0000" + productName;
+   }
+
+   private void append(Row row) throws SQLException {
+      int number = row.getInt(1);
+      if (this._loaded.get(number)) return;
+      this._loaded.set(number);
+      this._maxOrder = Math.max(this._maxOrder, number);
+      int n = this._size;
+      if (n == this._listing.length){
+         int capacity = n * 2;
+         this._listing = Arrays.copyOf(this._listing, capacity);
+         this._customer = Arrays.copyOf(this._customer, capacity);
+         this._units = Arrays.copyOf(this._units, capacity);
+         this._time = Arrays.copyOf(this._time, capacity);
+      }
+      this._listing[n] = listing(row.getInt(2), row.getTrimmed(3));
+      this._customer[n] = row.getInt(4);
+      this._units[n] = row.getInt(5);
+      this._time[n] = row.getTimestamp(6).getTime();
+      this._newest = Math.max(this._newest, this._time[n]);
+      this._size = n + 1;
+   }//end append
+
+   /*
+    * Returns the id of a (store, product) pair, adding it when new.  Its
+    * price is 0 until the prices are next read.
+    */
+   private int listing(int storeID, String productName) {
+      String key = key(storeID, productName);
+      Integer id = this._listingIds.get(key);
+      if (id != null) return id;
+      Integer product = this._productIds.get(productName);
+      if (product == null){
+         product = this._products.size();
+         this._products.add(productName);
+         this._productIds.put(productName, product);
+      }
+      int l = this._listings++;
+      if (l == this._listingStore.length){
+         this._listingStore = Arrays.copyOf(this._listingStore, l * 2);
+         this._listingProduct = Arrays.copyOf(this._listingProduct, l * 2);
+         this._price = Arrays.copyOf(this._price, l * 2);
+      }
+      this._listingStore[l] = storeID;
+      this._listingProduct[l] = product;
+      this._listingIds.put(key, l);
+      // read its price on this refresh
+      this._pricesAt = 0;
+      return l;
+   }//end listing
+
+   /*
+    * Folds positions from..to-1 of a snapshot, splitting in halves down to
+    * leaf positions.
+    */
+   private static class Scan<A> extends RecursiveTask<A> {
+      private static final long serialVersionUID = 1L;
+      final transient Aggregate<A> agg;
+      final transient Snapshot s;
+      final int from, to, leaf;
+
+      Scan(Aggregate<A> agg, Snapshot s, int from, int to, int leaf) {
+         this.agg = agg;
+         this.s = s;
+         this.from = from;
+         this.to = to;
+         this.leaf = leaf;
+      }
+
+      protected A compute() {
+         if (this.to - this.from <= this.leaf){
+            A partial = this.agg.create();
+            for (int i = this.from; i < this.to; ++i) this.agg.add(partial, this.s, i);
+            return partial;
+         }
+         int middle = (this.from + this.to) >>> 1;
+         Scan<A> left = new Scan<A>(this.agg, this.s, this.from, middle, this.leaf);
+         left.fork();
+         A right = new Scan<A>(this.agg, this.s, middle, this.to, this.leaf).compute();
+         return this.agg.merge(left.join(), right);
+      }
+   }//end Scan
+
+   /**
+    * Computes an aggregate over every order of the snapshot in parallel.
+    * cells is the size of one partial result: each task folds at least
+    * that many orders, so a small snapshot with a large partial is one task.
+    */
+   public <A> A scan(Snapshot s, Aggregate<A> agg, long cells) {
+      int leaf = (int) Math.min(Integer.MAX_VALUE, Math.max(SPLIT, cells));
+      return this._pool.invoke(new Scan<A>(agg, s, 0, s.size, leaf));
+   }
+
+   /**
+    * Units sold of every product of a store (0 for every store) in each of
+    * the last hours hours up to the newest order: result[h][p] is hour h,
+    * oldest first, which starts at hourlyStart(), and product id p.
+    */
+   public long[][] hourlySales(final Snapshot s, final int storeID, final int hours) {
+      final long begin = hourlyStart(s, hours);
+      final long end = begin + hours * 3600000L;
+      final int products = s.products.length;
+      return scan(s, new Aggregate<long[][]>(){
+         public long[][] create(){ return new long[hours][products]; }
+         public void add(long[][] sales, Snapshot s, int i){
+            long t = s.time[i];
+            if (t < begin || t >= end || (storeID != 0 && s.store(i) != storeID)) return;
+            sales[(int) ((t - begin) / 3600000L)][s.product(i)] += s.units[i];
+         }
+         public long[][] merge(long[][] a, long[][] b){
+            for (int h = 0; h < hours; ++h)
+               for (int p = 0; p < products; ++p) a[h][p] += b[h][p];
+            return a;
+         }
+      }, (long) hours * products);
+   }//end hourlySales
+
+   /**
+    * Returns the start of hour 0 of hourlySales, in milliseconds.
+    */
+   public static long hourlyStart(Snapshot s, int hours) {
+      return (s.newest / 3600000L + 1 - hours) * 3600000L;
+   }
+
+   /**
+    * Orders, units and revenue of every listing: result[0], [1] and [2]
+    * indexed by listing id.  Revenue is units times the current price.
+    */
+   public double[][] listingSales(Snapshot s) {
+      final int listings = s.listings;
+      return scan(s, new Aggregate<double[][]>(){
+         public double[][] create(){ return new double[3][listings]; }
+         public void add(double[][] sales, Snapshot s, int i){
+            int l = s.listing[i];
+            sales[0][l] += 1;
+            sales[1][l] += s.units[i];
+            sales[2][l] += s.units[i] * s.price[l];
+         }
+         public double[][] merge(double[][] a, double[][] b){
+            for (int k = 0; k < 3; ++k)
+               for (int l = 0; l < listings; ++l) a[k][l] += b[k][l];
+            return a;
+         }
+      }, 3L * listings);
+   }//end listingSales
+
+   /**
+    * Customer retention of a store (0 for every store) by monthly cohort:
+    * the customers whose first order there was in a month, and how many of
+    * them ordered again 1, 2 and 3 months later.  Returns one row per
+    * cohort, oldest first: { year * 12 + month - 1, customers, m+1, m+2, m+3 }.
+    */
+   public List<int[]> retention(Snapshot s, final int storeID) {
+      int maxCustomer = 0;
+      for (int i = 0; i < s.size; ++i) maxCustomer = Math.max(maxCustomer, s.customer[i]);
+      final int customers = maxCustomer + 1;
+      final ZoneId zone = ZoneId.systemDefault();
+      // each customer's first month, then the months after it they ordered in
+      final int[] first = scan(s, new Aggregate<int[]>(){
+         public int[] create(){
+            int[] f = new int[customers];
+            Arrays.fill(f, Integer.MAX_VALUE);
+            return f;
+         }
+         public void add(int[] f, Snapshot s, int i){
+            if (storeID != 0 && s.store(i) != storeID) return;
+            int m = month(s.time[i], zone);
+            if (m < f[s.customer[i]]) f[s.customer[i]] = m;
+         }
+         public int[] merge(int[] a, int[] b){
+            for (int c = 0; c < customers; ++c) a[c] = Math.min(a[c], b[c]);
+            return a;
+         }
+      }, customers);
+      int[] later = scan(s, new Aggregate<int[]>(){
+         public int[] create(){ return new int[customers]; }
+         public void add(int[] mask, Snapshot s, int i){
+            if (storeID != 0 && s.store(i) != storeID) return;
+            int after = month(s.time[i], zone) - first[s.customer[i]];
+            if (after >= 1 && after <= 3) mask[s.customer[i]] |= 1 << after;
+         }
+         public int[] merge(int[] a, int[] b){
+            for (int c = 0; c < customers; ++c) a[c] |= b[c];
+            return a;
+         }
+      }, customers);
+      TreeMap<Integer, int[]> cohorts = new TreeMap<Integer, int[]>();
+      for (int c = 0; c < customers; ++c){
+         if (first[c] == Integer.MAX_VALUE) continue;
+         int[] row = cohorts.get(first[c]);
+         if (row == null) cohorts.put(first[c], row = new int[]{ first[c], 0, 0, 0, 0 });
+         row[1]++;
+         for (int k = 1; k <= 3; ++k) if ((later[c] & (1 << k)) != 0) row[1 + k]++;
+      }
+      return new ArrayList<int[]>(cohorts.values());
+   }//end retention
+
+   private static int month(long millis, ZoneId zone) {
+      LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone);
+      return t.getYear() * 12 + t.getMonthValue() - 1;
+   }
+
+   /**
+    * Stops the scan threads.
+    */
+   public void close() {
+      this._pool.shutdown();
+   }
+
+   public String toString() {
+      Snapshot s = this._snapshot;
+      if (s == null) return "analytics: not loaded";
+      return String.format("analytics: %d orders, %d listings, %d products, %d refreshes (last %d rows in %d ms), %d s old",
+                           s.size, s.listings, s.products.length, this._refreshes, this._lastRefreshRows, this._lastRefreshMillis,
+                           (System.currentTimeMillis() - s.builtAt) / 1000);
+   }
+}//end Analytics
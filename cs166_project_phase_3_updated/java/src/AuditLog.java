@@ -0,0 +1,282 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class writes the ProductUpdates audit rows off the request path.
+ *
+ * append() takes the row's updateNumber and time at once and queues it; a
+ * writer thread inserts up to batchSize queued rows in one transaction,
+ * waiting at most flushMillis for a batch to fill.  When the queue is full
+ * append() waits up to blockMillis for room and then inserts the row
+ * itself, so a slow database slows the callers down instead of growing the
+ * queue or losing rows.  A batch the database rejects is retried row by
+ * row; a row that still fails is reported and counted, as it was committed
+ * business-wise already.
+ *
+ * flush() waits for the rows appended so far, for readers that want to see
+ * their own updates; close() writes everything still queued.
+ *
+ */
+
+public class AuditLog {
+
+   private static final String INSERT_UPDATE =
+      "INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, ?, ?)";
+
+   /*
+    * A queued ProductUpdates row.
+    */
+   private static class Update {
+      final int updateNumber;
+      final int managerID;
+      final int storeID;
+      final String productName;
+      final Timestamp updatedOn;
+      final long sequence;
+
+      Update(int updateNumber, int managerID, int storeID, String productName, Timestamp updatedOn, long sequence) {
+         this.updateNumber = updateNumber;
+         this.managerID = managerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.updatedOn = updatedOn;
+         this.sequence = sequence;
+      }
+   }//end Update
+
+   private final Amazon _esql;
+   private final int _batchSize;
+   private final long _flushMillis;
+   private final long _blockMillis;
+
+   private final ArrayBlockingQueue<Update> _queue;
+   private final Thread _writer;
+   private volatile boolean _running = true;
+
+   // rows appended, and rows done (written or failed), for flush()
+   private final AtomicLong _appended = new AtomicLong();
+   private long _done = 0;
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _progress = this._lock.newCondition();
+
+   // metrics
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _batchedRows = new AtomicLong();
+   private final AtomicLong _maxBatch = new AtomicLong();
+   private final AtomicLong _maxDepth = new AtomicLong();
+   private final AtomicLong _blocked = new AtomicLong();
+   private final AtomicLong _inline = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+
+   /**
+    * Creates a new audit log and starts its writer thread
+    *
+    * @param esql the database the rows are written to
+    * @param batchSize the most rows written in one transaction
+    * @param flushMillis how long the writer waits for a batch to fill
+    * @param capacity the most rows queued
+    * @param blockMillis how long append waits for room in a full queue
+    */
+   public AuditLog(Amazon esql, int batchSize, long flushMillis, int capacity, long blockMillis) {
+      this._esql = esql;
+      this._batchSize = batchSize;
+      this._flushMillis = flushMillis;
+      this._blockMillis = blockMillis;
+      this._queue = new ArrayBlockingQueue<Update>(capacity);
+      this._writer = new Thread(new Runnable(){
+         public void run(){ writeLoop(); }
+      }, "amazon-audit-writer");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end AuditLog
+
+   /**
+    * Records that a manager updated a product of a store, now.
+    *
+    * @return the updateNumber of the row
+    * @throws java.sql.SQLException when no key could be allocated, or the
+    *         queue stayed full and writing the row directly failed
+    */
+   public int append(int managerID, int storeID, String productName) throws SQLException {
+      Update u = new Update(this._esql.nextKey(KeyAllocator.PRODUCT_UPDATES), managerID, storeID, productName.trim(),
+                            new Timestamp(System.currentTimeMillis()), this._appended.incrementAndGet());
+      try{
+         if (!this._queue.offer(u)){
+            this._blocked.incrementAndGet();
+            if (!this._running || !this._queue.offer(u, this._blockMillis, TimeUnit.MILLISECONDS)){
+               // still full: write it ourselves
+               this._inline.incrementAndGet();
+               try{
+                  insert(u);
+               }finally{
+                  done(1);
+               }
+               return u.updateNumber;
+            }
+         }
+         if (!this._running && this._queue.remove(u)){
+            // queued after close() emptied the queue: write it ourselves
+            this._inline.incrementAndGet();
+            try{
+               insert(u);
+            }finally{
+               done(1);
+            }
+            return u.updateNumber;
+         }
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         done(1);
+         throw new SQLException("Interrupted while queueing the product update");
+      }
+      int depth = this._queue.size();
+      long max = this._maxDepth.get();
+      while (depth > max && !this._maxDepth.compareAndSet(max, depth)) max = this._maxDepth.get();
+      return u.updateNumber;
+   }//end append
+
+   /**
+    * Waits until the rows appended before this call have been written, at
+    * most timeoutMillis.
+    *
+    * @return true when they have
+    */
+   public boolean flush(long timeoutMillis) throws InterruptedException {
+      long target = this._appended.get();
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      this._lock.lock();
+      try{
+         while (this._done < target){
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) return false;
+            this._progress.awaitNanos(wait);
+         }
+         return true;
+      }finally{
+         this._lock.unlock();
+      }
+   }//end flush
+
+   private void done(int rows) {
+      this._lock.lock();
+      try{
+         this._done += rows;
+         this._progress.signalAll();
+      }finally{
+         this._lock.unlock();
+      }
+   }//end done
+
+   private void insert(Update u) throws SQLException {
+      this._esql.executeUpdate(INSERT_UPDATE, u.updateNumber, u.managerID, u.storeID, u.productName, u.updatedOn);
+   }
+
+   /*
+    * Runs until close() clears _running and the queue is empty.  Every row
+    * taken off the queue is written, or counted as failed.
+    */
+   private void writeLoop() {
+      List<Update> batch = new ArrayList<Update>(this._batchSize);
+      while (this._running || !this._queue.isEmpty()){
+         try{
+            Update first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) continue;
+            batch.add(first);
+            long deadline = System.nanoTime() + this._flushMillis * 1000000L;
+            while (batch.size() < this._batchSize){
+               this._queue.drainTo(batch, this._batchSize - batch.size());
+               long wait = deadline - System.nanoTime();
+               if (batch.size() >= this._batchSize || wait <= 0 || !this._running) break;
+               Update next = this._queue.poll(wait, TimeUnit.NANOSECONDS);
+               if (next == null) break;
+               batch.add(next);
+            }
+         }catch (InterruptedException e){
+            // not how the writer is stopped: write what was collected
+         }
+         try{
+            if (!batch.isEmpty()) write(batch);
+         }catch (RuntimeException e){
+            System.err.println("Warning - Unable to write " + batch.size() + " product updates: " + e.getMessage());
+            this._failed.addAndGet(batch.size());
+         }finally{
+            if (!batch.isEmpty()) done(batch.size());
+            batch.clear();
+         }
+      }
+   }//end writeLoop
+
+   /*
+    * Writes a batch in one transaction, or row by row when it is rejected.
+    */
+   private void write(final List<Update> batch) {
+      try{
+         this._esql.executeInTransaction(tx -> {
+            Transaction.Batch rows = tx.batch(INSERT_UPDATE);
+            for (Update u : batch) rows.add(u.updateNumber, u.managerID, u.storeID, u.productName, u.updatedOn);
+            rows.execute();
+            return Boolean.TRUE;
+         });
+         this._batches.incrementAndGet();
+         this._batchedRows.addAndGet(batch.size());
+         long max = this._maxBatch.get();
+         while (batch.size() > max && !this._maxBatch.compareAndSet(max, batch.size())) max = this._maxBatch.get();
+      }catch (SQLException e){
+         for (Update u : batch){
+            try{
+               insert(u);
+            }catch (SQLException one){
+               System.err.println("Warning - Unable to write product update " + u.updateNumber + ": " + one.getMessage());
+               this._failed.incrementAndGet();
+            }
+         }
+      }
+   }//end write
+
+   /**
+    * Writes every queued row and stops the writer thread.
+    */
+   public void close() {
+      this._running = false;
+      try{
+         this._writer.join(10 * 1000L);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+      // the writer did not get to them
+      List<Update> left = new ArrayList<Update>();
+      this._queue.drainTo(left);
+      if (!left.isEmpty()){
+         write(left);
+         done(left.size());
+      }
+   }//end close
+
+   public String toString() {
+      long batches = this._batches.get();
+      return String.format("audit: %d queued (max %d), %d batches (%.1f rows/batch, max %d), %d blocked, %d written directly, %d failed",
+                           this._queue.size(), this._maxDepth.get(), batches,
+                           batches == 0 ? 0.0 : (double) this._batchedRows.get() / batches, this._maxBatch.get(),
+                           this._blocked.get(), this._inline.get(), this._failed.get());
+   }
+}//end AuditLog
@@ -0,0 +1,400 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This program loads the seven CSV datasets from any local directory.
+ *
+ * The files are read on the client and inserted in large multi-row INSERTs, one
+ * transaction per batch, by as many workers as the connection pool has
+ * connections (amazon.pool.max).  Tables that do not reference each other
+ * are loaded at the same time; a table starts once every table it
+ * references has been loaded.  The indexes of create_indexes.sql are
+ * dropped before and built after the load, the Orders and ProductUpdates
+ * partitions of the loaded months are created, the serial sequences are
+ * moved past the loaded keys, the sales aggregates are rebuilt and the
+ * tables are analyzed.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar BulkLoader &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;data dir&gt;
+ *         [--truncate] [--batch rows] [--indexes create_indexes.sql]
+ *
+ * The first line of each file names its columns, in any order.
+ *
+ */
+
+public class BulkLoader {
+
+   public static final int DEFAULT_BATCH_SIZE = 5000;
+
+   // not loaded from files, but truncated with the loaded tables:
+   // ProductLevels references Product, and archived orders and updates
+   // would otherwise outlive a reload
+   private static final String[] DEPENDENT_TABLES = { "ProductLevels", "OrdersArchive", "ProductUpdatesArchive" };
+
+   /*
+    * A table, its file and the tables it references.  Column types are
+    * I integer, F decimal or float, S char, D date and T timestamp.
+    */
+   private static class Table {
+      final String name;
+      final String file;
+      final Map<String, Character> types = new HashMap<String, Character>();
+      final String serial;
+      final String[] references;
+
+      // filled in by the load
+      long rows = 0;
+      long nanos = 0;
+
+      Table(String name, String file, String columns, String types, String serial, String... references) {
+         this.name = name;
+         this.file = file;
+         String[] c = columns.split(",");
+         for (int i = 0; i < c.length; ++i)
+            this.types.put(c[i].toLowerCase(), types.charAt(i));
+         this.serial = serial;
+         this.references = references;
+      }
+   }//end Table
+
+   private final Amazon _esql;
+   private final File _dir;
+   private final int _batchSize;
+   private final int _workers;
+   private final List<Table> _order = new ArrayList<Table>();
+
+   /**
+    * Creates a new loader
+    *
+    * @param esql the database to load
+    * @param dir the directory of the CSV files
+    * @param batchSize rows per batch and transaction
+    * @param workers batches inserted at the same time
+    */
+   public BulkLoader(Amazon esql, File dir, int batchSize, int workers) {
+      this._esql = esql;
+      this._dir = dir;
+      this._batchSize = batchSize;
+      this._workers = workers;
+      add(new Table("Users", "users.csv", "userID,name,password,latitude,longitude,type", "ISSFFS", "userID"));
+      add(new Table("Warehouse", "warehouse.csv", "WarehouseID,area,latitude,longitude", "IIFF", null));
+      add(new Table("Store", "stores.csv", "storeID,latitude,longitude,managerID,dateEstablished", "IFFID", null, "Users"));
+      add(new Table("Product", "products.csv", "storeID,productName,numberOfUnits,pricePerUnit", "ISIF", null, "Store"));
+      add(new Table("Orders", "orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime",
+                    "IIISIT", "orderNumber", "Users", "Product"));
+      add(new Table("ProductSupplyRequests", "productSupplyRequests.csv", "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested",
+                    "IIIISI", "requestNumber", "Users", "Warehouse", "Product"));
+      add(new Table("ProductUpdates", "productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn",
+                    "IIIST", "updateNumber", "Users", "Product"));
+   }//end BulkLoader
+
+   private void add(Table t) {
+      this._order.add(t);
+   }
+
+   /**
+    * Empties every table, with the tables that reference them or hold their
+    * archived rows, when the database has them.
+    */
+   public void truncate() throws SQLException {
+      StringBuilder sql = new StringBuilder("TRUNCATE ");
+      for (int i = 0; i < this._order.size(); ++i)
+         sql.append(i == 0 ? "" : ", ").append(this._order.get(i).name);
+      for (String table : DEPENDENT_TABLES){
+         Boolean exists = this._esql.executeQueryForObject("SELECT to_regclass(?) IS NOT NULL", row -> row.getBoolean(1), table.toLowerCase());
+         if (Boolean.TRUE.equals(exists)) sql.append(", ").append(table);
+      }
+      this._esql.executeUpdate(sql.toString());
+      this._esql.storesChanged();
+   }//end truncate
+
+   /**
+    * Loads every table, each after the tables it references.
+    *
+    * @throws java.sql.SQLException when a batch failed; batches already
+    *         committed stay in the database
+    */
+   public void load() throws SQLException, IOException {
+      ExecutorService tables = Executors.newCachedThreadPool();
+      ExecutorService workers = Executors.newFixedThreadPool(this._workers);
+      try{
+         Map<String, CompletableFuture<Void>> loaded = new HashMap<String, CompletableFuture<Void>>();
+         for (final Table t : this._order){
+            CompletableFuture<?>[] refs = new CompletableFuture<?>[t.references.length];
+            for (int i = 0; i < refs.length; ++i)
+               refs[i] = loaded.get(t.references[i]);
+            loaded.put(t.name, CompletableFuture.allOf(refs).thenRunAsync(() -> {
+               try{
+                  load(t, workers);
+               }catch (Exception e){
+                  throw new CompletionException(e);
+               }
+            }, tables));
+         }
+         CompletableFuture.allOf(loaded.values().toArray(new CompletableFuture<?>[0])).join();
+      }catch (CompletionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof IOException) throw (IOException) cause;
+         throw e;
+      }finally{
+         workers.shutdownNow();
+         tables.shutdownNow();
+         // new stores and managers, also when only some batches committed
+         this._esql.storesChanged();
+      }
+   }//end load
+
+   /*
+    * Streams one file into its table.  At most two batches per worker are
+    * parsed ahead, so memory does not grow with the file.
+    */
+   private void load(Table t, ExecutorService workers) throws Exception {
+      long start = System.nanoTime();
+      BufferedReader in = new BufferedReader(new FileReader(new File(this._dir, t.file)), 1 << 16);
+      final Semaphore ahead = new Semaphore(this._workers * 2);
+      final AtomicReference<Exception> error = new AtomicReference<Exception>();
+      List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+      try{
+         String header = in.readLine();
+         if (header == null) return;
+         String[] columns = split(header);
+         char[] types = new char[columns.length];
+         StringBuilder insert = new StringBuilder("INSERT INTO ").append(t.name).append(" (");
+         StringBuilder values = new StringBuilder(") VALUES (");
+         for (int i = 0; i < columns.length; ++i){
+            Character type = t.types.get(columns[i].trim().toLowerCase());
+            if (type == null) throw new SQLException(t.file + ": unknown column " + columns[i]);
+            types[i] = type;
+            insert.append(i == 0 ? "" : ", ").append(columns[i].trim());
+            values.append(i == 0 ? "?" : ", ?");
+         }
+         final String sql = insert.append(values).append(")").toString();
+
+         List<Object[]> batch = new ArrayList<Object[]>(this._batchSize);
+         String line;
+         long number = 1;
+         while ((line = in.readLine()) != null && error.get() == null){
+            number++;
+            if (line.isEmpty()) continue;
+            batch.add(parse(t.file, number, split(line), types));
+            if (batch.size() == this._batchSize){
+               ahead.acquire();
+               final List<Object[]> rows = batch;
+               pending.add(CompletableFuture.runAsync(() -> {
+                  try{
+                     insert(sql, rows);
+                  }catch (Exception e){
+                     error.compareAndSet(null, e);
+                  }finally{
+                     ahead.release();
+                  }
+               }, workers));
+               t.rows += rows.size();
+               batch = new ArrayList<Object[]>(this._batchSize);
+            }
+         }
+         if (!batch.isEmpty() && error.get() == null){
+            insert(sql, batch);
+            t.rows += batch.size();
+         }
+         CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+         if (error.get() != null) throw error.get();
+      }finally{
+         in.close();
+         t.nanos = System.nanoTime() - start;
+      }
+   }//end load
+
+   private void insert(final String sql, final List<Object[]> rows) throws SQLException {
+      this._esql.executeInTransaction(tx -> {
+         Transaction.Batch batch = tx.batch(sql);
+         for (Object[] row : rows) batch.add(row);
+         return batch.execute();
+      });
+   }//end insert
+
+   /*
+    * Splits one CSV line; fields may be quoted and contain "" and commas.
+    */
+   static String[] split(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); ++i){
+         char c = line.charAt(i);
+         if (quoted){
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){ field.append('"'); i++; }
+            else if (c == '"') quoted = false;
+            else field.append(c);
+         }else if (c == '"'){
+            quoted = true;
+         }else if (c == ','){
+            fields.add(field.toString());
+            field.setLength(0);
+         }else{
+            field.append(c);
+         }
+      }
+      fields.add(field.toString());
+      return fields.toArray(new String[fields.size()]);
+   }//end split
+
+   private static Object[] parse(String file, long number, String[] fields, char[] types) throws SQLException {
+      if (fields.length != types.length)
+         throw new SQLException(file + ":" + number + ": expected " + types.length + " fields, found " + fields.length);
+      Object[] row = new Object[fields.length];
+      try{
+         for (int i = 0; i < fields.length; ++i){
+            String f = fields[i].trim();
+            if (f.isEmpty()) continue;
+            switch (types[i]){
+               case 'I': row[i] = Integer.valueOf(f); break;
+               case 'F': row[i] = Double.valueOf(f); break;
+               case 'D': row[i] = date(f); break;
+               case 'T': row[i] = Timestamp.valueOf(f); break;
+               default: row[i] = f; break;
+            }
+         }
+      }catch (IllegalArgumentException e){
+         throw new SQLException(file + ":" + number + ": " + e.getMessage());
+      }
+      return row;
+   }//end parse
+
+   /*
+    * Dates are either yyyy-mm-dd or m/d/yyyy, as in stores.csv.
+    */
+   private static Date date(String f) {
+      String[] mdy = f.split("/");
+      if (mdy.length != 3) return Date.valueOf(f);
+      return Date.valueOf(mdy[2] + "-" + mdy[0] + "-" + mdy[1]);
+   }//end date
+
+   /**
+    * Moves every serial sequence past the highest loaded key.
+    */
+   public void fixSequences() throws SQLException {
+      for (Table t : this._order){
+         if (t.serial == null) continue;
+         this._esql.executeQueryForObject(
+            "SELECT setval(pg_get_serial_sequence(?, ?), COALESCE(MAX(" + t.serial + "), 0) + 1, false) FROM " + t.name,
+            row -> row.getLong(1), t.name.toLowerCase(), t.serial.toLowerCase());
+      }
+   }//end fixSequences
+
+   /**
+    * Updates the planner statistics of every table.
+    */
+   public void analyze() throws SQLException {
+      for (Table t : this._order)
+         this._esql.executeUpdate("ANALYZE " + t.name);
+   }//end analyze
+
+   /**
+    * Returns the statements of a SQL script, without comments.
+    */
+   static List<String> statements(File script) throws IOException {
+      List<String> result = new ArrayList<String>();
+      StringBuilder sql = new StringBuilder();
+      BufferedReader in = new BufferedReader(new FileReader(script));
+      try{
+         String line;
+         while ((line = in.readLine()) != null){
+            int comment = line.indexOf("--");
+            if (comment >= 0) line = line.substring(0, comment);
+            sql.append(line).append('\n');
+            int end;
+            while ((end = sql.indexOf(";")) >= 0){
+               String s = sql.substring(0, end).trim();
+               if (!s.isEmpty()) result.add(s);
+               sql.delete(0, end + 1);
+            }
+         }
+      }finally{
+         in.close();
+      }
+      if (sql.toString().trim().length() > 0) result.add(sql.toString().trim());
+      return result;
+   }//end statements
+
+   public String toString() {
+      StringBuilder sb = new StringBuilder(String.format("%-22s %10s %9s %12s%n", "table", "rows", "seconds", "rows/s"));
+      for (Table t : this._order){
+         double seconds = t.nanos / 1e9;
+         sb.append(String.format("%-22s %10d %9.2f %12.0f%n", t.name, t.rows, seconds, seconds == 0 ? 0.0 : t.rows / seconds));
+      }
+      return sb.toString();
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println("Usage: java BulkLoader <dbname> <port> <user> <data dir> [--truncate] [--batch rows] [--indexes create_indexes.sql]");
+         return;
+      }
+      File dir = new File(args[3]);
+      boolean truncate = false;
+      int batchSize = DEFAULT_BATCH_SIZE;
+      File indexes = new File(dir, "../sql/src/create_indexes.sql");
+      for (int i = 4; i < args.length; ++i){
+         if (args[i].equals("--truncate")) truncate = true;
+         else if (args[i].equals("--batch")) batchSize = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--indexes")) indexes = new File(args[++i]);
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool.Config config = new ConnectionPool.Config();
+      Amazon esql = new Amazon(args[0], args[1], args[2], "", config);
+      try{
+         List<String> script = indexes.exists() ? statements(indexes) : new ArrayList<String>();
+         BulkLoader loader = new BulkLoader(esql, dir, batchSize, config.maxSize);
+         long start = System.nanoTime();
+         if (truncate) loader.truncate();
+         // indexes are built once the data is in
+         for (String sql : script)
+            if (sql.toUpperCase().startsWith("DROP INDEX")) esql.executeUpdate(sql);
+         loader.load();
+         System.out.print(loader);
+         // rows of months without a partition went to the default ones
+         Partitions.split(esql);
+
+         long t0 = System.nanoTime();
+         for (String sql : script) esql.executeUpdate(sql);
+         System.out.printf("indexes built in %.2f s%n", (System.nanoTime() - t0) / 1e9);
+         loader.fixSequences();
+         Sales.rebuild(esql);
+         loader.analyze();
+         System.out.printf("loaded in %.2f s%n", (System.nanoTime() - start) / 1e9);
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+}//end BulkLoader
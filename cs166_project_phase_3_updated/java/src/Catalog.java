@@ -0,0 +1,395 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class caches the product list of each store.  A store's list is
+ * read from the database on first use, in one query that also tells
+ * whether the store exists, and kept for at most amazon.catalog.ttl ms
+ * (default 60 s).  At most amazon.catalog.stores (default 1000) stores are
+ * kept, the least recently read are dropped first.  Concurrent misses on
+ * one store share a single load.
+ *
+ * Writes made through this process update the cached lists in place:
+ * Inventory for stock, updateProduct for prices.  With
+ * amazon.catalog.listen set to a poll interval in ms, the cache also
+ * listens on a channel per cached store (amazon_catalog_<storeID>) and
+ * drops a store's list when another process sends NOTIFY on it; publish()
+ * sends one after a catalog write.
+ *
+ */
+
+public class Catalog {
+
+   public static final String CHANNEL = "amazon_catalog_";
+
+   /**
+    * One product of a store, as last read or written.
+    */
+   public static class Product {
+      public final String productName;
+      public final int numberOfUnits;
+      public final double pricePerUnit;
+
+      Product(String productName, int numberOfUnits, double pricePerUnit) {
+         this.productName = productName;
+         this.numberOfUnits = numberOfUnits;
+         this.pricePerUnit = pricePerUnit;
+      }
+   }//end Product
+
+   /*
+    * A store's products by name, in the order the database returned them;
+    * null when the store does not exist.
+    */
+   private static class Entry {
+      final CompletableFuture<LinkedHashMap<String, Product>> products = new CompletableFuture<LinkedHashMap<String, Product>>();
+      final long loadedAt = System.currentTimeMillis();
+      volatile boolean stale = false;
+   }//end Entry
+
+   private final long _ttlMillis;
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final LinkedHashMap<Integer, Entry> _stores;
+
+   // LISTEN and UNLISTEN commands for the listener to run
+   private final ConcurrentLinkedQueue<String> _commands = new ConcurrentLinkedQueue<String>();
+   private final long _listenMillis;
+   private final Thread _listener;
+   private volatile boolean _running = true;
+
+   // metrics
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _loadNanos = new AtomicLong();
+   private final AtomicLong _maxLoadNanos = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+   private final AtomicLong _invalidations = new AtomicLong();
+   private final AtomicLong _notifications = new AtomicLong();
+
+   /**
+    * Creates a new cache
+    *
+    * @param maxStores stores kept at the same time
+    * @param ttlMillis how long a store's list is kept
+    * @param listenMillis poll interval for notifications; 0 does not listen
+    */
+   public Catalog(final Amazon esql, final int maxStores, long ttlMillis, long listenMillis) {
+      this._ttlMillis = ttlMillis;
+      this._listenMillis = listenMillis;
+      this._stores = new LinkedHashMap<Integer, Entry>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest){
+            if (size() <= maxStores) return false;
+            _evictions.incrementAndGet();
+            unlisten(eldest.getKey());
+            return true;
+         }
+      };
+      if (listenMillis <= 0){
+         this._listener = null;
+         return;
+      }
+      this._listener = new Thread(new Runnable(){
+         public void run(){ listenLoop(esql); }
+      }, "amazon-catalog-listener");
+      this._listener.setDaemon(true);
+      this._listener.start();
+   }//end Catalog
+
+   /**
+    * Returns a store's products, reading them on a miss.
+    *
+    * @return the products, or null when the store does not exist
+    */
+   public List<Product> get(Amazon esql, int storeID) throws SQLException {
+      LinkedHashMap<String, Product> products = products(esql, storeID);
+      if (products == null) return null;
+      this._lock.lock();
+      try{
+         return new ArrayList<Product>(products.values());
+      }finally{
+         this._lock.unlock();
+      }
+   }//end get
+
+   /**
+    * Returns one product of a store, or null when there is no such product.
+    */
+   public Product get(Amazon esql, int storeID, String productName) throws SQLException {
+      LinkedHashMap<String, Product> products = products(esql, storeID);
+      if (products == null) return null;
+      this._lock.lock();
+      try{
+         return products.get(productName.trim());
+      }finally{
+         this._lock.unlock();
+      }
+   }//end get
+
+   private LinkedHashMap<String, Product> products(Amazon esql, int storeID) throws SQLException {
+      Entry e;
+      boolean load = false;
+      this._lock.lock();
+      try{
+         e = this._stores.get(storeID);
+         if (e == null || e.stale || System.currentTimeMillis() - e.loadedAt > this._ttlMillis){
+            if (e == null) listen(storeID);
+            e = new Entry();
+            this._stores.put(storeID, e);
+            load = true;
+         }
+      }finally{
+         this._lock.unlock();
+      }
+      if (!load){
+         this._hits.incrementAndGet();
+      }else{
+         this._misses.incrementAndGet();
+         load(esql, storeID, e);
+      }
+      try{
+         return e.products.get();
+      }catch (InterruptedException ex){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while loading the products of store " + storeID);
+      }catch (ExecutionException ex){
+         Throwable cause = ex.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof Error) throw (Error) cause;
+         throw new SQLException(cause);
+      }
+   }//end products
+
+   private void load(Amazon esql, int storeID, Entry e) {
+      long start = System.nanoTime();
+      try{
+         final LinkedHashMap<String, Product> products = new LinkedHashMap<String, Product>();
+         final boolean[] exists = { false };
+         esql.executeQueryStreaming(
+            "SELECT p.productName, p.numberOfUnits, p.pricePerUnit FROM Store s LEFT JOIN Product p ON p.storeID = s.storeID WHERE s.storeID = ?",
+            row -> {
+               exists[0] = true;
+               String name = row.getTrimmed(1);
+               if (name != null) products.put(name, new Product(name, row.getInt(2), row.getDouble(3)));
+            }, storeID);
+         e.products.complete(exists[0] ? products : null);
+      }catch (Throwable ex){
+         // not cached: the next read tries again; whatever failed, the
+         // readers waiting on the list are released with it
+         e.products.completeExceptionally(ex);
+         this._lock.lock();
+         try{
+            this._stores.remove(storeID, e);
+         }finally{
+            this._lock.unlock();
+         }
+      }
+      long nanos = System.nanoTime() - start;
+      this._loadNanos.addAndGet(nanos);
+      this._maxLoadNanos.accumulateAndGet(nanos, Math::max);
+   }//end load
+
+   /*
+    * Replaces one product of a cached store.  A list still loading may have
+    * been read before the write, so it is marked stale instead.
+    */
+   private void update(int storeID, String productName, int units, double price, boolean setUnits, boolean setPrice) {
+      productName = productName.trim();
+      this._lock.lock();
+      try{
+         Entry e = this._stores.get(storeID);
+         if (e == null) return;
+         LinkedHashMap<String, Product> products = e.products.getNow(null);
+         if (!e.products.isDone() || e.products.isCompletedExceptionally()){
+            e.stale = true;
+            return;
+         }
+         Product p = products == null ? null : products.get(productName);
+         if (p == null){
+            // a product or store the cache has not seen yet
+            e.stale = true;
+            return;
+         }
+         products.put(productName, new Product(productName, setUnits ? units : p.numberOfUnits + units,
+                                               setPrice ? price : p.pricePerUnit));
+      }finally{
+         this._lock.unlock();
+      }
+   }//end update
+
+   /**
+    * Records that units were added to a product's stock; negative units
+    * were taken away.  Call after the change committed.
+    */
+   public void unitsAdded(int storeID, String productName, int units) {
+      update(storeID, productName, units, 0, false, false);
+   }
+
+   /**
+    * Records a product's new stock.  Call after the change committed.
+    */
+   public void unitsSet(int storeID, String productName, int units) {
+      update(storeID, productName, units, 0, true, false);
+   }
+
+   /**
+    * Records a product's new price.  Call after the change committed.
+    */
+   public void priceSet(int storeID, String productName, double price) {
+      update(storeID, productName, 0, price, false, true);
+   }
+
+   /**
+    * Drops a store's list, so it is read again on next use.
+    */
+   public void invalidate(int storeID) {
+      this._lock.lock();
+      try{
+         Entry e = this._stores.get(storeID);
+         if (e != null) e.stale = true;
+      }finally{
+         this._lock.unlock();
+      }
+      this._invalidations.incrementAndGet();
+   }//end invalidate
+
+   /**
+    * Drops every list, e.g. after a bulk load.
+    */
+   public void invalidateAll() {
+      this._lock.lock();
+      try{
+         for (Entry e : this._stores.values()) e.stale = true;
+      }finally{
+         this._lock.unlock();
+      }
+      this._invalidations.incrementAndGet();
+   }//end invalidateAll
+
+   /**
+    * Tells the other processes listening that a store's catalog changed.
+    * Does nothing unless this cache listens.
+    */
+   public void publish(Amazon esql, int storeID) throws SQLException {
+      if (this._listener == null) return;
+      // NOTIFY takes no parameters, so the channel goes through pg_notify
+      esql.executeQuery("SELECT pg_notify(?, '')", CHANNEL + storeID);
+   }//end publish
+
+   private void listen(int storeID) {
+      if (this._listener != null) this._commands.add("LISTEN " + CHANNEL + storeID);
+   }
+
+   private void unlisten(int storeID) {
+      if (this._listener != null) this._commands.add("UNLISTEN " + CHANNEL + storeID);
+   }
+
+   /*
+    * Holds one connection for the listener.  The driver only reads
+    * notifications along with a query result, so each poll runs an empty
+    * query.  The driver's classes are reached by reflection, as it is only
+    * on the class path at run time.
+    */
+   private void listenLoop(Amazon esql) {
+      Method getNotifications, getName;
+      try{
+         getNotifications = Class.forName("org.postgresql.PGConnection").getMethod("getNotifications");
+         getName = Class.forName("org.postgresql.PGNotification").getMethod("getName");
+      }catch (ReflectiveOperationException e){
+         System.err.println("Warning - The JDBC driver does not support LISTEN; catalog notifications are off");
+         return;
+      }
+      ConnectionPool.Pooled c = null;
+      while (this._running){
+         try{
+            Thread.sleep(this._listenMillis);
+            if (c == null) c = esql.getPool().borrow();
+            if (!getNotifications.getDeclaringClass().isInstance(c.getConnection())){
+               System.err.println("Warning - The JDBC driver does not support LISTEN; catalog notifications are off");
+               break;
+            }
+            Statement stmt = c.getConnection().createStatement();
+            try{
+               String cmd;
+               while ((cmd = this._commands.poll()) != null) stmt.execute(cmd);
+               stmt.executeQuery("SELECT 1").close();
+            }finally{
+               stmt.close();
+            }
+            Object[] notifications = (Object[]) getNotifications.invoke(c.getConnection());
+            if (notifications == null) continue;
+            for (Object n : notifications){
+               this._notifications.incrementAndGet();
+               invalidate(Integer.parseInt(((String) getName.invoke(n)).substring(CHANNEL.length())));
+            }
+         }catch (InterruptedException e){
+            // stopping
+         }catch (ReflectiveOperationException e){
+            System.err.println("Warning - Unable to read catalog notifications: " + e);
+            break;
+         }catch (SQLException e){
+            // channels are lost with the connection: start over
+            System.err.println("Warning - Catalog listener failed: " + e.getMessage());
+            esql.getPool().discard(c);
+            c = null;
+            invalidateAll();
+            resubscribe();
+         }
+      }
+      if (c != null) esql.getPool().release(c);
+   }//end listenLoop
+
+   private void resubscribe() {
+      this._commands.clear();
+      this._lock.lock();
+      try{
+         for (Integer storeID : this._stores.keySet()) listen(storeID);
+      }finally{
+         this._lock.unlock();
+      }
+   }//end resubscribe
+
+   /**
+    * Stops the listener.
+    */
+   public void close() {
+      this._running = false;
+      if (this._listener == null) return;
+      this._listener.interrupt();
+      try{
+         this._listener.join(10 * 1000L);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+   public String toString() {
+      long hits = this._hits.get(), misses = this._misses.get();
+      return String.format("catalog: %d hits, %d misses (%.1f%% hit), load avg %.2f ms max %.2f ms, %d evicted, %d invalidated, %d notified",
+                           hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+                           misses == 0 ? 0.0 : this._loadNanos.get() / 1e6 / misses, this._maxLoadNanos.get() / 1e6,
+                           this._evictions.get(), this._invalidations.get(), this._notifications.get());
+   }
+}//end Catalog
@@ -0,0 +1,477 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a bounded pool of physical connections to the database so
+ * that several callers can run statements at the same time.  Each pooled
+ * connection carries its own StatementCache.
+ *
+ * Connections are validated when borrowed (unless they were returned less
+ * than validationIntervalMillis ago), closed once they have been idle
+ * for longer than idleTimeoutMillis (down to minSize), and retired once they
+ * are older than maxLifetimeMillis.  A borrower waits at most
+ * borrowTimeoutMillis for a free connection before an SQLException is thrown.
+ *
+ */
+
+public class ConnectionPool {
+
+   /**
+    * Pool settings.  The defaults can be overridden with the system
+    * properties amazon.pool.min, amazon.pool.max, amazon.pool.idleTimeout,
+    * amazon.pool.maxLifetime, amazon.pool.borrowTimeout,
+    * amazon.pool.validationInterval (milliseconds) and amazon.pool.statements.
+    */
+   public static class Config {
+      public int minSize = Integer.getInteger("amazon.pool.min", 1);
+      public int maxSize = Integer.getInteger("amazon.pool.max", 8);
+      public long idleTimeoutMillis = Long.getLong("amazon.pool.idleTimeout", 5 * 60 * 1000L);
+      public long maxLifetimeMillis = Long.getLong("amazon.pool.maxLifetime", 30 * 60 * 1000L);
+      public long borrowTimeoutMillis = Long.getLong("amazon.pool.borrowTimeout", 10 * 1000L);
+      public long validationIntervalMillis = Long.getLong("amazon.pool.validationInterval", 1000L);
+      public int statementCacheSize = Integer.getInteger("amazon.pool.statements", StatementCache.DEFAULT_CAPACITY);
+   }//end Config
+
+   /**
+    * A physical connection together with its statement cache.
+    */
+   public static class Pooled {
+      final Connection connection;
+      final StatementCache statements;
+      final long createdAt;
+      long lastReturned;
+
+      Pooled(Connection connection, int statementCacheSize) {
+         this.connection = connection;
+         this.statements = new StatementCache(connection, statementCacheSize);
+         this.createdAt = System.currentTimeMillis();
+         this.lastReturned = this.createdAt;
+      }
+
+      public Connection getConnection() { return this.connection; }
+      public StatementCache getStatements() { return this.statements; }
+
+      void close() {
+         this.statements.close();
+         try{
+            this.connection.close();
+         }catch(SQLException e){
+            // ignored.
+         }
+      }
+   }//end Pooled
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final Config _config;
+
+   // idle connections, most recently returned first
+   private final ArrayDeque<Pooled> _idle = new ArrayDeque<Pooled>();
+   // every open connection, idle or on loan
+   private final List<Pooled> _live = new ArrayList<Pooled>();
+   private int _active = 0;
+   private int _opening = 0;
+   private boolean _closed = false;
+
+   // metrics
+   private long _borrows = 0;
+   private long _created = 0;
+   private long _timeouts = 0;
+   private long _validationFailures = 0;
+   private long _waitNanos = 0;
+   private long _maxWaitNanos = 0;
+
+   // statement counters of connections that have already been closed
+   private long _retiredHits = 0;
+   private long _retiredMisses = 0;
+   private long _retiredEvictions = 0;
+
+   // guards the fields above; a lock rather than monitors so that waiting
+   // virtual threads do not pin their carrier threads
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = this._lock.newCondition();
+
+   private final Thread _evictor;
+
+   /**
+    * Creates a new pool and opens minSize connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param config the pool settings
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd, Config config) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._config = config;
+      if(config.maxSize < 1 || config.minSize > config.maxSize)
+         throw new IllegalArgumentException("pool size must satisfy 0 <= min <= max and max >= 1");
+
+      for(int i = 0; i < config.minSize; ++i)
+         this._idle.push(open());
+
+      this._evictor = new Thread(new Runnable(){
+         public void run(){ evictLoop(); }
+      }, "amazon-pool-evictor");
+      this._evictor.setDaemon(true);
+      this._evictor.start();
+   }//end ConnectionPool
+
+   private Pooled open() throws SQLException {
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      Pooled p = new Pooled(c, this._config.statementCacheSize);
+      this._lock.lock();
+      try{
+         this._created++;
+         this._live.add(p);
+      }finally{
+         this._lock.unlock();
+      }
+      return p;
+   }//end open
+
+   /**
+    * Borrows a connection, waiting up to borrowTimeoutMillis when every
+    * connection is in use.  The caller must hand it back through release().
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when no connection became free in time or
+    *         a new connection could not be opened
+    */
+   public Pooled borrow() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + this._config.borrowTimeoutMillis * 1000000L;
+      while(true){
+         Pooled candidate = null;
+         boolean mustOpen = false;
+         this._lock.lock();
+         try{
+            while(true){
+               if(this._closed)
+                  throw new SQLException("Connection pool is closed");
+               if(!this._idle.isEmpty()){
+                  // counted as active while it is validated, so the pool never overshoots maxSize
+                  candidate = this._idle.pop();
+                  this._active++;
+                  break;
+               }
+               if(this._active + this._opening < this._config.maxSize){
+                  this._opening++;
+                  mustOpen = true;
+                  break;
+               }
+               long remaining = deadline - System.nanoTime();
+               if(remaining <= 0){
+                  this._timeouts++;
+                  throw new SQLException("Timed out after " + this._config.borrowTimeoutMillis + " ms waiting for a database connection");
+               }
+               try{
+                  this._available.awaitNanos(remaining);
+               }catch(InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               }
+            }
+         }finally{
+            this._lock.unlock();
+         }
+
+         if(mustOpen){
+            try{
+               candidate = open();
+            }finally{
+               this._lock.lock();
+               try{
+                  this._opening--;
+                  if(candidate != null) this._active++;
+                  else this._available.signal();
+               }finally{
+                  this._lock.unlock();
+               }
+            }
+            return borrowed(candidate, start);
+         }
+
+         // validate outside the lock, drop and retry when it is broken or too old
+         if(!expired(candidate, System.currentTimeMillis()) && isValid(candidate))
+            return borrowed(candidate, start);
+         discard(candidate);
+      }
+   }//end borrow
+
+   private Pooled borrowed(Pooled p, long start) {
+      long waited = System.nanoTime() - start;
+      this._lock.lock();
+      try{
+         this._borrows++;
+         this._waitNanos += waited;
+         if(waited > this._maxWaitNanos) this._maxWaitNanos = waited;
+      }finally{
+         this._lock.unlock();
+      }
+      return p;
+   }//end borrowed
+
+   /**
+    * Returns a borrowed connection to the pool.  Connections left inside a
+    * transaction are rolled back first.
+    *
+    * @param p the connection obtained from borrow()
+    */
+   public void release(Pooled p) {
+      if(p == null) return;
+      boolean healthy = true;
+      try{
+         if(!p.connection.getAutoCommit()){
+            p.connection.rollback();
+            p.connection.setAutoCommit(true);
+         }
+      }catch(SQLException e){
+         healthy = false;
+      }
+      p.lastReturned = System.currentTimeMillis();
+      this._lock.lock();
+      try{
+         this._active--;
+         if(healthy && !this._closed && !expired(p, p.lastReturned)){
+            this._idle.push(p);
+            this._available.signal();
+            return;
+         }
+         this._available.signal();
+      }finally{
+         this._lock.unlock();
+      }
+      retire(p);
+   }//end release
+
+   /**
+    * Closes a connection that turned out to be broken instead of returning
+    * it to the pool.
+    */
+   public void discard(Pooled p) {
+      if(p == null) return;
+      this._lock.lock();
+      try{
+         this._active--;
+         this._available.signal();
+      }finally{
+         this._lock.unlock();
+      }
+      retire(p);
+   }//end discard
+
+   private boolean expired(Pooled p, long now) {
+      return this._config.maxLifetimeMillis > 0 && now - p.createdAt > this._config.maxLifetimeMillis;
+   }
+
+   private boolean isValid(Pooled p) {
+      try{
+         if(p.connection.isClosed()) return false;
+         // a connection that was just in use is trusted without a round trip
+         if(System.currentTimeMillis() - p.lastReturned < this._config.validationIntervalMillis) return true;
+         ResultSet rs = p.statements.prepare("SELECT 1").executeQuery();
+         rs.close();
+         return true;
+      }catch(SQLException e){
+         this._lock.lock();
+         try{
+            this._validationFailures++;
+         }finally{
+            this._lock.unlock();
+         }
+         return false;
+      }
+   }//end isValid
+
+   private void retire(Pooled p) {
+      this._lock.lock();
+      try{
+         if(!this._live.remove(p)) return;
+         this._retiredHits += p.statements.getHits();
+         this._retiredMisses += p.statements.getMisses();
+         this._retiredEvictions += p.statements.getEvictions();
+      }finally{
+         this._lock.unlock();
+      }
+      p.close();
+   }//end retire
+
+   /*
+    * Periodically closes idle connections past idleTimeoutMillis (keeping
+    * minSize connections) and connections past maxLifetimeMillis.
+    */
+   private void evictLoop() {
+      long period = Math.max(1000L, Math.min(this._config.idleTimeoutMillis, 30 * 1000L));
+      while(true){
+         try{
+            Thread.sleep(period);
+         }catch(InterruptedException e){
+            return;
+         }
+         List<Pooled> doomed = new ArrayList<Pooled>();
+         this._lock.lock();
+         try{
+            if(this._closed) return;
+            long now = System.currentTimeMillis();
+            int total = this._idle.size() + this._active + this._opening;
+            // oldest idle connections sit at the tail
+            Iterator<Pooled> it = this._idle.descendingIterator();
+            while(it.hasNext()){
+               Pooled p = it.next();
+               boolean idleTooLong = now - p.lastReturned > this._config.idleTimeoutMillis && total > this._config.minSize;
+               if(idleTooLong || expired(p, now)){
+                  it.remove();
+                  doomed.add(p);
+                  total--;
+               }
+            }
+         }finally{
+            this._lock.unlock();
+         }
+         for(Pooled p : doomed)
+            retire(p);
+         // top the pool back up to minSize
+         while(true){
+            this._lock.lock();
+            try{
+               if(this._closed || this._idle.size() + this._active + this._opening >= this._config.minSize)
+                  break;
+               this._opening++;
+            }finally{
+               this._lock.unlock();
+            }
+            Pooled p = null;
+            try{
+               p = open();
+            }catch(SQLException e){
+               // try again on the next round
+            }finally{
+               this._lock.lock();
+               try{
+                  this._opening--;
+                  if(p != null){
+                     this._idle.addLast(p);
+                     this._available.signal();
+                  }
+               }finally{
+                  this._lock.unlock();
+               }
+            }
+            if(p == null) break;
+         }
+      }
+   }//end evictLoop
+
+   public int getActive() {
+      this._lock.lock();
+      try{ return this._active; }finally{ this._lock.unlock(); }
+   }
+   public int getIdle() {
+      this._lock.lock();
+      try{ return this._idle.size(); }finally{ this._lock.unlock(); }
+   }
+   public long getBorrows() {
+      this._lock.lock();
+      try{ return this._borrows; }finally{ this._lock.unlock(); }
+   }
+   public long getCreated() {
+      this._lock.lock();
+      try{ return this._created; }finally{ this._lock.unlock(); }
+   }
+   public long getTimeouts() {
+      this._lock.lock();
+      try{ return this._timeouts; }finally{ this._lock.unlock(); }
+   }
+   public long getValidationFailures() {
+      this._lock.lock();
+      try{ return this._validationFailures; }finally{ this._lock.unlock(); }
+   }
+   public long getTotalWaitMillis() {
+      this._lock.lock();
+      try{ return this._waitNanos / 1000000L; }finally{ this._lock.unlock(); }
+   }
+   public long getMaxWaitMillis() {
+      this._lock.lock();
+      try{ return this._maxWaitNanos / 1000000L; }finally{ this._lock.unlock(); }
+   }
+   public Config getConfig() { return this._config; }
+
+   /**
+    * Returns the statement cache counters summed over every connection this
+    * pool has opened, as {hits, misses, evictions}.
+    */
+   public long[] getStatementStats() {
+      this._lock.lock();
+      try{
+         long[] stats = { this._retiredHits, this._retiredMisses, this._retiredEvictions };
+         for(Pooled p : this._live){
+            stats[0] += p.statements.getHits();
+            stats[1] += p.statements.getMisses();
+            stats[2] += p.statements.getEvictions();
+         }
+         return stats;
+      }finally{
+         this._lock.unlock();
+      }
+   }//end getStatementStats
+
+   /**
+    * Closes every idle connection and refuses further borrows.  Connections
+    * still on loan are closed when they are released.
+    */
+   public void close() {
+      List<Pooled> doomed;
+      this._lock.lock();
+      try{
+         this._closed = true;
+         doomed = new ArrayList<Pooled>(this._idle);
+         this._idle.clear();
+         this._available.signalAll();
+      }finally{
+         this._lock.unlock();
+      }
+      this._evictor.interrupt();
+      for(Pooled p : doomed)
+         retire(p);
+   }//end close
+
+   public String toString() {
+      long[] stmts = getStatementStats();
+      this._lock.lock();
+      try{
+         return String.format("pool: %d active, %d idle, %d created, %d borrows, %d timeouts, wait %d ms total / %d ms max%n" +
+                              "statements: %d hits, %d misses, %d evictions",
+                              this._active, this._idle.size(), this._created, this._borrows, this._timeouts,
+                              this._waitNanos / 1000000L, this._maxWaitNanos / 1000000L,
+                              stmts[0], stmts[1], stmts[2]);
+      }finally{
+         this._lock.unlock();
+      }
+   }
+}//end ConnectionPool
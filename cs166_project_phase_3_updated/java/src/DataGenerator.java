@@ -0,0 +1,417 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This program generates a synthetic dataset of any size for the schema of
+ * create_tables.sql, either as the seven CSV files read by BulkLoader or
+ * inserted straight into the database.
+ *
+ * The size is a scale factor: per unit there are 100 users, 20 stores with
+ * 100 products each, 5 warehouses, 50000 orders, 100 supply requests and
+ * 500 product updates, so SF=1000 gives 100k users, 20k stores, 2M products
+ * and 50M orders.  The data is skewed the way real data is: stores and
+ * users are clustered around a few city centers in the [0,100] lat/long
+ * space, orders pick stores and products from Zipf distributions, and
+ * orderTime grows with orderNumber.
+ *
+ * Every table is cut into chunks of CHUNK rows, each generated from its own
+ * random stream derived from the seed, so the output is the same for the
+ * same seed no matter how many threads generate it.  Only a few chunks per
+ * thread are in memory at any time.
+ *
+ *    java DataGenerator &lt;scale factor&gt; --out &lt;dir&gt; [--seed n] [--threads n]
+ *    java -cp classes:lib/pg73jdbc3.jar DataGenerator &lt;scale factor&gt; --db &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [--seed n] [--threads n]
+ *
+ * With --db the tables must be empty; indexes are not touched, the
+ * partitions of the generated months are created.
+ *
+ */
+
+public class DataGenerator {
+
+   public static final int CHUNK = 10000;
+   public static final int PRODUCTS_PER_STORE = 100;
+
+   private static final String[] NAMES = {
+      "7up", "Pepsi", "Lemonade", "Brisk", "Orange Juice", "Egg", "Donuts", "Pudding", "Ice Cream", "Hot and Sour Soup" };
+
+   // 2016-01-01 00:00:00 UTC and three years of orders after it
+   private static final long ORDERS_START = 1451606400L;
+   private static final long ORDERS_SPAN = 3 * 365 * 24 * 3600L;
+
+   /*
+    * Generates the rows of one chunk of a table.
+    */
+   private interface Rows {
+      void generate(SplittableRandom rnd, long first, long end, List<Object[]> out);
+   }
+
+   private final long _seed;
+   private final int _threads;
+
+   public final long users;
+   public final long managers;
+   public final int stores;
+   public final long warehouses;
+   public final long orders;
+   public final long supplyRequests;
+   public final long productUpdates;
+
+   private final double[][] _centers;
+   private final double[] _storeCdf;
+   private final double[] _productCdf;
+   private final String[] _catalog;
+
+   /**
+    * Creates a new generator
+    *
+    * @param scale the scale factor; 1 is about the size of the bundled data
+    * @param seed the seed of every random stream
+    * @param threads the number of chunks generated at the same time
+    */
+   public DataGenerator(double scale, long seed, int threads) {
+      this._seed = seed;
+      this._threads = threads;
+      this.stores = (int) Math.max(1, Math.round(20 * scale));
+      this.managers = (this.stores + 1) / 2;
+      this.users = Math.max(Math.round(100 * scale), this.managers + 2);
+      this.warehouses = Math.max(1, Math.round(5 * scale));
+      this.orders = Math.round(50000 * scale);
+      this.supplyRequests = Math.round(100 * scale);
+      this.productUpdates = Math.round(500 * scale);
+
+      SplittableRandom rnd = new SplittableRandom(seed);
+      this._centers = new double[Math.max(3, this.stores / 100)][];
+      for (int i = 0; i < this._centers.length; ++i)
+         this._centers[i] = new double[]{ 10 + 80 * rnd.nextDouble(), 10 + 80 * rnd.nextDouble() };
+      this._storeCdf = zipf(this.stores, 0.8);
+      this._productCdf = zipf(PRODUCTS_PER_STORE, 1.0);
+      this._catalog = new String[PRODUCTS_PER_STORE * 4];
+      for (int i = 0; i < this._catalog.length; ++i)
+         this._catalog[i] = i < NAMES.length ? NAMES[i] : String.format("Item %05d", i);
+   }//end DataGenerator
+
+   /*
+    * Cumulative probabilities of ranks 1..n with P(k) proportional to 1/k^s.
+    */
+   private static double[] zipf(int n, double s) {
+      double[] cdf = new double[n];
+      double sum = 0;
+      for (int k = 0; k < n; ++k)
+         cdf[k] = (sum += 1 / Math.pow(k + 1, s));
+      for (int k = 0; k < n; ++k)
+         cdf[k] /= sum;
+      return cdf;
+   }//end zipf
+
+   private static int sample(double[] cdf, SplittableRandom rnd) {
+      int i = Arrays.binarySearch(cdf, rnd.nextDouble());
+      return Math.min(cdf.length - 1, i < 0 ? -i - 1 : i);
+   }//end sample
+
+   /*
+    * A point near a random city center; spread is the standard deviation.
+    */
+   private double[] near(SplittableRandom rnd, double spread) {
+      double[] c = this._centers[rnd.nextInt(this._centers.length)];
+      return new double[]{ coordinate(c[0] + rnd.nextGaussian() * spread), coordinate(c[1] + rnd.nextGaussian() * spread) };
+   }//end near
+
+   // decimal(8,6) and decimal(9,6) inside [0,100)
+   private static double coordinate(double x) {
+      return Math.round(Math.min(99.999999, Math.max(0, x)) * 1e6) / 1e6;
+   }
+
+   /**
+    * Returns the name of a store's product of the given popularity rank.
+    * Each store sells PRODUCTS_PER_STORE consecutive names of the catalog,
+    * starting at an offset that depends on the store.
+    */
+   public String productName(int storeID, int rank) {
+      int offset = (int) ((storeID * 0x9E3779B97F4A7C15L >>> 40) % this._catalog.length);
+      return this._catalog[(offset + rank) % this._catalog.length];
+   }
+
+   private int managerOf(int storeID) {
+      return (int) (2 + (storeID - 1) % this.managers);
+   }
+
+   private static Timestamp timestamp(long epochSecond) {
+      return Timestamp.valueOf(LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC));
+   }
+
+   // userID 1 is the admin, the next ones are managers, the rest customers
+   private void users(SplittableRandom rnd, long first, long end, List<Object[]> out) {
+      for (long id = first + 1; id <= end; ++id){
+         double[] p = rnd.nextInt(10) == 0 ? new double[]{ coordinate(100 * rnd.nextDouble()), coordinate(100 * rnd.nextDouble()) } : near(rnd, 5);
+         String type = id == 1 ? "admin" : id <= 1 + this.managers ? "manager" : "customer";
+         out.add(new Object[]{ (int) id, "User" + id, "xyz", p[0], p[1], type });
+      }
+   }//end users
+
+   private void warehouses(SplittableRandom rnd, long first, long end, List<Object[]> out) {
+      for (long id = first + 1; id <= end; ++id){
+         double[] p = near(rnd, 10);
+         out.add(new Object[]{ (int) id, 5000 + rnd.nextInt(20000), p[0], p[1] });
+      }
+   }//end warehouses
+
+   private void stores(SplittableRandom rnd, long first, long end, List<Object[]> out) {
+      for (long id = first + 1; id <= end; ++id){
+         double[] p = near(rnd, 2);
+         Date established = Date.valueOf(LocalDate.ofEpochDay(-7305 + rnd.nextInt(23741)));
+         out.add(new Object[]{ (int) id, p[0], p[1], managerOf((int) id), established });
+      }
+   }//end stores
+
+   // row i is product i % PRODUCTS_PER_STORE of store i / PRODUCTS_PER_STORE + 1
+   private void products(SplittableRandom rnd, long first, long end, List<Object[]> out) {
+      for (long i = first; i < end; ++i){
+         int store = (int) (i / PRODUCTS_PER_STORE) + 1;
+         double price = Math.round((1 + 49 * rnd.nextDouble()) * 100) / 100.0;
+         out.add(new Object[]{ store, productName(store, (int) (i % PRODUCTS_PER_STORE)), 50 + rnd.nextInt(450), price });
+      }
+   }//end products
+
+   private void orders(SplittableRandom rnd, long first, long end, List<Object[]> out) {
+      long customers = this.users - this.managers - 1;
+      for (long id = first + 1; id <= end; ++id){
+         int store = sample(this._storeCdf, rnd) + 1;
+         int customer = (int) (this.managers + 2 + rnd.nextLong(customers));
+         Timestamp time = timestamp(ORDERS_START + (id - 1) * ORDERS_SPAN / Math.max(1, this.orders));
+         out.add(new Object[]{ (int) id, customer, store, productName(store, sample(this._productCdf, rnd)), 1 + rnd.nextInt(10), time });
+      }
+   }//end orders
+
+   private void supplyRequests(SplittableRandom rnd, long first, long end, List<Object[]> out) {
+      for (long id = first + 1; id <= end; ++id){
+         int store = 1 + rnd.nextInt(this.stores);
+         out.add(new Object[]{ (int) id, managerOf(store), 1 + (int) rnd.nextLong(this.warehouses), store,
+                               productName(store, rnd.nextInt(PRODUCTS_PER_STORE)), 10 + rnd.nextInt(200) });
+      }
+   }//end supplyRequests
+
+   private void productUpdates(SplittableRandom rnd, long first, long end, List<Object[]> out) {
+      for (long id = first + 1; id <= end; ++id){
+         int store = 1 + rnd.nextInt(this.stores);
+         Timestamp time = timestamp(ORDERS_START + (id - 1) * ORDERS_SPAN / Math.max(1, this.productUpdates));
+         out.add(new Object[]{ (int) id, managerOf(store), store, productName(store, rnd.nextInt(PRODUCTS_PER_STORE)), time });
+      }
+   }//end productUpdates
+
+   /**
+    * Receives the chunks of a table.  CSV chunks must arrive in order, so
+    * ordered() tells the generator whether to hand them over one at a time.
+    */
+   public interface Sink {
+      void begin(String table, String header) throws Exception;
+      void chunk(String table, String header, List<Object[]> rows) throws Exception;
+      void end(String table) throws Exception;
+      boolean ordered();
+   }
+
+   /**
+    * Generates every table, in foreign key order, into the sink.
+    */
+   public void generate(Sink sink) throws Exception {
+      ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+      try{
+         table(pool, sink, 1, "Users", "userID,name,password,latitude,longitude,type", this.users, this::users);
+         table(pool, sink, 2, "Warehouse", "wareHouseID,area,latitude,longitude", this.warehouses, this::warehouses);
+         table(pool, sink, 3, "Store", "storeID,latitude,longitude,managerID,dateEstablished", this.stores, this::stores);
+         table(pool, sink, 4, "Product", "storeID,productName,numberOfUnits,pricePerUnit", (long) this.stores * PRODUCTS_PER_STORE, this::products);
+         table(pool, sink, 5, "Orders", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime", this.orders, this::orders);
+         table(pool, sink, 6, "ProductSupplyRequests", "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested", this.supplyRequests, this::supplyRequests);
+         table(pool, sink, 7, "ProductUpdates", "updateNumber,managerID,storeID,productName,updatedOn", this.productUpdates, this::productUpdates);
+      }finally{
+         pool.shutdownNow();
+      }
+   }//end generate
+
+   /*
+    * Generates the chunks of one table, at most two per thread ahead of the
+    * sink.
+    */
+   private void table(ExecutorService pool, final Sink sink, final int number, final String table, final String header,
+                      long rows, final Rows generator) throws Exception {
+      long start = System.nanoTime();
+      sink.begin(table, header);
+      ArrayDeque<CompletableFuture<List<Object[]>>> ahead = new ArrayDeque<CompletableFuture<List<Object[]>>>();
+      try{
+         for (long first = 0; first < rows || !ahead.isEmpty(); first += CHUNK){
+            if (first < rows){
+               final long chunkFirst = first;
+               final long chunkEnd = Math.min(rows, first + CHUNK);
+               ahead.add(CompletableFuture.supplyAsync(() -> {
+                  // one stream per (seed, table, chunk), independent of the thread count
+                  SplittableRandom rnd = new SplittableRandom(this._seed * 31 + number * 0x9E3779B97F4A7C15L + chunkFirst / CHUNK * 0xC2B2AE3D27D4EB4FL);
+                  List<Object[]> out = new ArrayList<Object[]>((int) (chunkEnd - chunkFirst));
+                  generator.generate(rnd, chunkFirst, chunkEnd, out);
+                  if (!sink.ordered()){
+                     try{
+                        sink.chunk(table, header, out);
+                     }catch (Exception e){
+                        throw new CompletionException(e);
+                     }
+                     return null;
+                  }
+                  return out;
+               }, pool));
+               if (ahead.size() < this._threads * 2) continue;
+            }
+            List<Object[]> done = ahead.poll().join();
+            if (done != null) sink.chunk(table, header, done);
+         }
+      }catch (CompletionException e){
+         if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+         throw e;
+      }
+      sink.end(table);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%-22s %12d rows %9.2f s %12.0f rows/s%n", table, rows, seconds, seconds == 0 ? 0.0 : rows / seconds);
+   }//end table
+
+   /**
+    * Writes each table to a CSV file named like the bundled data.
+    */
+   public static class CsvSink implements Sink {
+      private final File _dir;
+      private Writer _out;
+
+      public CsvSink(File dir) {
+         this._dir = dir;
+      }
+
+      public boolean ordered() { return true; }
+
+      public void begin(String table, String header) throws IOException {
+         String file = table.equals("Store") ? "stores" : table.equals("Orders") ? "orders" : table.equals("Product") ? "products"
+                     : Character.toLowerCase(table.charAt(0)) + table.substring(1);
+         this._out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(this._dir, file + ".csv")), StandardCharsets.UTF_8), 1 << 16);
+         this._out.write(header);
+         this._out.write('\n');
+      }
+
+      public void chunk(String table, String header, List<Object[]> rows) throws IOException {
+         for (Object[] row : rows){
+            for (int i = 0; i < row.length; ++i){
+               if (i > 0) this._out.write(',');
+               String s = String.valueOf(row[i]);
+               // Timestamp.toString adds ".0"
+               if (row[i] instanceof Timestamp && s.endsWith(".0")) s = s.substring(0, s.length() - 2);
+               this._out.write(s);
+            }
+            this._out.write('\n');
+         }
+      }
+
+      public void end(String table) throws IOException {
+         this._out.close();
+      }
+   }//end CsvSink
+
+   /**
+    * Inserts each chunk as one batch, from several threads at once.
+    */
+   public static class DatabaseSink implements Sink {
+      private final Amazon _esql;
+
+      public DatabaseSink(Amazon esql) {
+         this._esql = esql;
+      }
+
+      public boolean ordered() { return false; }
+
+      public void begin(String table, String header) {}
+
+      public void chunk(String table, String header, final List<Object[]> rows) throws SQLException {
+         final String sql = "INSERT INTO " + table + " (" + header + ") VALUES (?" + ", ?".repeat(rows.get(0).length - 1) + ")";
+         this._esql.executeInTransaction(tx -> {
+            Transaction.Batch batch = tx.batch(sql);
+            for (Object[] row : rows) batch.add(row);
+            return batch.execute();
+         });
+      }
+
+      public void end(String table) {
+         if (table.equals("Store")) this._esql.storesChanged();
+      }
+   }//end DatabaseSink
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java DataGenerator <scale factor> --out <dir> | --db <dbname> <port> <user> [--seed n] [--threads n]");
+         return;
+      }
+      double scale = Double.parseDouble(args[0]);
+      long seed = 42;
+      int threads = Runtime.getRuntime().availableProcessors();
+      File out = null;
+      String[] db = null;
+      for (int i = 1; i < args.length; ++i){
+         if (args[i].equals("--out")) out = new File(args[++i]);
+         else if (args[i].equals("--db")) db = new String[]{ args[++i], args[++i], args[++i] };
+         else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+         else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+
+      DataGenerator generator = new DataGenerator(scale, seed, threads);
+      System.out.printf("SF %s: %d users, %d stores, %d products, %d warehouses, %d orders%n", args[0],
+                        generator.users, generator.stores, (long) generator.stores * PRODUCTS_PER_STORE, generator.warehouses, generator.orders);
+      if (db == null){
+         if (out == null) throw new IllegalArgumentException("Give --out <dir> or --db <dbname> <port> <user>");
+         out.mkdirs();
+         generator.generate(new CsvSink(out));
+         return;
+      }
+
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool.Config config = new ConnectionPool.Config();
+      config.maxSize = Math.max(config.maxSize, threads);
+      Amazon esql = new Amazon(db[0], db[1], db[2], "", config);
+      try{
+         generator.generate(new DatabaseSink(esql));
+         Partitions.split(esql);
+         BulkLoader loader = new BulkLoader(esql, null, 0, 0);
+         loader.fixSequences();
+         Sales.rebuild(esql);
+         loader.analyze();
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+}//end DataGenerator
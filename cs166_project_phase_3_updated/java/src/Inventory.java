@@ -0,0 +1,601 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class admits orders against in-memory stock counters and writes them
+ * to the database in batches.
+ *
+ * Each (storeID, productName) has an AtomicInteger of available units,
+ * loaded from Product on first use.  An order reserves its units with a
+ * compare-and-set loop, so concurrent orders for a hot product never lock
+ * and never take the counter below zero.  Reserved orders are queued; a
+ * writer thread takes up to batchSize of them at a time and, in ONE
+ * transaction, locks the Product rows in (storeID, productName) order,
+ * applies one summed UPDATE per product,
+ * inserts every order and adds them to the sales aggregates.  placeOrder
+ * returns once that transaction has committed, so an acknowledged order is
+ * durable.
+ *
+ * The UPDATE also checks numberOfUnits in the database.  If another process
+ * took the stock first, the batch is rolled back and its orders are retried
+ * one by one, and the affected counters are reloaded.
+ *
+ * Every placed order tells the Replenisher how much stock is left.
+ *
+ */
+
+public class Inventory {
+
+   /**
+    * Outcome of an order.
+    */
+   public enum Result { PLACED, INSUFFICIENT_STOCK, NO_SUCH_PRODUCT, NOT_PLACED }
+
+   /**
+    * Outcome of an order and, when it was placed, its orderNumber.
+    */
+   public static class Order {
+      public final Result result;
+      public final int orderNumber;
+
+      Order(Result result, int orderNumber) {
+         this.result = result;
+         this.orderNumber = orderNumber;
+      }
+   }//end Order
+
+   private static final Order INSUFFICIENT_STOCK = new Order(Result.INSUFFICIENT_STOCK, 0);
+   private static final Order NO_SUCH_PRODUCT = new Order(Result.NO_SUCH_PRODUCT, 0);
+   // the line itself could be placed but another line of its cart could not
+   private static final Order NOT_PLACED = new Order(Result.NOT_PLACED, 0);
+
+   /**
+    * One line of a cart.
+    */
+   public static class Line {
+      public final int storeID;
+      public final String productName;
+      public final int units;
+
+      public Line(int storeID, String productName, int units) {
+         this.storeID = storeID;
+         this.productName = productName.trim();
+         this.units = units;
+      }
+   }//end Line
+
+   /**
+    * Outcome of a cart checkout: the Order of every line, in cart order.
+    * Either every line was placed or none was; then the lines that could
+    * not be placed say why and the others are NOT_PLACED.
+    */
+   public static class Checkout {
+      public final boolean placed;
+      public final List<Line> lines;
+      public final Order[] orders;
+
+      Checkout(boolean placed, List<Line> lines, Order[] orders) {
+         this.placed = placed;
+         this.lines = lines;
+         this.orders = orders;
+      }
+   }//end Checkout
+
+   /*
+    * Stock of one product of one store.
+    */
+   private static class Stock {
+      final AtomicInteger available;
+      // units reserved but not yet written to the database
+      final AtomicInteger pending = new AtomicInteger();
+
+      Stock(int units) {
+         this.available = new AtomicInteger(units);
+      }
+   }//end Stock
+
+   /*
+    * An admitted order waiting to be written.  It is settled against the
+    * counter it was reserved from, even when that counter has since been
+    * dropped for a reload.
+    */
+   private static class Reservation {
+      final String key;
+      final Stock stock;
+      final int orderNumber;
+      final int storeID;
+      final String productName;
+      final int customerID;
+      final int units;
+      final Timestamp orderTime;
+      final CompletableFuture<Result> done = new CompletableFuture<Result>();
+
+      Reservation(String key, Stock stock, int orderNumber, int storeID, String productName, int customerID, int units) {
+         this.key = key;
+         this.stock = stock;
+         this.orderNumber = orderNumber;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.customerID = customerID;
+         this.units = units;
+         this.orderTime = new Timestamp(System.currentTimeMillis());
+      }
+   }//end Reservation
+
+   private static final String UPDATE_STOCK =
+      "UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productName = ? AND numberOfUnits >= ?";
+   // locks the Product rows of a batch in one fixed order, before they are
+   // updated: the UPDATE below locks them in whatever order its plan
+   // visits them, which would let two writers deadlock
+   static final String LOCK_STOCKS =
+      "SELECT v.position FROM Product p, (VALUES (?::integer, ?::bpchar, ?::integer)) AS v(storeID, productName, position) " +
+      "WHERE p.storeID = v.storeID AND p.productName = v.productName ORDER BY p.storeID, p.productName FOR NO KEY UPDATE OF p";
+   // UPDATE_STOCK for a batch of products, in one statement
+   private static final String UPDATE_STOCKS =
+      "UPDATE Product p SET numberOfUnits = p.numberOfUnits - v.units " +
+      "FROM (VALUES (?::integer, ?::integer, ?::bpchar, ?::integer)) AS v(units, storeID, productName, position) " +
+      "WHERE p.storeID = v.storeID AND p.productName = v.productName AND p.numberOfUnits >= v.units RETURNING v.position";
+   private static final String INSERT_ORDER =
+      "INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, ?, ?)";
+
+   private final Amazon _esql;
+   private final int _batchSize;
+   private final long _flushMillis;
+   private final long _waitMillis;
+
+   private final ConcurrentHashMap<String, Stock> _stock = new ConcurrentHashMap<String, Stock>();
+   private final ArrayBlockingQueue<Reservation> _queue;
+   private final Thread _writer;
+   private volatile boolean _running = true;
+
+   // metrics
+   private final AtomicLong _placed = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _batchedOrders = new AtomicLong();
+   private final AtomicLong _conflicts = new AtomicLong();
+
+   /**
+    * Creates a new inventory and starts its writer thread
+    *
+    * @param esql the database the orders are written to
+    * @param batchSize the most orders written in one transaction
+    * @param flushMillis how long the writer waits for a batch to fill
+    * @param waitMillis how long placeOrder waits for its order to be written
+    */
+   public Inventory(Amazon esql, int batchSize, long flushMillis, long waitMillis) {
+      this._esql = esql;
+      this._batchSize = batchSize;
+      this._flushMillis = flushMillis;
+      this._waitMillis = waitMillis;
+      this._queue = new ArrayBlockingQueue<Reservation>(batchSize * 64);
+      this._writer = new Thread(new Runnable(){
+         public void run(){ writeLoop(); }
+      }, "amazon-inventory-writer");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end Inventory
+
+   private static String key(int storeID, String productName) {
+      return storeID + "\u0000" + productName.trim();
+   }
+
+   /*
+    * Returns the product's counter, loading it from Product the first time.
+    */
+   private Stock stock(String key, int storeID, String productName) throws SQLException {
+      Stock s = this._stock.get(key);
+      if (s != null) return s;
+      Integer units = this._esql.executeQueryForObject(
+         "SELECT p.numberOfUnits FROM Product p WHERE p.storeID = ? AND p.productName = ?", row -> row.getInt(1), storeID, productName.trim());
+      if (units == null) return null;
+      Stock loaded = new Stock(units);
+      s = this._stock.putIfAbsent(key, loaded);
+      return s != null ? s : loaded;
+   }//end stock
+
+   /**
+    * Places an order for units of a product, waiting until the order and
+    * the stock change have been committed.
+    *
+    * @return the result, PLACED, INSUFFICIENT_STOCK or NO_SUCH_PRODUCT, and
+    *         the generated orderNumber of a placed order
+    * @throws java.sql.SQLException when the order could not be written
+    */
+   public Order placeOrder(int customerID, int storeID, String productName, int units) throws SQLException {
+      if (units <= 0) throw new SQLException("Amount must be positive");
+      String key = key(storeID, productName);
+      Stock s = stock(key, storeID, productName);
+      if (s == null) return NO_SUCH_PRODUCT;
+
+      if (!reserve(s, units)){
+         this._rejected.incrementAndGet();
+         return INSUFFICIENT_STOCK;
+      }
+
+      Reservation r;
+      try{
+         r = new Reservation(key, s, this._esql.nextKey(KeyAllocator.ORDERS), storeID, productName.trim(), customerID, units);
+      }catch (SQLException e){
+         release(s, units);
+         throw e;
+      }
+      try{
+         // once closed, an order the writer and close() may both have
+         // missed is taken back
+         boolean queued = false;
+         while (this._running && !(queued = this._queue.offer(r, 100, TimeUnit.MILLISECONDS)));
+         if (!this._running && (!queued || this._queue.remove(r))){
+            release(s, units);
+            throw new SQLException("The inventory is closed");
+         }
+         Result result = r.done.get(this._waitMillis, TimeUnit.MILLISECONDS);
+         return result == Result.PLACED ? new Order(result, r.orderNumber) : INSUFFICIENT_STOCK;
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while placing the order");
+      }catch (TimeoutException e){
+         // still queued or being written: it may yet be placed
+         throw new SQLException("Timed out waiting for order " + r.orderNumber + " to be written");
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         throw new SQLException(cause);
+      }
+   }//end placeOrder
+
+   /**
+    * Places every line of a cart in ONE transaction, so either all lines are
+    * ordered or none is.  The stock of every product is reserved in memory
+    * first.  Then the Product rows are locked in the order the batch writer
+    * locks them in, and the summed decrement of every product and the
+    * Orders inserts are each sent as a single multi-row statement.
+    *
+    * @return the order number of every line, or which lines failed and why
+    * @throws java.sql.SQLException when the cart could not be written
+    */
+   public Checkout checkout(final int customerID, final List<Line> lines) throws SQLException {
+      final int n = lines.size();
+      final Order[] orders = new Order[n];
+      final String[] keys = new String[n];
+      // units per product
+      final TreeMap<String, int[]> totals = new TreeMap<String, int[]>();
+      final TreeMap<String, Line> sample = new TreeMap<String, Line>();
+      final Map<String, Stock> stocks = new HashMap<String, Stock>();
+      boolean ok = true;
+      for (int i = 0; i < n; ++i){
+         Line line = lines.get(i);
+         if (line.units <= 0) throw new SQLException("Amount must be positive");
+         keys[i] = key(line.storeID, line.productName);
+         Stock s = stock(keys[i], line.storeID, line.productName);
+         if (s == null){
+            orders[i] = NO_SUCH_PRODUCT;
+            ok = false;
+            continue;
+         }
+         stocks.put(keys[i], s);
+         int[] t = totals.get(keys[i]);
+         if (t == null){ totals.put(keys[i], t = new int[1]); sample.put(keys[i], line); }
+         t[0] += line.units;
+      }
+
+      // reserve every product, then give it all back if any is short
+      Set<String> failed = new HashSet<String>();
+      List<String> reserved = new ArrayList<String>();
+      for (Map.Entry<String, int[]> e : totals.entrySet()){
+         Stock s = stocks.get(e.getKey());
+         if (ok && reserve(s, e.getValue()[0])){
+            reserved.add(e.getKey());
+         }else if (ok || s.available.get() < e.getValue()[0]){
+            failed.add(e.getKey());
+            ok = false;
+         }
+      }
+      if (!ok){
+         for (String key : reserved) release(stocks.get(key), totals.get(key)[0]);
+         return rejected(lines, orders, keys, failed);
+      }
+
+      final int[] numbers = new int[n];
+      final int[][] counts = { new int[0] };
+      try{
+         for (int i = 0; i < n; ++i) numbers[i] = this._esql.nextKey(KeyAllocator.ORDERS);
+         final Timestamp orderTime = new Timestamp(System.currentTimeMillis());
+         this._esql.executeInTransaction(tx -> {
+            Transaction.Batch locks = tx.batch(LOCK_STOCKS);
+            Transaction.Batch updates = tx.batch(UPDATE_STOCKS);
+            for (Map.Entry<String, int[]> e : totals.entrySet()){
+               Line l = sample.get(e.getKey());
+               locks.add(l.storeID, l.productName, locks.size());
+               updates.add(e.getValue()[0], l.storeID, l.productName, updates.size());
+            }
+            locks.execute();
+            counts[0] = updates.execute();
+            for (int count : counts[0])
+               if (count == 0) throw new StockConflict();
+            Transaction.Batch inserts = tx.batch(INSERT_ORDER);
+            Sales.Delta sales = new Sales.Delta();
+            for (int i = 0; i < n; ++i){
+               Line l = lines.get(i);
+               inserts.add(numbers[i], customerID, l.storeID, l.productName, l.units, orderTime);
+               sales.add(l.storeID, l.productName, customerID, l.units);
+            }
+            inserts.execute();
+            sales.write(tx);
+            return Boolean.TRUE;
+         });
+      }catch (StockConflict e){
+         // the database had less stock than the counters: reload them
+         this._conflicts.incrementAndGet();
+         int k = 0;
+         for (String key : totals.keySet()){
+            release(stocks.get(key), totals.get(key)[0]);
+            if (counts[0][k++] == 0){
+               failed.add(key);
+               this._stock.remove(key);
+            }
+         }
+         return rejected(lines, orders, keys, failed);
+      }catch (SQLException e){
+         for (String key : totals.keySet()) release(stocks.get(key), totals.get(key)[0]);
+         throw e;
+      }
+
+      for (String key : totals.keySet()) stocks.get(key).pending.addAndGet(-totals.get(key)[0]);
+      for (int i = 0; i < n; ++i){
+         orders[i] = new Order(Result.PLACED, numbers[i]);
+         this._esql.getTrending().record(lines.get(i).storeID, lines.get(i).productName, lines.get(i).units);
+         this._esql.getCatalog().unitsAdded(lines.get(i).storeID, lines.get(i).productName, -lines.get(i).units);
+      }
+      for (String key : totals.keySet()){
+         Line l = sample.get(key);
+         this._esql.getReplenisher().sold(l.storeID, l.productName, stocks.get(key).available.get());
+      }
+      this._placed.addAndGet(n);
+      return new Checkout(true, lines, orders);
+   }//end checkout
+
+   private Checkout rejected(List<Line> lines, Order[] orders, String[] keys, Set<String> failed) {
+      for (int i = 0; i < orders.length; ++i)
+         if (orders[i] == null)
+            orders[i] = failed.contains(keys[i]) ? INSUFFICIENT_STOCK : NOT_PLACED;
+      this._rejected.incrementAndGet();
+      return new Checkout(false, lines, orders);
+   }//end rejected
+
+   /*
+    * Takes units from the counter with a lock-free conditional decrement;
+    * false when there are not enough.
+    */
+   private static boolean reserve(Stock s, int units) {
+      while (true){
+         int available = s.available.get();
+         if (available < units) return false;
+         if (s.available.compareAndSet(available, available - units)) break;
+      }
+      s.pending.addAndGet(units);
+      return true;
+   }//end reserve
+
+   /*
+    * Gives reserved units back.
+    */
+   private static void release(Stock s, int units) {
+      s.pending.addAndGet(-units);
+      s.available.addAndGet(units);
+   }//end release
+
+   /**
+    * Records that the product's stock was set to units outside of
+    * placeOrder (e.g. by a manager).  Call after the change committed.
+    */
+   public void stockSet(int storeID, String productName, int units) {
+      Stock s = this._stock.get(key(storeID, productName));
+      if (s != null) s.available.set(units - s.pending.get());
+   }
+
+   /**
+    * Records that units were added to the product's stock outside of
+    * placeOrder (e.g. by a supply request).  Call after the change committed.
+    */
+   public void stockAdded(int storeID, String productName, int units) {
+      Stock s = this._stock.get(key(storeID, productName));
+      if (s != null) s.available.addAndGet(units);
+   }
+
+   /**
+    * Forgets every counter, so they are reloaded from Product.
+    */
+   public void invalidateAll() {
+      this._stock.clear();
+   }
+
+   /**
+    * Returns the units currently available for orders, or -1 when the
+    * product has not been loaded.
+    */
+   public int available(int storeID, String productName) {
+      Stock s = this._stock.get(key(storeID, productName));
+      return s == null ? -1 : s.available.get();
+   }
+
+   /*
+    * Runs until close() clears _running and the queue is empty.  Every
+    * order taken off the queue is written or failed.
+    */
+   private void writeLoop() {
+      List<Reservation> batch = new ArrayList<Reservation>(this._batchSize);
+      while (this._running || !this._queue.isEmpty()){
+         try{
+            Reservation first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) continue;
+            batch.add(first);
+            // give concurrent orders a moment to join the batch
+            long deadline = System.nanoTime() + this._flushMillis * 1000000L;
+            while (batch.size() < this._batchSize){
+               this._queue.drainTo(batch, this._batchSize - batch.size());
+               long wait = deadline - System.nanoTime();
+               if (batch.size() >= this._batchSize || wait <= 0) break;
+               Reservation next = this._queue.poll(wait, TimeUnit.NANOSECONDS);
+               if (next == null) break;
+               batch.add(next);
+            }
+         }catch (InterruptedException e){
+            // not how the writer is stopped: write what was collected
+         }
+         try{
+            if (!batch.isEmpty()) write(batch);
+         }catch (RuntimeException e){
+            fail(batch, new SQLException(e));
+         }finally{
+            batch.clear();
+         }
+      }
+   }//end writeLoop
+
+   /*
+    * Writes a batch in one transaction, falling back to one transaction per
+    * order when the database rejects a stock decrement.
+    */
+   private void write(final List<Reservation> batch) {
+      // one decrement per product
+      final TreeMap<String, int[]> totals = new TreeMap<String, int[]>();
+      final TreeMap<String, Reservation> sample = new TreeMap<String, Reservation>();
+      for (Reservation r : batch){
+         int[] t = totals.get(r.key);
+         if (t == null){ totals.put(r.key, t = new int[1]); sample.put(r.key, r); }
+         t[0] += r.units;
+      }
+      try{
+         boolean ok = this._esql.executeInTransaction(tx -> {
+            Transaction.Batch locks = tx.batch(LOCK_STOCKS);
+            Transaction.Batch updates = tx.batch(UPDATE_STOCKS);
+            for (Map.Entry<String, int[]> e : totals.entrySet()){
+               Reservation r = sample.get(e.getKey());
+               locks.add(r.storeID, r.productName, locks.size());
+               updates.add(e.getValue()[0], r.storeID, r.productName, updates.size());
+            }
+            locks.execute();
+            for (int count : updates.execute())
+               if (count == 0) throw new StockConflict();
+            Transaction.Batch orders = tx.batch(INSERT_ORDER);
+            Sales.Delta sales = new Sales.Delta();
+            for (Reservation r : batch){
+               orders.add(r.orderNumber, r.customerID, r.storeID, r.productName, r.units, r.orderTime);
+               sales.add(r.storeID, r.productName, r.customerID, r.units);
+            }
+            orders.execute();
+            sales.write(tx);
+            return Boolean.TRUE;
+         });
+         if (ok){
+            this._batches.incrementAndGet();
+            this._batchedOrders.addAndGet(batch.size());
+            for (Reservation r : batch) complete(r, Result.PLACED);
+         }
+      }catch (StockConflict e){
+         this._conflicts.incrementAndGet();
+         for (Reservation r : batch) writeOne(r);
+         for (String key : totals.keySet()) this._stock.remove(key);
+      }catch (SQLException e){
+         fail(batch, e);
+      }
+   }//end write
+
+   private void writeOne(final Reservation r) {
+      try{
+         boolean placed = this._esql.executeInTransaction(tx -> {
+            if (tx.executeUpdate(UPDATE_STOCK, r.units, r.storeID, r.productName, r.units) == 0)
+               return Boolean.FALSE;
+            tx.executeUpdate(INSERT_ORDER, r.orderNumber, r.customerID, r.storeID, r.productName, r.units, r.orderTime);
+            new Sales.Delta().add(r.storeID, r.productName, r.customerID, r.units).write(tx);
+            return Boolean.TRUE;
+         });
+         complete(r, placed ? Result.PLACED : Result.INSUFFICIENT_STOCK);
+      }catch (SQLException e){
+         fail(Collections.singletonList(r), e);
+      }
+   }//end writeOne
+
+   private void complete(Reservation r, Result result) {
+      r.stock.pending.addAndGet(-r.units);
+      if (result == Result.PLACED){
+         this._placed.incrementAndGet();
+         this._esql.getTrending().record(r.storeID, r.productName, r.units);
+         this._esql.getCatalog().unitsAdded(r.storeID, r.productName, -r.units);
+         this._esql.getReplenisher().sold(r.storeID, r.productName, r.stock.available.get());
+      }else this._rejected.incrementAndGet();
+      r.done.complete(result);
+   }//end complete
+
+   private void fail(List<Reservation> batch, SQLException e) {
+      for (Reservation r : batch){
+         // give the units back
+         release(r.stock, r.units);
+         r.done.completeExceptionally(e);
+      }
+   }//end fail
+
+   /**
+    * Writes every queued order and stops the writer thread.  Orders the
+    * writer could not get to within 10 seconds fail.
+    */
+   public void close() {
+      this._running = false;
+      try{
+         this._writer.join(10 * 1000L);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+      List<Reservation> left = new ArrayList<Reservation>();
+      this._queue.drainTo(left);
+      fail(left, new SQLException("The inventory was closed before the order was written"));
+   }//end close
+
+   public String toString() {
+      long batches = this._batches.get();
+      return String.format("inventory: %d placed, %d rejected, %d batches (%.1f orders/batch), %d stock conflicts, %d queued",
+                           this._placed.get(), this._rejected.get(), batches,
+                           batches == 0 ? 0.0 : (double) this._batchedOrders.get() / batches,
+                           this._conflicts.get(), this._queue.size());
+   }
+
+   /*
+    * Thrown inside the batch transaction to roll it back when the database
+    * had less stock than the counters.
+    */
+   private static class StockConflict extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      StockConflict() { super("stock changed outside this process"); }
+   }
+}//end Inventory
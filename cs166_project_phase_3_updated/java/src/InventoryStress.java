@@ -0,0 +1,109 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This program hammers one product with concurrent orders, as in a flash
+ * sale, and reports the order throughput.  Afterwards it checks that the
+ * stock never went negative and that every placed order, and no other, was
+ * written with its stock change.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar InventoryStress &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *         [storeID] [productName] [stock] [threads] [orders per thread] [customerID]
+ *
+ * The product's numberOfUnits is overwritten with the given stock.
+ *
+ */
+
+public class InventoryStress {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java InventoryStress <dbname> <port> <user> [storeID] [productName] [stock] [threads] [orders per thread] [customerID]");
+         return;
+      }
+      final int storeID = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+      final String productName = args.length > 4 ? args[4] : "Pepsi";
+      final int stock = args.length > 5 ? Integer.parseInt(args[5]) : 10000;
+      final int threads = args.length > 6 ? Integer.parseInt(args[6]) : 1000;
+      final int perThread = args.length > 7 ? Integer.parseInt(args[7]) : 20;
+      final int customerID = args.length > 8 ? Integer.parseInt(args[8]) : 2;
+
+      Class.forName("org.postgresql.Driver");
+      final Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try{
+         esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?", stock, storeID, productName);
+         esql.getInventory().stockSet(storeID, productName, stock);
+         Timestamp start = new Timestamp(System.currentTimeMillis() - 1000);
+
+         final AtomicLong placed = new AtomicLong();
+         final AtomicLong rejected = new AtomicLong();
+         final AtomicLong errors = new AtomicLong();
+         long t0 = System.nanoTime();
+         ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+         List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (int t = 0; t < threads; ++t){
+            futures.add(pool.submit(() -> {
+               for (int i = 0; i < perThread; ++i){
+                  try{
+                     if (esql.getInventory().placeOrder(customerID, storeID, productName, 1).result == Inventory.Result.PLACED)
+                        placed.incrementAndGet();
+                     else
+                        rejected.incrementAndGet();
+                  }catch (Exception e){
+                     errors.incrementAndGet();
+                  }
+               }
+            }));
+         }
+         for (Future<?> f : futures) f.get();
+         pool.shutdown();
+         double seconds = (System.nanoTime() - t0) / 1e9;
+
+         int left = esql.executeQueryForObject("SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?",
+                                               row -> row.getInt(1), storeID, productName);
+         long written = esql.executeQueryForObject("SELECT COALESCE(SUM(unitsOrdered), 0) FROM Orders WHERE storeID = ? AND productName = ? AND customerID = ? AND orderTime >= ?",
+                                                   row -> row.getLong(1), storeID, productName, customerID, start);
+
+         System.out.printf("%d orders attempted by %d threads in %.2f s: %.0f orders/s%n", (long) threads * perThread, threads, seconds, threads * perThread / seconds);
+         System.out.printf("placed %d, rejected %d, errors %d%n", placed.get(), rejected.get(), errors.get());
+         System.out.println(esql.getInventory());
+         System.out.println(esql.getPool());
+
+         boolean ok = true;
+         if (left < 0){
+            System.out.println("FAIL: stock went negative: " + left);
+            ok = false;
+         }
+         if (left != stock - placed.get()){
+            System.out.println("FAIL: stock is " + left + ", expected " + (stock - placed.get()));
+            ok = false;
+         }
+         if (written != placed.get()){
+            System.out.println("FAIL: " + written + " units in Orders, expected " + placed.get());
+            ok = false;
+         }
+         System.out.println(ok ? "OK: stock and orders are consistent" : "INCONSISTENT");
+         if (!ok) System.exit(1);
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+}//end InventoryStress
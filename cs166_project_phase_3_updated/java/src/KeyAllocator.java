@@ -0,0 +1,102 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands out primary keys from a database sequence.  Keys are
+ * fetched a block at a time in one round trip and then handed out from
+ * memory, so an insert needs no query to pick its key and no two callers,
+ * in this process or another, ever get the same key.
+ *
+ * Keys left in a block when the program exits are never used, so keys have
+ * gaps, as they do with plain serial columns.  Nor do keys follow time when
+ * several processes run: one process can hand out a lower key than another
+ * handed out earlier.  Lists of the most recent rows therefore order by
+ * their time, with the key only breaking ties (Pages); set
+ * amazon.keys.block to 1 where the keys themselves must be in order.
+ *
+ */
+
+public class KeyAllocator {
+
+   // the serial sequences of the tables whose keys are allocated here
+   public static final String ORDERS = "orders_ordernumber_seq";
+   public static final String PRODUCT_UPDATES = "productupdates_updatenumber_seq";
+   public static final String SUPPLY_REQUESTS = "productsupplyrequests_requestnumber_seq";
+
+   public static final int DEFAULT_BLOCK_SIZE = 100;
+
+   private final String _sequence;
+   private final int _blockSize;
+
+   private final ReentrantLock _lock = new ReentrantLock();
+   private int[] _block = new int[0];
+   private int _next = 0;
+
+   // metrics
+   private final AtomicLong _allocated = new AtomicLong();
+   private final AtomicLong _fetches = new AtomicLong();
+
+   /**
+    * Creates a new allocator
+    *
+    * @param sequence the name of the DB sequence
+    * @param blockSize the number of keys fetched per round trip
+    */
+   public KeyAllocator(String sequence, int blockSize) {
+      this._sequence = sequence;
+      this._blockSize = Math.max(1, blockSize);
+   }//end KeyAllocator
+
+   /**
+    * Returns the next unused key, fetching a new block when the current
+    * one is used up.
+    *
+    * @throws java.sql.SQLException when a new block could not be fetched
+    */
+   public int next(Amazon esql) throws SQLException {
+      this._lock.lock();
+      try{
+         if (this._next == this._block.length)
+            fetch(esql);
+         this._allocated.incrementAndGet();
+         return this._block[this._next++];
+      }finally{
+         this._lock.unlock();
+      }
+   }//end next
+
+   /*
+    * nextval is called once per key, but all in one statement; the keys of a
+    * block need not be contiguous when other clients use the sequence.
+    */
+   private void fetch(Amazon esql) throws SQLException {
+      final int[] block = new int[this._blockSize];
+      final int[] n = { 0 };
+      esql.executeQueryStreaming("SELECT nextval(?) FROM generate_series(1, ?)", row -> {
+         block[n[0]++] = row.getInt(1);
+      }, this._sequence, this._blockSize);
+      if (n[0] != this._blockSize)
+         throw new SQLException("Could not allocate keys from " + this._sequence);
+      this._block = block;
+      this._next = 0;
+      this._fetches.incrementAndGet();
+   }//end fetch
+
+   public String toString() {
+      return String.format("%s: %d keys allocated in %d round trips", this._sequence, this._allocated.get(), this._fetches.get());
+   }
+}//end KeyAllocator
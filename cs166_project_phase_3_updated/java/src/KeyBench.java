@@ -0,0 +1,91 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Timestamp;
+
+/**
+ * This program grows Orders round by round and reports the insert rate of
+ * each round, to show that allocating orderNumber does not get slower as
+ * the table grows.  Each round inserts its rows in batched transactions and
+ * then times single-row inserts, the way the menu places one order.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar KeyBench &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *         [rounds] [rows per round] [customerID] [storeID] [productName] [--keep]
+ *
+ * The rows are inserted with orderTime 1970-01-01 and deleted at the end
+ * unless --keep is given.
+ *
+ */
+
+public class KeyBench {
+
+   private static final String INSERT_ORDER =
+      "INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, ?, ?)";
+
+   // single-row inserts timed per round
+   private static final int SINGLE = 1000;
+   private static final int BATCH = 1000;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java KeyBench <dbname> <port> <user> [rounds] [rows per round] [customerID] [storeID] [productName] [--keep]");
+         return;
+      }
+      boolean keep = false;
+      int n = args.length;
+      if ("--keep".equals(args[n - 1])){
+         keep = true;
+         n--;
+      }
+      final int rounds = n > 3 ? Integer.parseInt(args[3]) : 10;
+      final int perRound = n > 4 ? Integer.parseInt(args[4]) : 200000;
+      final int customerID = n > 5 ? Integer.parseInt(args[5]) : 2;
+      final int storeID = n > 6 ? Integer.parseInt(args[6]) : 1;
+      final String productName = n > 7 ? args[7] : "Pepsi";
+      final Timestamp marker = new Timestamp(0);
+
+      Class.forName("org.postgresql.Driver");
+      final Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try{
+         long rows = esql.executeQueryForObject("SELECT COUNT(*) FROM Orders", row -> row.getLong(1));
+         System.out.println("round       rows   batched rows/s   single inserts/s");
+         for (int round = 1; round <= rounds; ++round){
+            long t0 = System.nanoTime();
+            for (int done = 0; done < perRound; done += BATCH){
+               final int size = Math.min(BATCH, perRound - done);
+               esql.executeInTransaction(tx -> {
+                  Transaction.Batch batch = tx.batch(INSERT_ORDER);
+                  for (int i = 0; i < size; ++i)
+                     batch.add(esql.nextKey(KeyAllocator.ORDERS), customerID, storeID, productName, 1, marker);
+                  return batch.execute();
+               });
+            }
+            double batched = perRound / ((System.nanoTime() - t0) / 1e9);
+            rows += perRound;
+
+            t0 = System.nanoTime();
+            for (int i = 0; i < SINGLE; ++i)
+               esql.executeUpdate(INSERT_ORDER, esql.nextKey(KeyAllocator.ORDERS), customerID, storeID, productName, 1, marker);
+            double single = SINGLE / ((System.nanoTime() - t0) / 1e9);
+            rows += SINGLE;
+
+            System.out.printf("%5d %10d %16.0f %18.0f%n", round, rows, batched, single);
+         }
+         System.out.println(esql.getPool());
+      }finally{
+         if (!keep)
+            System.out.println("deleted " + esql.executeUpdate("DELETE FROM Orders WHERE orderTime = ?", marker) + " benchmark rows");
+         esql.cleanup();
+      }
+   }//end main
+}//end KeyBench
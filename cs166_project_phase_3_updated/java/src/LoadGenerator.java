@@ -0,0 +1,396 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This program runs simulated users against the database, each with its
+ * own session, driving the menu operations with scripted answers, and
+ * reports the throughput and latency of every operation.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar LoadGenerator &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *         [mix] [users] [seconds] [ramp-up seconds] [think ms]
+ *
+ * The mix is browse, checkout or reporting (see MIXES), or a list of
+ * operation=weight pairs such as viewProducts=3,placeOrder=1.  Each user
+ * picks its next operation by weight, answers its prompts with a store
+ * and products it may use, then thinks for an exponentially distributed
+ * time with the given mean.  Customer operations run as random customers
+ * with a store within STORE_RADIUS; manager operations as the managers of
+ * the stores.  A mix of both splits the users between the two by weight.
+ *
+ * Users start evenly spread over the ramp-up, and only operations started
+ * after it are measured.  An operation that printed an error counts as an
+ * error; an order or cart refused for lack of stock as rejected.  The
+ * inventory's stock conflicts and the pool's timeouts and waits show the
+ * contention.
+ *
+ * The operations change the data as they would from the menu: orders are
+ * placed, stock and prices updated and supply requests written.
+ *
+ */
+
+public class LoadGenerator {
+
+   /**
+    * The predefined operation mixes.
+    */
+   public static final Map<String, String> MIXES = new LinkedHashMap<String, String>();
+   static {
+      MIXES.put("browse", "viewStores=20,viewProducts=50,viewRecentOrders=15,placeOrder=10,checkout=5");
+      MIXES.put("checkout", "viewStores=5,viewProducts=25,placeOrder=35,checkout=25,viewRecentOrders=10");
+      MIXES.put("reporting", "recentStoreOrders=20,viewPopularProducts=20,viewPopularCustomers=15,viewRecentUpdates=15," +
+                             "viewTrendingProducts=15,updateProduct=10,placeProductSupplyRequests=5");
+   }
+
+   // the operations a simulated user can run, and which need a manager
+   private static final Map<String, Amazon.Operation> OPERATIONS = new LinkedHashMap<String, Amazon.Operation>();
+   private static final Map<String, Boolean> MANAGER = new HashMap<String, Boolean>();
+   static {
+      operation("viewStores", Amazon::viewStores, false);
+      operation("viewProducts", Amazon::viewProducts, false);
+      operation("placeOrder", Amazon::placeOrder, false);
+      operation("checkout", Amazon::checkout, false);
+      operation("viewRecentOrders", Amazon::viewRecentOrders, false);
+      operation("updateProduct", Amazon::updateProduct, true);
+      operation("viewRecentUpdates", Amazon::viewRecentUpdates, true);
+      operation("viewPopularProducts", Amazon::viewPopularProducts, true);
+      operation("viewPopularCustomers", Amazon::viewPopularCustomers, true);
+      operation("viewTrendingProducts", Amazon::viewTrendingProducts, true);
+      operation("placeProductSupplyRequests", Amazon::placeProductSupplyRequests, true);
+      operation("recentStoreOrders", Amazon::recentStoreOrders, true);
+   }
+
+   private static void operation(String name, Amazon.Operation op, boolean manager) {
+      OPERATIONS.put(name, op);
+      MANAGER.put(name, manager);
+   }
+
+   /*
+    * The weighted operations of one role.
+    */
+   private static class Mix {
+      final List<String> names = new ArrayList<String>();
+      final List<Integer> cumulative = new ArrayList<Integer>();
+      int total = 0;
+
+      void add(String name, int weight) {
+         this.total += weight;
+         this.names.add(name);
+         this.cumulative.add(this.total);
+      }
+
+      String pick(ThreadLocalRandom rnd) {
+         int r = rnd.nextInt(this.total);
+         for (int i = 0; ; ++i)
+            if (r < this.cumulative.get(i)) return this.names.get(i);
+      }
+   }//end Mix
+
+   /*
+    * A simulated user: its session and the stores it uses.
+    */
+   private static class Actor {
+      final Session session;
+      final int[] stores;
+      final boolean manager;
+
+      Actor(Session session, int[] stores, boolean manager) {
+         this.session = session;
+         this.stores = stores;
+         this.manager = manager;
+      }
+   }//end Actor
+
+   /*
+    * The measured numbers of one operation.
+    */
+   private static class Result {
+      final Metrics.Histogram latency = new Metrics.Histogram();
+      final LongAdder errors = new LongAdder();
+      final LongAdder rejected = new LongAdder();
+   }//end Result
+
+   private final Amazon _esql;
+   private final Mix _customer = new Mix();
+   private final Mix _manager = new Mix();
+   private final Map<String, Result> _results = new LinkedHashMap<String, Result>();
+   private final List<Integer> _warehouses = new ArrayList<Integer>();
+   private final long _thinkMillis;
+   private volatile boolean _running = true;
+   private volatile long _measureFrom;
+
+   /**
+    * Creates a generator for an operation mix
+    *
+    * @param mix a name in MIXES or a list of operation=weight pairs
+    * @param thinkMillis mean time a user waits between operations
+    */
+   public LoadGenerator(Amazon esql, String mix, long thinkMillis) {
+      this._esql = esql;
+      this._thinkMillis = thinkMillis;
+      String spec = MIXES.containsKey(mix) ? MIXES.get(mix) : mix;
+      for (String pair : spec.split(",")){
+         String[] nw = pair.trim().split("=");
+         if (nw.length != 2 || !OPERATIONS.containsKey(nw[0].trim()))
+            throw new IllegalArgumentException("Unknown mix or operation: " + pair);
+         String name = nw[0].trim();
+         int weight = Integer.parseInt(nw[1].trim());
+         if (weight <= 0) continue;
+         (MANAGER.get(name) ? this._manager : this._customer).add(name, weight);
+         this._results.put(name, new Result());
+      }
+      if (this._results.isEmpty()) throw new IllegalArgumentException("Empty mix: " + mix);
+   }//end LoadGenerator
+
+   /*
+    * Logs in count customers that have a store within STORE_RADIUS,
+    * reusing them when there are not enough.
+    */
+   private List<Actor> customers(int count) throws Exception {
+      List<Actor> actors = new ArrayList<Actor>();
+      if (count == 0) return actors;
+      List<Session> candidates = this._esql.executeQueryAndMap(
+         "SELECT userID, name, latitude, longitude, type FROM Users WHERE type = 'customer' ORDER BY random() LIMIT ?",
+         row -> session(row.getInt(1), row.getTrimmed(2), row.getDouble(3), row.getDouble(4), row.getTrimmed(5)), count * 4);
+      List<Actor> distinct = new ArrayList<Actor>();
+      for (Session s : candidates){
+         if (distinct.size() == count) break;
+         List<StoreIndex.Hit> near = this._esql.storesWithin(s.latitude, s.longitude, Amazon.STORE_RADIUS);
+         if (near.isEmpty()) continue;
+         int[] stores = new int[near.size()];
+         for (int i = 0; i < stores.length; ++i) stores[i] = near.get(i).storeID;
+         distinct.add(new Actor(s, stores, false));
+      }
+      if (distinct.isEmpty()) throw new IllegalStateException("No customer has a store within " + Amazon.STORE_RADIUS + " miles");
+      for (int i = 0; i < count; ++i) actors.add(distinct.get(i % distinct.size()));
+      return actors;
+   }//end customers
+
+   /*
+    * Logs in count managers with the stores they manage, reusing them when
+    * there are not enough.
+    */
+   private List<Actor> managers(int count) throws Exception {
+      List<Actor> actors = new ArrayList<Actor>();
+      if (count == 0) return actors;
+      final Map<Integer, List<Integer>> stores = new LinkedHashMap<Integer, List<Integer>>();
+      final Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+      this._esql.executeQueryStreaming(
+         "SELECT u.userID, u.name, u.latitude, u.longitude, u.type, s.storeID FROM Users u JOIN Store s ON s.managerID = u.userID ORDER BY u.userID",
+         row -> {
+            int id = row.getInt(1);
+            if (!stores.containsKey(id)){
+               stores.put(id, new ArrayList<Integer>());
+               sessions.put(id, session(id, row.getTrimmed(2), row.getDouble(3), row.getDouble(4), row.getTrimmed(5)));
+            }
+            stores.get(id).add(row.getInt(6));
+         });
+      if (stores.isEmpty()) throw new IllegalStateException("No store has a manager");
+      List<Actor> distinct = new ArrayList<Actor>();
+      for (Map.Entry<Integer, List<Integer>> e : stores.entrySet()){
+         int[] ids = new int[e.getValue().size()];
+         for (int i = 0; i < ids.length; ++i) ids[i] = e.getValue().get(i);
+         distinct.add(new Actor(sessions.get(e.getKey()), ids, true));
+      }
+      for (int i = 0; i < count; ++i) actors.add(distinct.get(ThreadLocalRandom.current().nextInt(distinct.size())));
+      return actors;
+   }//end managers
+
+   private Session session(int userID, String name, double latitude, double longitude, String type) {
+      Session s = new Session(null, null, null);
+      s.login(userID, name, latitude, longitude, type);
+      return s;
+   }
+
+   /*
+    * A random product of the store, or null when it has none.
+    */
+   private String product(int storeID, ThreadLocalRandom rnd) throws Exception {
+      List<Catalog.Product> products = this._esql.getCatalog().get(this._esql, storeID);
+      if (products == null || products.isEmpty()) return null;
+      return products.get(rnd.nextInt(products.size())).productName.trim();
+   }
+
+   /*
+    * The answers to the prompts of an operation, or null when the actor
+    * has nothing to run it on.
+    */
+   private String script(String name, Actor actor, ThreadLocalRandom rnd) throws Exception {
+      int store = actor.stores[rnd.nextInt(actor.stores.length)];
+      switch (name){
+         case "viewStores":
+         case "viewRecentOrders":
+            return "";
+         case "viewProducts":
+         case "viewRecentUpdates":
+         case "viewPopularProducts":
+         case "viewPopularCustomers":
+         case "recentStoreOrders":
+            return store + "\n";
+         case "viewTrendingProducts":
+            return store + "\n" + Trending.WINDOW_NAMES[rnd.nextInt(Trending.WINDOW_NAMES.length)] + "\n";
+         case "placeOrder": {
+            String product = product(store, rnd);
+            if (product == null) return null;
+            return store + "\n" + product + "\n" + (1 + rnd.nextInt(3)) + "\n";
+         }
+         case "checkout": {
+            StringBuilder cart = new StringBuilder();
+            for (int i = 1 + rnd.nextInt(4); i > 0; --i){
+               int s = actor.stores[rnd.nextInt(actor.stores.length)];
+               String product = product(s, rnd);
+               if (product != null) cart.append(s).append(',').append(product).append(',').append(1 + rnd.nextInt(3)).append('\n');
+            }
+            return cart.length() == 0 ? null : cart.append('\n').toString();
+         }
+         case "updateProduct": {
+            String product = product(store, rnd);
+            if (product == null) return null;
+            return rnd.nextBoolean() ? store + "\n" + product + "\namount\n" + (100 + rnd.nextInt(900)) + "\n"
+                                     : store + "\n" + product + "\nprice\n" + (1 + rnd.nextInt(100)) + "\n";
+         }
+         case "placeProductSupplyRequests": {
+            String product = product(store, rnd);
+            if (product == null || this._warehouses.isEmpty()) return null;
+            return store + "\n" + product + "\n" + (10 + rnd.nextInt(90)) + "\n"
+                   + this._warehouses.get(rnd.nextInt(this._warehouses.size())) + "\n";
+         }
+         default:
+            throw new IllegalArgumentException(name);
+      }
+   }//end script
+
+   /*
+    * Runs operations as one user until stopped.
+    */
+   private void user(Actor actor, long delayMillis) {
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+      ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(outBytes);
+      PrintStream err = new PrintStream(errBytes);
+      Mix mix = actor.manager ? this._manager : this._customer;
+      try{
+         Thread.sleep(delayMillis);
+         while (this._running){
+            String name = mix.pick(rnd);
+            String script = script(name, actor, rnd);
+            if (script != null){
+               outBytes.reset();
+               errBytes.reset();
+               Session s = actor.session.withStreams(new BufferedReader(new StringReader(script)), out, err);
+               long start = System.nanoTime();
+               Amazon.run(this._esql, s, name, OPERATIONS.get(name));
+               long nanos = System.nanoTime() - start;
+               if (start >= this._measureFrom && this._running){
+                  Result r = this._results.get(name);
+                  r.latency.record(nanos);
+                  if (errBytes.size() > 0) r.errors.increment();
+                  String printed = outBytes.toString();
+                  if (printed.contains("enough") || printed.contains("Nothing was ordered")) r.rejected.increment();
+               }
+            }
+            if (this._thinkMillis > 0)
+               Thread.sleep((long) (-Math.log(1 - rnd.nextDouble()) * this._thinkMillis));
+         }
+      }catch (InterruptedException e){
+         // stopping
+      }catch (Exception e){
+         System.err.println("Simulated user " + actor.session.userID + " stopped: " + e.getMessage());
+      }
+   }//end user
+
+   /**
+    * Runs users simulated users for rampUp seconds and then seconds more,
+    * measuring the latter, and prints the results.
+    */
+   public void run(int users, int rampUpSeconds, int seconds) throws Exception {
+      this._warehouses.addAll(this._esql.executeQueryAndMap("SELECT WarehouseID FROM Warehouse", row -> row.getInt(1)));
+      int managers = this._customer.total == 0 ? users
+                   : (int) Math.round((double) users * this._manager.total / (this._manager.total + this._customer.total));
+      List<Actor> actors = new ArrayList<Actor>(customers(users - managers));
+      actors.addAll(managers(managers));
+      for (Actor a : actors)
+         if (a.session.principal == null)
+            a.session.principal = this._esql.getPrincipals().login(this._esql, a.session.userID, a.session.type);
+
+      this._measureFrom = System.nanoTime() + rampUpSeconds * 1000000000L;
+      ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int i = 0; i < actors.size(); ++i){
+         final Actor actor = actors.get(i);
+         final long delay = rampUpSeconds * 1000L * i / actors.size();
+         futures.add(pool.submit(() -> user(actor, delay)));
+      }
+      Thread.sleep((rampUpSeconds + seconds) * 1000L);
+      this._running = false;
+      for (Future<?> f : futures) f.get();
+      pool.shutdown();
+      report(System.out, actors.size() - managers, managers, seconds);
+   }//end run
+
+   private void report(PrintStream out, int customers, int managers, int seconds) {
+      out.printf("%d customers, %d managers, %d s measured%n", customers, managers, seconds);
+      String header = "%-28s %9s %9s %7s %9s %9s %9s %9s %9s%n";
+      out.printf(header, "operation", "calls", "ops/s", "errors", "rejected", "p50 ms", "p95 ms", "p99 ms", "max ms");
+      long calls = 0, errors = 0;
+      for (Map.Entry<String, Result> e : this._results.entrySet()){
+         Metrics.Histogram h = e.getValue().latency;
+         calls += h.getCount();
+         errors += e.getValue().errors.sum();
+         out.printf("%-28s %9d %9.1f %7d %9d %9.3f %9.3f %9.3f %9.3f%n", e.getKey(), h.getCount(), (double) h.getCount() / seconds,
+                    e.getValue().errors.sum(), e.getValue().rejected.sum(), h.getQuantile(0.5) / 1e6, h.getQuantile(0.95) / 1e6,
+                    h.getQuantile(0.99) / 1e6, h.getMax() / 1e6);
+      }
+      out.printf("%-28s %9d %9.1f %7d%n", "all", calls, (double) calls / seconds, errors);
+      out.println(this._esql.getInventory());
+      out.println(this._esql.getReplenisher());
+      out.println(this._esql.getPool());
+      out.println(this._esql.getSlowQueries());
+   }//end report
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java LoadGenerator <dbname> <port> <user> [mix] [users] [seconds] [ramp-up seconds] [think ms]");
+         System.err.println("mixes: " + MIXES.keySet() + " or <operation>=<weight>,... of " + OPERATIONS.keySet());
+         return;
+      }
+      String mix = args.length > 3 ? args[3] : "browse";
+      int users = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+      int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 60;
+      int rampUp = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+      long think = args.length > 7 ? Long.parseLong(args[7]) : 200;
+
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try{
+         new LoadGenerator(esql, mix, think).run(users, rampUp, seconds);
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+}//end LoadGenerator
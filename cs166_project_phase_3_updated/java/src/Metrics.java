@@ -0,0 +1,324 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class times the client's database calls and menu operations.
+ *
+ * Every execute method of Amazon records its latency, rows and failures
+ * under its name; every menu operation run through Amazon.run records its
+ * latency, errors and the number of database calls it made (round trips).
+ * Calls made by background threads, e.g. the inventory writer, count for
+ * their execute method only.  Recording allocates nothing: latencies go to
+ * fixed histograms whose buckets are 1/8 of a power of two wide, so the
+ * percentiles are within 12.5% of the true value.
+ *
+ * toString() prints a table; toJson() the same numbers as JSON.  With
+ * amazon.metrics.file set, a thread writes one of them (JSON when the name
+ * ends in .json) to that file every amazon.metrics.interval ms (default
+ * 60 s).
+ *
+ */
+
+public class Metrics {
+
+   /**
+    * Latency histogram in nanoseconds.
+    */
+   public static class Histogram {
+      // values below 8 have their own bucket, then 8 buckets per power of two
+      private static final int SUB_BITS = 3;
+      private static final int SUB = 1 << SUB_BITS;
+
+      private final AtomicLongArray _counts = new AtomicLongArray(64 * SUB);
+      private final LongAdder _count = new LongAdder();
+      private final LongAdder _sum = new LongAdder();
+      private final AtomicLong _max = new AtomicLong();
+
+      public void record(long nanos) {
+         if (nanos < 0) nanos = 0;
+         this._counts.incrementAndGet(index(nanos));
+         this._count.increment();
+         this._sum.add(nanos);
+         long max = this._max.get();
+         while (nanos > max && !this._max.compareAndSet(max, nanos)) max = this._max.get();
+      }//end record
+
+      private static int index(long v) {
+         if (v < SUB) return (int) v;
+         int e = 63 - Long.numberOfLeadingZeros(v);
+         return ((e - SUB_BITS + 1) << SUB_BITS) + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+      }//end index
+
+      // the largest value that falls in bucket i
+      private static long highest(int i) {
+         if (i < SUB) return i;
+         int e = (i >> SUB_BITS) + SUB_BITS - 1;
+         long width = 1L << (e - SUB_BITS);
+         return ((SUB + (i & (SUB - 1))) << (e - SUB_BITS)) + width - 1;
+      }//end highest
+
+      public long getCount() { return this._count.sum(); }
+      public long getMax() { return this._max.get(); }
+      public double getMean() { long n = getCount(); return n == 0 ? 0 : (double) this._sum.sum() / n; }
+
+      /**
+       * Returns the value at quantile q (0 to 1): the top of the bucket
+       * holding it, at most the maximum.
+       */
+      public long getQuantile(double q) {
+         long total = 0;
+         for (int i = 0; i < this._counts.length(); ++i) total += this._counts.get(i);
+         if (total == 0) return 0;
+         long rank = Math.max(1, (long) Math.ceil(q * total)), seen = 0;
+         for (int i = 0; i < this._counts.length(); ++i){
+            seen += this._counts.get(i);
+            if (seen >= rank) return Math.min(highest(i), getMax());
+         }
+         return getMax();
+      }//end getQuantile
+   }//end Histogram
+
+   /**
+    * The numbers of one execute method or one menu operation.
+    */
+   public class Stat {
+      public final String name;
+      public final Histogram latency = new Histogram();
+      private final LongAdder _rows = new LongAdder();
+      private final LongAdder _errors = new LongAdder();
+      private final LongAdder _roundTrips = new LongAdder();
+
+      Stat(String name) {
+         this.name = name;
+      }
+
+      /**
+       * Records a database call that started at start (System.nanoTime)
+       * and returned or changed rows rows.
+       */
+      public void record(long start, long rows) {
+         this.latency.record(System.nanoTime() - start);
+         this._rows.add(rows);
+         this._roundTrips.increment();
+         roundTrip();
+      }
+
+      /**
+       * Records a database call that failed.  The operation running counts
+       * an error itself, once, if the failure makes it fail (error()).
+       */
+      public void failed(long start) {
+         this.latency.record(System.nanoTime() - start);
+         this._errors.increment();
+         this._roundTrips.increment();
+         roundTrip();
+      }
+
+      public long getRows() { return this._rows.sum(); }
+      public long getErrors() { return this._errors.sum(); }
+      public long getRoundTrips() { return this._roundTrips.sum(); }
+   }//end Stat
+
+   // execute methods of Amazon
+   public final Stat executeUpdate = new Stat("executeUpdate");
+   public final Stat executeQuery = new Stat("executeQuery");
+   public final Stat executeQueryAndPrintResult = new Stat("executeQueryAndPrintResult");
+   public final Stat executeQueryAndReturnResult = new Stat("executeQueryAndReturnResult");
+   public final Stat executeQueryStreaming = new Stat("executeQueryStreaming");
+   public final Stat executeInTransaction = new Stat("executeInTransaction");
+   private final Stat[] _queries = { executeUpdate, executeQuery, executeQueryAndPrintResult,
+                                     executeQueryAndReturnResult, executeQueryStreaming, executeInTransaction };
+
+   // menu operations by name, and the one running on each thread
+   private final ConcurrentHashMap<String, Stat> _operations = new ConcurrentHashMap<String, Stat>();
+   private final ThreadLocal<Stat> _current = new ThreadLocal<Stat>();
+
+   private final File _file;
+   private final long _intervalMillis;
+   private final Thread _dumper;
+   private volatile boolean _running = true;
+
+   /**
+    * Creates new metrics and starts the dump thread
+    *
+    * @param file where to dump them; null never dumps
+    * @param intervalMillis time between dumps
+    */
+   public Metrics(File file, long intervalMillis) {
+      this._file = file;
+      this._intervalMillis = intervalMillis;
+      if (file == null || intervalMillis <= 0){
+         this._dumper = null;
+         return;
+      }
+      this._dumper = new Thread(new Runnable(){
+         public void run(){ dumpLoop(); }
+      }, "amazon-metrics-dump");
+      this._dumper.setDaemon(true);
+      this._dumper.start();
+   }//end Metrics
+
+   /**
+    * Returns the numbers of a menu operation.
+    */
+   public Stat operation(String name) {
+      Stat s = this._operations.get(name);
+      if (s != null) return s;
+      Stat created = new Stat(name);
+      s = this._operations.putIfAbsent(name, created);
+      return s == null ? created : s;
+   }//end operation
+
+   /**
+    * Makes op the operation running on this thread.
+    *
+    * @return the operation it replaces, to pass to exit
+    */
+   public Stat enter(Stat op) {
+      Stat outer = this._current.get();
+      this._current.set(op);
+      return outer;
+   }//end enter
+
+   /**
+    * Records the operation entered at start and restores the outer one.
+    */
+   public void exit(Stat op, Stat outer, long start) {
+      op.latency.record(System.nanoTime() - start);
+      if (outer == null) this._current.remove();
+      else this._current.set(outer);
+   }//end exit
+
+   private void roundTrip() {
+      Stat op = this._current.get();
+      if (op != null) op._roundTrips.increment();
+   }
+
+   /**
+    * Counts an error of the operation running on this thread.
+    */
+   public void error() {
+      Stat op = this._current.get();
+      if (op != null) op._errors.increment();
+   }
+
+   private List<Stat> operations() {
+      return new ArrayList<Stat>(new TreeMap<String, Stat>(this._operations).values());
+   }
+
+   private static double ms(long nanos) {
+      return nanos / 1e6;
+   }
+
+   public String toString() {
+      StringBuilder sb = new StringBuilder();
+      String header = "%-28s %9s %7s %10s %9s %9s %9s %9s%n";
+      String line = "%-28s %9d %7d %10d %9.3f %9.3f %9.3f %9.3f%n";
+      sb.append(String.format(header, "query", "calls", "errors", "rows", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+      for (Stat s : this._queries)
+         sb.append(String.format(line, s.name, s.latency.getCount(), s.getErrors(), s.getRows(), ms(s.latency.getQuantile(0.5)),
+                                 ms(s.latency.getQuantile(0.99)), ms(s.latency.getQuantile(0.999)), ms(s.latency.getMax())));
+      sb.append(String.format(header, "operation", "calls", "errors", "trips/call", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+      for (Stat s : operations()){
+         long n = s.latency.getCount();
+         sb.append(String.format("%-28s %9d %7d %10.2f %9.3f %9.3f %9.3f %9.3f%n", s.name, n, s.getErrors(),
+                                 n == 0 ? 0.0 : (double) s.getRoundTrips() / n, ms(s.latency.getQuantile(0.5)),
+                                 ms(s.latency.getQuantile(0.99)), ms(s.latency.getQuantile(0.999)), ms(s.latency.getMax())));
+      }
+      return sb.toString();
+   }//end toString
+
+   private static void json(StringBuilder sb, Stat s) {
+      sb.append(String.format("{\"name\": \"%s\", \"calls\": %d, \"errors\": %d, \"rows\": %d, \"roundTrips\": %d, " +
+                              "\"meanNanos\": %.0f, \"p50Nanos\": %d, \"p99Nanos\": %d, \"p999Nanos\": %d, \"maxNanos\": %d}",
+                              s.name, s.latency.getCount(), s.getErrors(), s.getRows(), s.getRoundTrips(), s.latency.getMean(),
+                              s.latency.getQuantile(0.5), s.latency.getQuantile(0.99), s.latency.getQuantile(0.999), s.latency.getMax()));
+   }//end json
+
+   /**
+    * Returns the numbers as one JSON object.
+    */
+   public String toJson() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("{\"time\": ").append(System.currentTimeMillis()).append(", \"queries\": [");
+      for (int i = 0; i < this._queries.length; ++i){
+         if (i > 0) sb.append(", ");
+         json(sb, this._queries[i]);
+      }
+      sb.append("], \"operations\": [");
+      List<Stat> ops = operations();
+      for (int i = 0; i < ops.size(); ++i){
+         if (i > 0) sb.append(", ");
+         json(sb, ops.get(i));
+      }
+      return sb.append("]}\n").toString();
+   }//end toJson
+
+   /**
+    * Writes the numbers to the dump file, replacing it whole.
+    */
+   public void dump() throws IOException {
+      File tmp = new File(this._file.getPath() + ".tmp");
+      Writer out = new FileWriter(tmp);
+      try{
+         out.write(this._file.getName().endsWith(".json") ? toJson() : toString());
+      }finally{
+         out.close();
+      }
+      Files.move(tmp.toPath(), this._file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end dump
+
+   private void dumpLoop() {
+      while (this._running){
+         try{
+            Thread.sleep(this._intervalMillis);
+            dump();
+         }catch (InterruptedException e){
+            // stopping
+         }catch (IOException e){
+            System.err.println("Warning - Unable to write the metrics to " + this._file + ": " + e.getMessage());
+         }
+      }
+   }//end dumpLoop
+
+   /**
+    * Stops the dump thread after a last dump.
+    */
+   public void close() {
+      this._running = false;
+      if (this._dumper == null) return;
+      this._dumper.interrupt();
+      try{
+         this._dumper.join(10 * 1000L);
+         dump();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }catch (IOException e){
+         System.err.println("Warning - Unable to write the metrics to " + this._file + ": " + e.getMessage());
+      }
+   }//end close
+}//end Metrics
@@ -0,0 +1,208 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class pages through a customer's orders, a store's orders and a
+ * store's product updates, newest first, by keyset: each page starts below
+ * the (time, key) of the last row of the page before, which the
+ * continuation token carries.  A page is one probe of the (scope, time,
+ * key) index per partition it reads, the same on page 1 as on page 10,000;
+ * no OFFSET is ever used.
+ *
+ * The order is the one of Partitions.newest: by time, then by key, both
+ * descending.  Keys alone are not: every process takes them in blocks
+ * (KeyAllocator), so a later order can have a lower number than an earlier
+ * one from another process.  A page takes at most its size from the hot
+ * months and from the older ones, and orders the union of both.  The
+ * token records the hot cutoff its first page used and whether paging has
+ * left the hot months, so a month ending between pages neither repeats
+ * nor skips rows.
+ * Tokens are signed (HMAC-SHA256 with amazon.pages.secret, or a random key
+ * per process) and bound to the list and user or store they came from.
+ *
+ */
+
+public class Pages {
+
+   /**
+    * A list that can be paged through.
+    */
+   public enum Kind {
+      CUSTOMER_ORDERS("Orders", "orderTime", "customerID", "orderNumber"),
+      STORE_ORDERS("Orders", "orderTime", "storeID", "orderNumber"),
+      STORE_UPDATES("ProductUpdates", "updatedOn", "storeID", "updateNumber");
+
+      final String table;
+      final String time;
+      final String scope;
+      final String key;
+
+      Kind(String table, String time, String scope, String key) {
+         this.table = table;
+         this.time = time;
+         this.scope = scope;
+         this.key = key;
+      }
+   }//end Kind
+
+   private static final int TOKEN_BYTES = 1 + 4 + 8 + 1 + 8 + 4;
+   private static final int MAC_BYTES = 12;
+   private static final byte[] SECRET = secret();
+
+   private static byte[] secret() {
+      String configured = System.getProperty("amazon.pages.secret");
+      if (configured != null) return configured.getBytes(StandardCharsets.UTF_8);
+      byte[] key = new byte[32];
+      new SecureRandom().nextBytes(key);
+      return key;
+   }
+
+   /**
+    * Returns the page size of a list whose pages used to hold fallback
+    * rows: amazon.pages.size when set.
+    */
+   public static int size(int fallback) {
+      return Integer.getInteger("amazon.pages.size", fallback);
+   }
+
+   /**
+    * Returns the query of a page: the first one (both phases, no bound),
+    * one still in the hot months (hot rows below the last (time, key), then
+    * every older row) or one past them (older rows below the last (time,
+    * key)).  limit is the page size plus one, to tell whether another page
+    * follows.
+    */
+   static String sql(Kind kind, boolean hot, boolean bounded, int limit) {
+      String where = kind.scope + " = ?";
+      if (!bounded) return Partitions.newest(kind.table, kind.time, where, kind.key, limit);
+      String below = " AND (" + kind.time + ", " + kind.key + ") < (?, ?)";
+      String order = " ORDER BY " + kind.time + " DESC, " + kind.key + " DESC LIMIT " + limit;
+      String older = "(SELECT * FROM " + kind.table + " WHERE " + where + " AND " + kind.time + " < ?" + (hot ? "" : below) + order + ")";
+      if (!hot) return older;
+      return "SELECT * FROM ((SELECT * FROM " + kind.table + " WHERE " + where + " AND " + kind.time + " >= ?" + below + order + ") UNION ALL " +
+             older + ") AS page" + order;
+   }//end sql
+
+   /**
+    * Prints one page of a list as executeQueryAndPrintResult does, then the
+    * token of the next page, if any.
+    *
+    * @param scope the customerID or storeID the list belongs to
+    * @param token the token printed with the previous page; null or empty
+    *        for the first page
+    * @return the number of rows printed
+    * @throws IllegalArgumentException when the token is not one of ours or
+    *         belongs to another list
+    */
+   public static int print(Amazon esql, PrintStream out, final Kind kind, int scope, String token, final int size) throws SQLException {
+      Timestamp hot;
+      boolean hotPhase, bounded;
+      Timestamp lastTime = null;
+      int last = 0;
+      if (token == null || token.trim().isEmpty()){
+         hot = Partitions.hotSince();
+         hotPhase = true;
+         bounded = false;
+      }else{
+         ByteBuffer t = decode(token.trim());
+         if (t.get() != kind.ordinal() || t.getInt() != scope) throw new IllegalArgumentException("That page token belongs to another list");
+         hot = new Timestamp(t.getLong());
+         hotPhase = t.get() == 1;
+         lastTime = timestamp(t.getLong());
+         last = t.getInt();
+         bounded = true;
+      }
+      String sql = sql(kind, hotPhase, bounded, size + 1);
+      Object[] params = !bounded ? new Object[]{ scope, hot, scope, hot }
+                      : hotPhase ? new Object[]{ scope, hot, lastTime, last, scope, hot }
+                      : new Object[]{ scope, hot, lastTime, last };
+
+      // the key and time (in microseconds) of the last row printed
+      final long[] lastRow = { 0, 0 };
+      final ResultWriter writer = new ResultWriter(out, ResultWriter.Format.TEXT, size);
+      try{
+         esql.executeQueryStreaming(sql, row -> {
+            writer.row(row);
+            if (row.isStopped()) return;
+            for (int i = 1; i <= row.getColumnCount(); ++i){
+               if (row.getColumnName(i).equalsIgnoreCase(kind.key)) lastRow[0] = row.getInt(i);
+               else if (row.getColumnName(i).equalsIgnoreCase(kind.time)) lastRow[1] = micros(row.getTimestamp(i));
+            }
+         }, params);
+      }finally{
+         writer.finish();
+      }
+      int printed = (int) writer.getRows();
+      if (writer.isTruncated()){
+         // still in the hot months while the last row printed is
+         boolean nextHot = hotPhase && lastRow[1] >= hot.getTime() * 1000;
+         out.println("More: " + encode(kind, scope, hot.getTime(), nextHot, lastRow[1], (int) lastRow[0]));
+      }
+      return printed;
+   }//end print
+
+   // timestamps keep microseconds, which the bound must not lose
+   private static long micros(Timestamp t) {
+      return Math.floorDiv(t.getTime(), 1000L) * 1000000L + t.getNanos() / 1000;
+   }
+
+   private static Timestamp timestamp(long micros) {
+      Timestamp t = new Timestamp(Math.floorDiv(micros, 1000000L) * 1000L);
+      t.setNanos((int) Math.floorMod(micros, 1000000L) * 1000);
+      return t;
+   }
+
+   private static String encode(Kind kind, int scope, long hot, boolean hotPhase, long lastTime, int last) {
+      ByteBuffer b = ByteBuffer.allocate(TOKEN_BYTES + MAC_BYTES);
+      b.put((byte) kind.ordinal()).putInt(scope).putLong(hot).put((byte) (hotPhase ? 1 : 0)).putLong(lastTime).putInt(last);
+      b.put(mac(b.array(), TOKEN_BYTES));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(b.array());
+   }//end encode
+
+   private static ByteBuffer decode(String token) {
+      byte[] bytes;
+      try{
+         bytes = Base64.getUrlDecoder().decode(token);
+      }catch (IllegalArgumentException e){
+         bytes = null;
+      }
+      if (bytes == null || bytes.length != TOKEN_BYTES + MAC_BYTES
+          || !MessageDigest.isEqual(mac(bytes, TOKEN_BYTES), Arrays.copyOfRange(bytes, TOKEN_BYTES, bytes.length)))
+         throw new IllegalArgumentException("Invalid page token");
+      return ByteBuffer.wrap(bytes, 0, TOKEN_BYTES);
+   }//end decode
+
+   private static byte[] mac(byte[] data, int length) {
+      try{
+         Mac mac = Mac.getInstance("HmacSHA256");
+         mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+         mac.update(data, 0, length);
+         return Arrays.copyOf(mac.doFinal(), MAC_BYTES);
+      }catch (GeneralSecurityException e){
+         throw new IllegalStateException(e);
+      }
+   }//end mac
+}//end Pages
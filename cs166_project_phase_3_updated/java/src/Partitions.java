@@ -0,0 +1,189 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the monthly partitions of Orders and ProductUpdates
+ * (sql/src/partitions.sql) ahead of time, and archives old ones.
+ *
+ * A maintenance thread creates the partitions of this month and the next
+ * amazon.partitions.ahead (default 2) every amazon.partitions.interval ms
+ * (default 1 hour; 0 turns it off).  With amazon.partitions.archiveMonths
+ * set, it also moves the months older than that into OrdersArchive and
+ * ProductUpdatesArchive.  Rows no partition covers land in the default
+ * partition, so a late run loses nothing.
+ *
+ * The "most recent N" lookups read the hot months first: the current one
+ * and the amazon.partitions.hotMonths (default 1) before it.  Only when
+ * those hold fewer than N rows are the older partitions read.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar Partitions &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [archive &lt;months&gt;]
+ *
+ */
+
+public class Partitions {
+
+   // partitioned table, its archive and its partition column
+   private static final String[][] TABLES = {
+      { "orders", "ordersarchive", "orderTime" },
+      { "productupdates", "productupdatesarchive", "updatedOn" } };
+
+   private final Amazon _esql;
+   private final long _intervalMillis;
+   private final int _ahead;
+   private final int _archiveMonths;
+   private final Thread _maintainer;
+   private volatile boolean _running = true;
+
+   // metrics
+   private final AtomicLong _runs = new AtomicLong();
+   private final AtomicLong _created = new AtomicLong();
+   private final AtomicLong _archived = new AtomicLong();
+
+   /**
+    * Starts the maintenance thread
+    *
+    * @param intervalMillis time between runs; 0 never runs one
+    * @param ahead months after this one to create
+    * @param archiveMonths months to keep live; 0 never archives
+    */
+   public Partitions(Amazon esql, long intervalMillis, int ahead, int archiveMonths) {
+      this._esql = esql;
+      this._intervalMillis = intervalMillis;
+      this._ahead = ahead;
+      this._archiveMonths = archiveMonths;
+      if (intervalMillis <= 0){
+         this._maintainer = null;
+         return;
+      }
+      this._maintainer = new Thread(new Runnable(){
+         public void run(){ maintainLoop(); }
+      }, "amazon-partitions");
+      this._maintainer.setDaemon(true);
+      this._maintainer.start();
+   }//end Partitions
+
+   /**
+    * Returns the start of the oldest hot month.
+    */
+   public static Timestamp hotSince() {
+      return Timestamp.valueOf(LocalDate.now().withDayOfMonth(1).minusMonths(Integer.getInteger("amazon.partitions.hotMonths", 1)).atStartOfDay());
+   }
+
+   /**
+    * Returns a query for the n newest rows of table matching where (one ?
+    * parameter), by time descending and then key descending.  Bind where's
+    * value and hotSince() twice: the hot partitions and the others each
+    * give at most n rows, and the outer ORDER BY merges them, so the order
+    * does not depend on how the server runs the UNION ALL.
+    */
+   public static String newest(String table, String time, String where, String key, int n) {
+      String order = " ORDER BY " + time + " DESC, " + key + " DESC LIMIT " + n;
+      return "SELECT * FROM ((SELECT * FROM " + table + " WHERE " + where + " AND " + time + " >= ?" + order + ") UNION ALL " +
+             "(SELECT * FROM " + table + " WHERE " + where + " AND " + time + " < ?" + order + ")) AS newest" + order;
+   }//end newest
+
+   private void maintainLoop() {
+      while (this._running){
+         try{
+            maintain();
+            Thread.sleep(this._intervalMillis);
+         }catch (InterruptedException e){
+            // stopping
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to maintain the partitions: " + e.getMessage());
+            try{
+               Thread.sleep(this._intervalMillis);
+            }catch (InterruptedException stop){
+               // stopping
+            }
+         }
+      }
+   }//end maintainLoop
+
+   /**
+    * Creates the partitions of this month and the next ones and, when
+    * configured, archives the old ones.
+    */
+   public void maintain() throws SQLException {
+      LocalDate month = LocalDate.now().withDayOfMonth(1);
+      Timestamp since = Timestamp.valueOf(month.atStartOfDay());
+      Timestamp upto = Timestamp.valueOf(month.plusMonths(this._ahead).atStartOfDay());
+      for (String[] t : TABLES)
+         this._created.addAndGet(this._esql.executeQueryForObject("SELECT amazon_create_partitions(?, ?, ?)", row -> row.getInt(1), t[0], since, upto));
+      if (this._archiveMonths > 0) archive(Timestamp.valueOf(month.minusMonths(this._archiveMonths).atStartOfDay()));
+      this._runs.incrementAndGet();
+   }//end maintain
+
+   /**
+    * Moves the months that ended before the month of before into the
+    * archive tables.
+    *
+    * @return the number of rows moved
+    */
+   public long archive(Timestamp before) throws SQLException {
+      long moved = 0;
+      for (String[] t : TABLES)
+         moved += this._esql.executeQueryForObject("SELECT amazon_archive_partitions(?, ?, ?)", row -> row.getLong(1), t[0], t[1], before);
+      this._archived.addAndGet(moved);
+      return moved;
+   }//end archive
+
+   /**
+    * Creates the partitions of every month that has rows, moving those rows
+    * out of the default partitions, e.g. after a bulk load.
+    */
+   public static void split(Amazon esql) throws SQLException {
+      for (String[] t : TABLES)
+         esql.executeQueryAndMap("SELECT amazon_create_partitions(?, m, m) FROM (SELECT DISTINCT date_trunc('month', " + t[2] + ") AS m FROM " + t[0] + ") months",
+                                 row -> row.getInt(1), t[0]);
+   }//end split
+
+   /**
+    * Stops the maintenance thread.
+    */
+   public void close() {
+      this._running = false;
+      if (this._maintainer == null) return;
+      this._maintainer.interrupt();
+      try{
+         this._maintainer.join(10 * 1000L);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+   public String toString() {
+      return String.format("partitions: %d runs, %d created, %d rows archived", this._runs.get(), this._created.get(), this._archived.get());
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3 && !(args.length == 5 && args[3].equals("archive"))) {
+         System.err.println("Usage: java Partitions <dbname> <port> <user> [archive <months to keep>]");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      try{
+         Partitions p = new Partitions(esql, 0, Integer.getInteger("amazon.partitions.ahead", 2), args.length == 5 ? Integer.parseInt(args[4]) : 0);
+         p.maintain();
+         System.out.println(p);
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+}//end Partitions
@@ -0,0 +1,242 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * This program checks the query plans of the statements the client runs.
+ * Each query shape is run with EXPLAIN (ANALYZE, BUFFERS) inside a
+ * transaction that is rolled back, so writes leave no trace.  A shape fails
+ * when its plan scans a whole table that it should reach through an index,
+ * or when its median execution time is more than --tolerance times its
+ * baseline.
+ *
+ * Run it on a generated dataset (DataGenerator) with the indexes of
+ * create_indexes.sql built.  --record stores the current times as the new
+ * baseline.
+ *
+ *    java -cp classes:lib/pg73jdbc3.jar PlanCheck &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *         [--baseline plan_baseline.properties] [--record] [--tolerance 2.0] [--runs 5]
+ *
+ * Keep the shapes in sync with the SQL in Amazon, Catalog, Inventory,
+ * Partitions, Principal, Sales and StoreIndex.
+ *
+ */
+
+public class PlanCheck {
+
+   /*
+    * One query shape with sample parameters.
+    */
+   private static class Shape {
+      final String name;
+      final String sql;
+      final Object[] params;
+      // the whole table is read on purpose
+      final boolean scans;
+
+      Shape(String name, boolean scans, String sql, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.params = params;
+         this.scans = scans;
+      }
+   }//end Shape
+
+   private final Amazon _esql;
+   private final List<Shape> _shapes = new ArrayList<Shape>();
+
+   /**
+    * Creates the shapes, with parameters taken from the loaded data: the
+    * customer, store and product of the latest order, the manager of that
+    * store.
+    */
+   public PlanCheck(Amazon esql) throws SQLException {
+      this._esql = esql;
+      Object[] order = esql.executeQueryForObject(
+         "SELECT O.customerID, O.storeID, O.productName, U.name, U.password, S.managerID, S.latitude, S.longitude " +
+         "FROM Orders O, Users U, Store S WHERE U.userID = O.customerID AND S.storeID = O.storeID ORDER BY O.orderNumber DESC LIMIT 1",
+         row -> new Object[]{ row.getInt(1), row.getInt(2), row.getTrimmed(3), row.getTrimmed(4), row.getTrimmed(5),
+                              row.getInt(6), row.getDouble(7), row.getDouble(8) });
+      if (order == null) throw new SQLException("Orders is empty; load a dataset first");
+      int customer = (Integer) order[0], store = (Integer) order[1], manager = (Integer) order[5];
+      String product = (String) order[2];
+      double lat = (Double) order[6], lon = (Double) order[7], r = Amazon.STORE_RADIUS;
+      Timestamp now = new Timestamp(System.currentTimeMillis());
+
+      add("logIn", false, "SELECT userID, latitude, longitude, type FROM USERS WHERE name = ? AND password = ?", order[3], order[4]);
+      add("userType", false, "SELECT type FROM Users WHERE userID = ?", customer);
+      add("managedStores", false, "SELECT s.storeID FROM Store s WHERE s.managerID = ?", manager);
+      add("storeByID", false, "SELECT s.latitude, s.longitude FROM Store s WHERE s.storeID = ?", store);
+      // a 30 mile box covers a third of the map, so a scan can be the best plan
+      add("storesWithin", true, "SELECT s.storeID, s.latitude, s.longitude FROM Store s WHERE s.latitude BETWEEN ? AND ? AND s.longitude BETWEEN ? AND ?",
+          lat - r, lat + r, lon - r, lon + r);
+      add("storeIndexRefresh", true, "SELECT s.storeID, s.latitude, s.longitude FROM Store s");
+      add("nearestStores", true, "SELECT s.storeID, s.latitude, s.longitude FROM Store s ORDER BY (s.latitude - ?) * (s.latitude - ?) + (s.longitude - ?) * (s.longitude - ?) LIMIT ?",
+          lat, lat, lon, lon, 5);
+      add("catalogLoad", false, "SELECT p.productName, p.numberOfUnits, p.pricePerUnit FROM Store s LEFT JOIN Product p ON p.storeID = s.storeID WHERE s.storeID = ?", store);
+      add("productStock", false, "SELECT p.numberOfUnits FROM Product p WHERE p.storeID = ? AND p.productName = ?", store, product);
+      Timestamp hot = Partitions.hotSince();
+      add("viewRecentOrders", false, Pages.sql(Pages.Kind.CUSTOMER_ORDERS, true, false, 6), customer, hot, customer, hot);
+      add("recentStoreOrders", false, Pages.sql(Pages.Kind.STORE_ORDERS, true, false, 11), store, hot, store, hot);
+      add("viewRecentUpdates", false, Pages.sql(Pages.Kind.STORE_UPDATES, true, false, 6), store, hot, store, hot);
+      // later pages start below the (time, key) of the row halfway down the table
+      Object[] middle = esql.executeQueryForObject(
+         "SELECT o.orderTime, o.orderNumber, u.updatedOn, u.updateNumber FROM (SELECT 1) x " +
+         "LEFT JOIN (SELECT orderTime, orderNumber FROM Orders ORDER BY orderTime, orderNumber OFFSET (SELECT COUNT(*) / 2 FROM Orders) LIMIT 1) o ON true " +
+         "LEFT JOIN (SELECT updatedOn, updateNumber FROM ProductUpdates ORDER BY updatedOn, updateNumber OFFSET (SELECT COUNT(*) / 2 FROM ProductUpdates) LIMIT 1) u ON true",
+         row -> new Object[]{ row.getTimestamp(1), row.getInt(2), row.getTimestamp(3), row.getInt(4) });
+      add("recentStoreOrdersHotPage", false, Pages.sql(Pages.Kind.STORE_ORDERS, true, true, 11), store, hot, middle[0], middle[1], store, hot);
+      add("recentStoreOrdersOldPage", false, Pages.sql(Pages.Kind.STORE_ORDERS, false, true, 11), store, hot, middle[0], middle[1]);
+      add("viewRecentOrdersOldPage", false, Pages.sql(Pages.Kind.CUSTOMER_ORDERS, false, true, 6), customer, hot, middle[0], middle[1]);
+      add("viewRecentUpdatesOldPage", false, Pages.sql(Pages.Kind.STORE_UPDATES, false, true, 6), store, hot, middle[2], middle[3]);
+      add("exportOrdersChunk", false, Amazon.exportOrdersSql("Orders"), store, middle[1], 10000);
+      add("exportArchivedOrdersChunk", false, Amazon.exportOrdersSql("OrdersArchive"), store, 0, 10000);
+      add("viewPopularProducts", false, "SELECT productName, unitsSold AS NumUnitsPurchased FROM StoreProductSales WHERE storeID = ? ORDER BY unitsSold DESC LIMIT 5", store);
+      add("viewPopularCustomers", false, "SELECT U.name, C.customerID, C.orders, C.unitsOrdered FROM StoreCustomerSales C, Users U WHERE C.storeID = ? AND U.userID = C.customerID ORDER BY C.orders DESC LIMIT 5", store);
+      add("reconcileProducts", false, Sales.PRODUCT_DRIFT, store, store);
+      add("reconcileCustomers", false, Sales.CUSTOMER_DRIFT, store, store);
+      add("takeStock", false, "UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productName = ? AND numberOfUnits >= ?", 1, store, product, 1);
+      add("insertOrder", false, "INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, ?, ?)",
+          -1, customer, store, product, 1, now);
+      add("addSales", false, "INSERT INTO StoreProductSales (storeID, productName, unitsSold) VALUES (?, ?, ?) " +
+          "ON CONFLICT (storeID, productName) DO UPDATE SET unitsSold = StoreProductSales.unitsSold + EXCLUDED.unitsSold", store, product, 1);
+      add("insertUpdate", false, "INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, ?, ?)",
+          -1, manager, store, product, now);
+   }//end PlanCheck
+
+   private void add(String name, boolean scans, String sql, Object... params) {
+      this._shapes.add(new Shape(name, scans, sql, params));
+   }
+
+   /*
+    * Runs one EXPLAIN ANALYZE and rolls it back.  Returns the plan lines.
+    */
+   private List<String> explain(Shape shape) throws SQLException {
+      List<String> plan = new ArrayList<String>();
+      ConnectionPool.Pooled c = this._esql.getPool().borrow();
+      try{
+         c.getConnection().setAutoCommit(false);
+         PreparedStatement stmt = c.getStatements().prepare("EXPLAIN (ANALYZE, BUFFERS) " + shape.sql);
+         for (int i = 0; i < shape.params.length; ++i)
+            stmt.setObject(i + 1, shape.params[i]);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()) plan.add(rs.getString(1));
+         rs.close();
+      }finally{
+         // rolls back
+         this._esql.getPool().release(c);
+      }
+      return plan;
+   }//end explain
+
+   private static double executionTime(List<String> plan) {
+      for (String line : plan){
+         line = line.trim();
+         if (line.startsWith("Execution Time:") || line.startsWith("Total runtime:"))
+            return Double.parseDouble(line.substring(line.indexOf(':') + 1).replace("ms", "").trim());
+      }
+      return Double.NaN;
+   }//end executionTime
+
+   private static String seqScan(List<String> plan) {
+      for (String line : plan)
+         if (line.contains("Seq Scan on ")) return line.trim();
+      return null;
+   }//end seqScan
+
+   /**
+    * Checks every shape and prints one line per shape.
+    *
+    * @return the number of shapes that failed
+    */
+   public int check(Properties baseline, Properties current, double tolerance, int runs) throws SQLException {
+      int failed = 0;
+      System.out.printf("%-22s %10s %10s  %s%n", "shape", "ms", "baseline", "result");
+      for (Shape shape : this._shapes){
+         double[] times = new double[runs];
+         List<String> plan = null;
+         for (int i = 0; i < runs; ++i){
+            plan = explain(shape);
+            times[i] = executionTime(plan);
+         }
+         Arrays.sort(times);
+         double median = times[runs / 2];
+         current.setProperty(shape.name, String.valueOf(median));
+
+         String base = baseline.getProperty(shape.name);
+         double limit = base == null ? Double.NaN : Double.parseDouble(base) * tolerance + 0.5;
+         String scan = shape.scans ? null : seqScan(plan);
+         String result = "ok";
+         if (scan != null) result = "FAIL " + scan;
+         else if (median > limit) result = String.format("FAIL slower than %.3f ms", limit);
+         if (!result.equals("ok")) failed++;
+
+         System.out.printf("%-22s %10.3f %10s  %s%n", shape.name, median, base == null ? "-" : base, result);
+         if (!result.equals("ok"))
+            for (String line : plan) System.out.println("      " + line);
+      }
+      return failed;
+   }//end check
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java PlanCheck <dbname> <port> <user> [--baseline plan_baseline.properties] [--record] [--tolerance 2.0] [--runs 5]");
+         return;
+      }
+      File file = new File("plan_baseline.properties");
+      boolean record = false;
+      double tolerance = 2.0;
+      int runs = 5;
+      for (int i = 3; i < args.length; ++i){
+         if (args[i].equals("--baseline")) file = new File(args[++i]);
+         else if (args[i].equals("--record")) record = true;
+         else if (args[i].equals("--tolerance")) tolerance = Double.parseDouble(args[++i]);
+         else if (args[i].equals("--runs")) runs = Integer.parseInt(args[++i]);
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+
+      Properties baseline = new Properties();
+      if (file.exists() && !record){
+         FileReader in = new FileReader(file);
+         try{ baseline.load(in); }finally{ in.close(); }
+      }
+
+      Class.forName("org.postgresql.Driver");
+      Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      int failed;
+      Properties current = new Properties();
+      try{
+         failed = new PlanCheck(esql).check(baseline, current, tolerance, runs);
+      }finally{
+         esql.cleanup();
+      }
+      if (record){
+         FileWriter out = new FileWriter(file);
+         try{ current.store(out, "PlanCheck median execution times in ms"); }finally{ out.close(); }
+         System.out.println("baseline written to " + file);
+      }
+      System.out.println(failed == 0 ? "OK" : failed + " shapes FAILED");
+      if (failed > 0) System.exit(1);
+   }//end main
+}//end PlanCheck
@@ -0,0 +1,204 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds what a user is allowed to do: their role and the stores
+ * they manage.  It is loaded once when the user logs in and then consulted
+ * by every manager operation instead of querying Users and Store again.
+ *
+ * Principals are shared by every session of the same user.  When a user's
+ * type or the store managers change, invalidate() marks the principal stale
+ * and the next check reloads it.  Changes made outside this process cannot
+ * invalidate it, so a principal also goes stale ttl ms after it was loaded.
+ *
+ */
+
+public class Principal {
+
+   public final int userID;
+   public final String role;
+
+   // open addressing hash set of managed store IDs; EMPTY marks a free slot
+   private static final int EMPTY = Integer.MIN_VALUE;
+   private final int[] _stores;
+   private final int _storeCount;
+
+   private volatile boolean _stale = false;
+   // when the principal goes stale by itself; 0 for never
+   private final long _expiresAt;
+
+   Principal(int userID, String role, int[] managedStores, int count, long expiresAt) {
+      this.userID = userID;
+      this.role = role;
+      this._expiresAt = expiresAt;
+      int capacity = 4;
+      while(capacity < count * 2) capacity <<= 1;
+      this._stores = new int[capacity];
+      Arrays.fill(this._stores, EMPTY);
+      int added = 0;
+      for(int i = 0; i < count; ++i){
+         int slot = slot(managedStores[i]);
+         if(this._stores[slot] == EMPTY){
+            this._stores[slot] = managedStores[i];
+            added++;
+         }
+      }
+      this._storeCount = added;
+   }//end Principal
+
+   private int slot(int storeID) {
+      int mask = this._stores.length - 1;
+      int h = storeID * 0x9E3779B9;
+      int i = (h ^ (h >>> 16)) & mask;
+      while(this._stores[i] != EMPTY && this._stores[i] != storeID)
+         i = (i + 1) & mask;
+      return i;
+   }//end slot
+
+   public boolean isAdmin() { return "admin".equals(this.role); }
+   public boolean isManager() { return "manager".equals(this.role); }
+
+   /**
+    * Returns true when the user is the manager of the store.
+    */
+   public boolean manages(int storeID) {
+      return storeID != EMPTY && this._stores[slot(storeID)] == storeID;
+   }
+
+   /**
+    * Returns true when the user may run manager operations on the store:
+    * admins on every store, managers on the stores they manage.
+    */
+   public boolean canManage(int storeID) {
+      return isAdmin() || (isManager() && manages(storeID));
+   }
+
+   public int getManagedStoreCount() { return this._storeCount; }
+
+   public boolean isStale() {
+      return this._stale || (this._expiresAt != 0 && System.currentTimeMillis() >= this._expiresAt);
+   }
+
+   public void invalidate() { this._stale = true; }
+
+   /**
+    * Keeps the current principal of every user that has logged in.
+    */
+   public static class Registry {
+
+      private final ConcurrentHashMap<Integer, Principal> _principals = new ConcurrentHashMap<Integer, Principal>();
+      // bumped by invalidate(userID) and invalidateAll(), so a principal
+      // loaded across one is not cached
+      private final ConcurrentHashMap<Integer, Long> _generations = new ConcurrentHashMap<Integer, Long>();
+      private final AtomicLong _epoch = new AtomicLong();
+      private final long _ttl;
+
+      /**
+       * Creates a new registry
+       *
+       * @param ttl how long a loaded principal is trusted, in ms; 0 or
+       *        less for until it is invalidated
+       */
+      public Registry(long ttl) {
+         this._ttl = ttl;
+      }
+
+      /**
+       * Returns the user's principal, loading it when it is missing or stale.
+       */
+      public Principal get(Amazon esql, int userID) throws SQLException {
+         Principal p = this._principals.get(userID);
+         if(p != null && !p.isStale()) return p;
+         long generation = generation(userID), epoch = this._epoch.get();
+         final Principal loaded = load(esql, userID, null);
+         // keeps a fresh principal another caller loaded meanwhile
+         Principal cached = this._principals.compute(userID, (id, current) ->
+            !unchanged(id, generation, epoch) || (current != null && !current.isStale()) ? current : loaded);
+         // the caller may keep it, so it must reload if it was invalidated
+         if(!unchanged(userID, generation, epoch)) loaded.invalidate();
+         return cached != null ? cached : loaded;
+      }//end get
+
+      /**
+       * Loads a fresh principal for a user who just logged in.  The role is
+       * already known from the login query, so only the stores are read.
+       */
+      public Principal login(Amazon esql, int userID, String role) throws SQLException {
+         long generation = generation(userID), epoch = this._epoch.get();
+         final Principal p = load(esql, userID, role);
+         final Principal[] old = { null };
+         this._principals.compute(userID, (id, current) -> {
+            if(!unchanged(id, generation, epoch)) return current;
+            old[0] = current;
+            return p;
+         });
+         if(old[0] != null) old[0].invalidate();
+         if(!unchanged(userID, generation, epoch)) p.invalidate();
+         return p;
+      }//end login
+
+      /**
+       * Marks one user's principal stale, e.g. after their type changed.
+       */
+      public void invalidate(int userID) {
+         this._generations.merge(userID, 1L, Long::sum);
+         Principal p = this._principals.remove(userID);
+         if(p != null) p.invalidate();
+      }//end invalidate
+
+      /**
+       * Marks every principal stale, e.g. after store managers changed.
+       */
+      public void invalidateAll() {
+         this._epoch.incrementAndGet();
+         for(Principal p : this._principals.values())
+            p.invalidate();
+         this._principals.clear();
+      }//end invalidateAll
+
+      private long generation(int userID) {
+         return this._generations.getOrDefault(userID, 0L);
+      }
+
+      /*
+       * True when the user was not invalidated since generation and epoch
+       * were read.  Called inside compute(): an invalidation bumps the
+       * count before it removes the entry, so it either is seen here or
+       * removes what compute() stored.
+       */
+      private boolean unchanged(int userID, long generation, long epoch) {
+         return generation(userID) == generation && this._epoch.get() == epoch;
+      }
+
+      private Principal load(Amazon esql, int userID, String role) throws SQLException {
+         if(role == null)
+            role = esql.executeQueryForObject("SELECT type FROM Users WHERE userID = ?", row -> row.getTrimmed(1), userID);
+         if(role == null)
+            throw new SQLException("No user with ID " + userID);
+         final int[][] stores = { new int[8] };
+         final int[] n = { 0 };
+         if(role.equals("manager")){
+            esql.executeQueryStreaming("SELECT s.storeID FROM Store s WHERE s.managerID = ?", row -> {
+               if(n[0] == stores[0].length) stores[0] = Arrays.copyOf(stores[0], n[0] * 2);
+               stores[0][n[0]++] = row.getInt(1);
+            }, userID);
+         }
+         return new Principal(userID, role, stores[0], n[0], this._ttl > 0 ? System.currentTimeMillis() + this._ttl : 0);
+      }//end load
+   }//end Registry
+}//end Principal
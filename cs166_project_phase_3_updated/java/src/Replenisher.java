@@ -0,0 +1,357 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class restocks products that run low, in batches.
+ *
+ * Inventory reports every placed order with the stock left.  When that is
+ * below the product's low-water mark (ProductLevels, or lowWater for
+ * products without a row), the product is marked as needing stock; more
+ * orders while it is marked only count as coalesced.  Every intervalMillis
+ * a thread sizes each need to bring the stock back to its restock level,
+ * sends it to the warehouse nearest to the store, and writes them all in
+ * one transaction: the Product rows locked in the order Inventory locks
+ * them in, one multi-row INSERT of ProductSupplyRequests rows and one
+ * UPDATE of the Product rows.
+ * The ProductUpdates rows go through the AuditLog, as the manual requests'
+ * do.  A batch the database rejects is retried row by row.
+ *
+ */
+
+public class Replenisher {
+
+   private static final String INSERT_REQUEST =
+      "INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?, ?)";
+   private static final String ADD_STOCK =
+      "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?";
+   // ADD_STOCK for a batch of products, in one statement
+   private static final String ADD_STOCKS =
+      "UPDATE Product p SET numberOfUnits = p.numberOfUnits + v.units " +
+      "FROM (VALUES (?::integer, ?::integer, ?::bpchar)) AS v(units, storeID, productName) " +
+      "WHERE p.storeID = v.storeID AND p.productName = v.productName";
+
+   /*
+    * A product below its low-water mark, until its request is written.
+    */
+   private static class Need {
+      final int storeID;
+      final String productName;
+
+      Need(int storeID, String productName) {
+         this.storeID = storeID;
+         this.productName = productName;
+      }
+   }//end Need
+
+   /*
+    * A need sized and routed, about to be written.
+    */
+   private static class Request {
+      final Need need;
+      final int requestNumber;
+      final int managerID;
+      final int warehouseID;
+      final int units;
+
+      Request(Need need, int requestNumber, int managerID, int warehouseID, int units) {
+         this.need = need;
+         this.requestNumber = requestNumber;
+         this.managerID = managerID;
+         this.warehouseID = warehouseID;
+         this.units = units;
+      }
+   }//end Request
+
+   private final Amazon _esql;
+   private final long _intervalMillis;
+   private final int _batchSize;
+   private final int _lowWater;
+   private final int _restockTo;
+   private final long _levelsMillis;
+   private final Thread _writer;
+   private volatile boolean _running = true;
+
+   // low-water mark and restock level by product, reloaded every levelsMillis
+   private volatile Map<String, int[]> _levels = new HashMap<String, int[]>();
+   private long _levelsLoadedAt = 0;
+   // manager and nearest warehouse of each store, reloaded with the levels
+   private final ConcurrentHashMap<Integer, int[]> _routes = new ConcurrentHashMap<Integer, int[]>();
+   // products below their mark, by Inventory's key
+   private final ConcurrentHashMap<String, Need> _needs = new ConcurrentHashMap<String, Need>();
+
+   // metrics
+   private final AtomicLong _triggers = new AtomicLong();
+   private final AtomicLong _coalesced = new AtomicLong();
+   private final AtomicLong _satisfied = new AtomicLong();
+   private final AtomicLong _requests = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _shipments = new AtomicLong();
+   private final AtomicLong _maxBatch = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+   private final AtomicLong _roundTrips = new AtomicLong();
+
+   /**
+    * Creates a new replenisher and starts its writer thread
+    *
+    * @param esql the database the requests are written to
+    * @param intervalMillis time between batches; 0 never replenishes
+    * @param batchSize the most requests written in one transaction
+    * @param lowWater the low-water mark of products without a ProductLevels row
+    * @param restockTo the stock they are brought back to
+    * @param levelsMillis how often ProductLevels and the warehouses are reread
+    */
+   public Replenisher(Amazon esql, long intervalMillis, int batchSize, int lowWater, int restockTo, long levelsMillis) {
+      this._esql = esql;
+      this._intervalMillis = intervalMillis;
+      this._batchSize = batchSize;
+      this._lowWater = lowWater;
+      this._restockTo = restockTo;
+      this._levelsMillis = levelsMillis;
+      if (intervalMillis <= 0){
+         this._writer = null;
+         return;
+      }
+      this._writer = new Thread(new Runnable(){
+         public void run(){ writeLoop(); }
+      }, "amazon-replenisher");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end Replenisher
+
+   private static String key(int storeID, String productName) {
+      return storeID + "\u0000" + productName.trim();
+   }
+
+   private int[] level(String key) {
+      int[] l = this._levels.get(key);
+      return l != null ? l : new int[]{ this._lowWater, this._restockTo };
+   }
+
+   /**
+    * Records that units of a product were ordered and available are left;
+    * called by Inventory after the order committed.
+    */
+   public void sold(int storeID, String productName, int available) {
+      if (this._writer == null || !this._running) return;
+      String key = key(storeID, productName);
+      if (available < 0 || available >= level(key)[0]) return;
+      this._triggers.incrementAndGet();
+      if (this._needs.putIfAbsent(key, new Need(storeID, productName.trim())) != null)
+         this._coalesced.incrementAndGet();
+   }//end sold
+
+   private void writeLoop() {
+      while (this._running){
+         try{
+            Thread.sleep(this._intervalMillis);
+            replenish();
+         }catch (InterruptedException e){
+            // stopping
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to replenish stock: " + e.getMessage());
+         }catch (RuntimeException e){
+            System.err.println("Warning - Unable to replenish stock: " + e.getMessage());
+         }
+      }
+   }//end writeLoop
+
+   /**
+    * Writes a request for every product below its low-water mark now, at
+    * most batchSize per transaction.
+    *
+    * @return the number of requests written
+    */
+   public int replenish() throws SQLException {
+      if (System.currentTimeMillis() - this._levelsLoadedAt > this._levelsMillis) loadLevels();
+      int written = 0;
+      TreeMap<String, Need> pending = new TreeMap<String, Need>(this._needs);
+      TreeMap<String, Request> batch = new TreeMap<String, Request>();
+      for (Map.Entry<String, Need> e : pending.entrySet()){
+         Need n = e.getValue();
+         int available = this._esql.getInventory().available(n.storeID, n.productName);
+         int units = level(e.getKey())[1] - available;
+         if (available < 0 || units <= 0){
+            // restocked by hand, or no longer tracked: a later order marks it again
+            this._needs.remove(e.getKey(), n);
+            this._satisfied.incrementAndGet();
+            continue;
+         }
+         int[] route = route(n.storeID);
+         if (route == null){
+            this._needs.remove(e.getKey(), n);
+            this._failed.incrementAndGet();
+            continue;
+         }
+         batch.put(e.getKey(), new Request(n, this._esql.nextKey(KeyAllocator.SUPPLY_REQUESTS), route[0], route[1], units));
+         if (batch.size() == this._batchSize){
+            written += write(batch);
+            batch.clear();
+         }
+      }
+      if (!batch.isEmpty()) written += write(batch);
+      return written;
+   }//end replenish
+
+   /*
+    * Returns the manager and nearest warehouse of a store, or null when it
+    * has neither.
+    */
+   private int[] route(int storeID) throws SQLException {
+      int[] r = this._routes.get(storeID);
+      if (r != null) return r;
+      Object[] store = this._esql.executeQueryForObject("SELECT s.managerID, s.latitude, s.longitude FROM Store s WHERE s.storeID = ?",
+                                                        row -> new Object[]{ row.getInt(1), row.getDouble(2), row.getDouble(3) }, storeID);
+      if (store == null) return null;
+      StoreIndex.Hit warehouse = this._esql.nearestWarehouse((Double) store[1], (Double) store[2]);
+      if (warehouse == null) return null;
+      r = new int[]{ (Integer) store[0], warehouse.storeID };
+      this._routes.put(storeID, r);
+      return r;
+   }//end route
+
+   private void loadLevels() {
+      final Map<String, int[]> levels = new HashMap<String, int[]>();
+      this._levelsLoadedAt = System.currentTimeMillis();
+      this._routes.clear();
+      try{
+         this._esql.executeQueryStreaming("SELECT storeID, productName, lowWater, restockTo FROM ProductLevels", row -> {
+            levels.put(key(row.getInt(1), row.getTrimmed(2)), new int[]{ row.getInt(3), row.getInt(4) });
+         });
+         this._levels = levels;
+      }catch (SQLException e){
+         // e.g. a database created before ProductLevels: the defaults apply
+         System.err.println("Warning - Unable to load the product levels: " + e.getMessage());
+      }
+   }//end loadLevels
+
+   /*
+    * Writes a batch in one transaction, or row by row when it is rejected,
+    * then tells the caches.  Returns the number of requests written.
+    */
+   private int write(final TreeMap<String, Request> batch) {
+      List<Request> done = new ArrayList<Request>(batch.size());
+      try{
+         this._esql.executeInTransaction(tx -> {
+            Transaction.Batch locks = tx.batch(Inventory.LOCK_STOCKS);
+            Transaction.Batch requests = tx.batch(INSERT_REQUEST);
+            Transaction.Batch stock = tx.batch(ADD_STOCKS);
+            for (Request r : batch.values()){
+               locks.add(r.need.storeID, r.need.productName, locks.size());
+               requests.add(r.requestNumber, r.managerID, r.warehouseID, r.need.storeID, r.need.productName, r.units);
+               stock.add(r.units, r.need.storeID, r.need.productName);
+            }
+            locks.execute();
+            requests.execute();
+            stock.execute();
+            return Boolean.TRUE;
+         });
+         done.addAll(batch.values());
+         this._batches.incrementAndGet();
+         this._roundTrips.addAndGet(3);
+         long max = this._maxBatch.get();
+         while (batch.size() > max && !this._maxBatch.compareAndSet(max, batch.size())) max = this._maxBatch.get();
+      }catch (SQLException e){
+         for (final Request r : batch.values()){
+            try{
+               this._roundTrips.addAndGet(2);
+               this._esql.executeInTransaction(tx -> {
+                  tx.executeUpdate(INSERT_REQUEST, r.requestNumber, r.managerID, r.warehouseID, r.need.storeID, r.need.productName, r.units);
+                  tx.executeUpdate(ADD_STOCK, r.units, r.need.storeID, r.need.productName);
+                  return Boolean.TRUE;
+               });
+               done.add(r);
+            }catch (SQLException one){
+               System.err.println("Warning - Unable to restock " + r.need.productName.trim() + " at store " + r.need.storeID + ": " + one.getMessage());
+               this._failed.incrementAndGet();
+            }
+         }
+      }
+
+      Set<Integer> stores = new HashSet<Integer>();
+      Set<Long> shipments = new HashSet<Long>();
+      for (Request r : done){
+         try{
+            this._esql.getAudit().append(r.managerID, r.need.storeID, r.need.productName);
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to record the restock of " + r.need.productName.trim() + ": " + e.getMessage());
+         }
+         this._esql.getInventory().stockAdded(r.need.storeID, r.need.productName, r.units);
+         this._esql.getCatalog().unitsAdded(r.need.storeID, r.need.productName, r.units);
+         stores.add(r.need.storeID);
+         shipments.add(((long) r.warehouseID << 32) | r.need.storeID);
+      }
+      for (int store : stores){
+         try{
+            this._esql.getCatalog().publish(this._esql, store);
+         }catch (SQLException e){
+            // the other clients' caches expire on their own
+         }
+      }
+      // a failed need is dropped too: the next order below the mark adds it again
+      for (Map.Entry<String, Request> e : batch.entrySet()) this._needs.remove(e.getKey(), e.getValue().need);
+      this._requests.addAndGet(done.size());
+      this._shipments.addAndGet(shipments.size());
+      return done.size();
+   }//end write
+
+   /**
+    * Writes the needs still pending and stops the writer thread.
+    */
+   public void close() {
+      this._running = false;
+      if (this._writer == null) return;
+      this._writer.interrupt();
+      try{
+         this._writer.join(10 * 1000L);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+      if (!this._needs.isEmpty()){
+         try{
+            replenish();
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to replenish stock: " + e.getMessage());
+         }
+      }
+   }//end close
+
+   /*
+    * Writes saved are counted against one request per trigger written as
+    * placeProductSupplyRequests does: a request row, a ProductUpdates row
+    * and a stock update, each its own round trip.  A batch takes three
+    * round trips, the row locks included; its ProductUpdates rows are
+    * batched by the AuditLog.
+    */
+   public String toString() {
+      long triggers = this._triggers.get(), requests = this._requests.get(), batches = this._batches.get();
+      // the triggers the manual way would have written
+      long writable = triggers - this._failed.get() - this._needs.size();
+      return String.format("replenisher: %d triggers (%d coalesced, %d satisfied), %d requests in %d batches (%.1f requests/batch, max %d), " +
+                           "%d shipments, %d failed, %d rows and %d round trips saved, %d pending",
+                           triggers, this._coalesced.get(), this._satisfied.get(), requests, batches,
+                           batches == 0 ? 0.0 : (double) requests / batches, this._maxBatch.get(),
+                           this._shipments.get(), this._failed.get(),
+                           Math.max(0, 3 * (writable - requests)), Math.max(0, 3 * writable - this._roundTrips.get()), this._needs.size());
+   }
+}//end Replenisher
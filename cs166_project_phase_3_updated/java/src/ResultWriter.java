@@ -0,0 +1,358 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class renders the rows of a streaming query into a buffered writer,
+ * as they arrive, in one of four formats:
+ *
+ *    TEXT   the menu's format: every value followed by a tab
+ *    TABLE  aligned columns, sized on the first rows
+ *    CSV    RFC 4180, with a header line
+ *    JSONL  one JSON object per row
+ *
+ * The writer holds no rows but TABLE's first SAMPLE, to size its columns;
+ * the driver may still read the whole result first (the bundled 7.3 driver
+ * does), so large exports are queried in chunks (exportStoreData).  TABLE,
+ * CSV and JSONL drop the padding of char(n) values.  The writer stops
+ * writing after limit rows, after the timeout, or when cancel() is called
+ * from another thread; it tells the limit was cut off from the row after
+ * it, so a query with a LIMIT should ask for one more row.
+ *
+ * Pass it as the callback of executeQueryStreaming, then call finish().
+ *
+ */
+
+public class ResultWriter implements Row.Callback {
+
+   /**
+    * How the rows are rendered.
+    */
+   public enum Format { TEXT, TABLE, CSV, JSONL }
+
+   // rows TABLE holds to size its columns
+   public static final int SAMPLE = 200;
+   private static final int BUFFER = 64 * 1024;
+
+   private final Writer _out;
+   private final Format _format;
+   private final long _limit;
+   private long _deadline = 0;
+   private volatile boolean _cancelled = false;
+   private boolean _truncated = false;
+   private long _rows = 0;
+
+   // column names, and how the values are written
+   private String[] _names = null;
+   private boolean[] _numeric;
+   private boolean[] _padded;
+   private boolean[] _boolean;
+   // TABLE: the rows held while sizing, then the one row being written
+   private List<String[]> _sample = null;
+   private String[] _line;
+   private int[] _widths = null;
+
+   /**
+    * Creates a new writer
+    *
+    * @param out where the rows are written; buffered here
+    * @param format how they are rendered
+    * @param limit the most rows written; 0 for all
+    */
+   public ResultWriter(Writer out, Format format, long limit) {
+      this._out = out instanceof BufferedWriter ? out : new BufferedWriter(out, BUFFER);
+      this._format = format;
+      this._limit = limit;
+   }//end ResultWriter
+
+   /**
+    * Creates a new writer of UTF-8 text to a stream, e.g. a Session's out.
+    * finish() flushes the stream but leaves it open.
+    */
+   public ResultWriter(OutputStream out, Format format, long limit) {
+      this(new OutputStreamWriter(out, out instanceof PrintStream ? ((PrintStream) out).charset() : StandardCharsets.UTF_8), format, limit);
+   }
+
+   /**
+    * Returns the format named name, in any case.
+    *
+    * @throws IllegalArgumentException when there is no such format
+    */
+   public static Format format(String name) {
+      try{
+         return Format.valueOf(name.trim().toUpperCase(Locale.ROOT));
+      }catch (IllegalArgumentException e){
+         throw new IllegalArgumentException("Unknown format: " + name.trim() + " (use table, csv or jsonl)");
+      }
+   }//end format
+
+   /**
+    * Stops the query once millis have passed from now.
+    */
+   public void setTimeout(long millis) {
+      this._deadline = millis <= 0 ? 0 : System.nanoTime() + millis * 1000000L;
+   }
+
+   /**
+    * Stops the query at the next row; safe to call from any thread.
+    */
+   public void cancel() {
+      this._cancelled = true;
+   }
+
+   public void row(Row row) throws SQLException {
+      if (this._cancelled || (this._deadline != 0 && (row.getNumber() & 1023) == 0 && System.nanoTime() > this._deadline)){
+         this._cancelled = true;
+         row.stop();
+         return;
+      }
+      if (this._limit > 0 && this._rows == this._limit){
+         this._truncated = true;
+         row.stop();
+         return;
+      }
+      try{
+         if (this._names == null) start(row);
+         int n = this._names.length;
+         switch (this._format){
+            case TEXT:
+               for (int i = 1; i <= n; ++i){
+                  this._out.write(String.valueOf(row.getString(i)));
+                  this._out.write('\t');
+               }
+               this._out.write(System.lineSeparator());
+               break;
+            case TABLE:
+               String[] values = this._sample != null ? new String[n] : this._line;
+               for (int i = 1; i <= n; ++i) values[i - 1] = value(row, i);
+               if (this._sample == null){
+                  line(values, false);
+               }else{
+                  this._sample.add(values);
+                  if (this._sample.size() == SAMPLE) flushSample();
+               }
+               break;
+            case CSV:
+               for (int i = 1; i <= n; ++i){
+                  if (i > 1) this._out.write(',');
+                  String v = value(row, i);
+                  if (v != null) csv(v);
+               }
+               this._out.write('\n');
+               break;
+            case JSONL:
+               this._out.write('{');
+               for (int i = 1; i <= n; ++i){
+                  if (i > 1) this._out.write(',');
+                  json(this._names[i - 1]);
+                  this._out.write(':');
+                  String v = value(row, i);
+                  if (v == null) this._out.write("null");
+                  else if (this._numeric[i - 1]) this._out.write(v);
+                  else json(v);
+               }
+               this._out.write("}\n");
+               break;
+         }
+         ++this._rows;
+      }catch (IOException e){
+         throw new SQLException("Unable to write the result: " + e.getMessage(), e);
+      }
+   }//end row
+
+   /*
+    * Reads the column names and types, and writes the header.
+    */
+   private void start(Row row) throws SQLException, IOException {
+      int n = row.getColumnCount();
+      this._names = new String[n];
+      this._numeric = new boolean[n];
+      this._padded = new boolean[n];
+      this._boolean = new boolean[n];
+      for (int i = 1; i <= n; ++i){
+         this._names[i - 1] = row.getColumnName(i);
+         switch (row.getColumnType(i)){
+            case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+            case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+               this._numeric[i - 1] = true;
+               break;
+            case Types.BIT: case Types.BOOLEAN:
+               this._numeric[i - 1] = this._boolean[i - 1] = true;
+               break;
+            case Types.CHAR:
+               this._padded[i - 1] = true;
+               break;
+         }
+      }
+      switch (this._format){
+         case TEXT:
+            for (String name : this._names){
+               this._out.write(name);
+               this._out.write('\t');
+            }
+            this._out.write(System.lineSeparator());
+            break;
+         case TABLE:
+            this._sample = new ArrayList<String[]>();
+            this._line = new String[n];
+            break;
+         case CSV:
+            for (int i = 0; i < n; ++i){
+               if (i > 0) this._out.write(',');
+               csv(this._names[i]);
+            }
+            this._out.write('\n');
+            break;
+         case JSONL:
+            break;
+      }
+   }//end start
+
+   private String value(Row row, int column) throws SQLException {
+      if (this._boolean[column - 1]){
+         boolean b = row.getBoolean(column);
+         return row.wasNull() ? null : String.valueOf(b);
+      }
+      String v = row.getString(column);
+      if (v == null || !this._padded[column - 1]) return v;
+      int end = v.length();
+      while (end > 0 && v.charAt(end - 1) == ' ') --end;
+      return v.substring(0, end);
+   }//end value
+
+   /*
+    * Sizes the TABLE columns on the rows held, then writes the header and
+    * those rows.
+    */
+   private void flushSample() throws IOException {
+      int n = this._names.length;
+      this._widths = new int[n];
+      for (int i = 0; i < n; ++i) this._widths[i] = this._names[i].length();
+      for (String[] values : this._sample)
+         for (int i = 0; i < n; ++i)
+            if (values[i] != null) this._widths[i] = Math.max(this._widths[i], values[i].length());
+      List<String[]> held = this._sample;
+      this._sample = null;
+      line(this._names, true);
+      StringBuilder rule = new StringBuilder();
+      for (int i = 0; i < n; ++i){
+         if (i > 0) rule.append("-+-");
+         for (int k = 0; k < this._widths[i]; ++k) rule.append('-');
+      }
+      this._out.write(rule.toString());
+      this._out.write(System.lineSeparator());
+      for (String[] values : held) line(values, false);
+   }//end flushSample
+
+   /*
+    * Writes one TABLE line: numbers right-aligned, the rest and the header
+    * left-aligned.  A value wider than its column pushes the rest of its
+    * line right.
+    */
+   private void line(String[] values, boolean header) throws IOException {
+      for (int i = 0; i < this._names.length; ++i){
+         if (i > 0) this._out.write(" | ");
+         String v = values[i] == null ? "" : values[i];
+         int pad = this._widths[i] - v.length();
+         boolean right = this._numeric[i] && !header;
+         if (right) for (int k = 0; k < pad; ++k) this._out.write(' ');
+         this._out.write(v);
+         if (!right && i < this._names.length - 1) for (int k = 0; k < pad; ++k) this._out.write(' ');
+      }
+      this._out.write(System.lineSeparator());
+   }//end line
+
+   private void csv(String v) throws IOException {
+      boolean quote = false;
+      for (int i = 0; i < v.length() && !quote; ++i){
+         char c = v.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote){
+         this._out.write(v);
+         return;
+      }
+      this._out.write('"');
+      this._out.write(v.replace("\"", "\"\""));
+      this._out.write('"');
+   }//end csv
+
+   private void json(String v) throws IOException {
+      this._out.write('"');
+      int plain = 0;
+      while (plain < v.length() && v.charAt(plain) >= 0x20 && v.charAt(plain) != '"' && v.charAt(plain) != '\\') ++plain;
+      this._out.write(v, 0, plain);
+      for (int i = plain; i < v.length(); ++i){
+         char c = v.charAt(i);
+         switch (c){
+            case '"': this._out.write("\\\""); break;
+            case '\\': this._out.write("\\\\"); break;
+            case '\n': this._out.write("\\n"); break;
+            case '\r': this._out.write("\\r"); break;
+            case '\t': this._out.write("\\t"); break;
+            default:
+               if (c < 0x20) this._out.write(String.format("\\u%04x", (int) c));
+               else this._out.write(c);
+         }
+      }
+      this._out.write('"');
+   }//end json
+
+   /**
+    * Writes what is still held and flushes the output.  Call once the query
+    * has returned, also when it failed.
+    *
+    * @throws java.sql.SQLException when the output could not be written
+    */
+   public void finish() throws SQLException {
+      try{
+         if (this._sample != null) flushSample();
+         this._out.flush();
+      }catch (IOException e){
+         throw new SQLException("Unable to write the result: " + e.getMessage(), e);
+      }
+   }//end finish
+
+   /**
+    * Returns the number of rows written.
+    */
+   public long getRows() {
+      return this._rows;
+   }
+
+   /**
+    * Returns true when rows were left out because of the limit.
+    */
+   public boolean isTruncated() {
+      return this._truncated;
+   }
+
+   /**
+    * Returns true when the query was stopped by cancel() or the timeout.
+    */
+   public boolean isCancelled() {
+      return this._cancelled;
+   }
+}//end ResultWriter
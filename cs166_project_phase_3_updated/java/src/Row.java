@@ -0,0 +1,97 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * This class is a read-only view of the current row of a streaming query.
+ * Columns are read with typed getters, so numbers never go through String.
+ * A Row is only valid inside the callback it was passed to.
+ *
+ */
+
+public class Row {
+
+   /**
+    * Called once per row of a streaming query.
+    */
+   public interface Callback {
+      void row(Row row) throws SQLException;
+   }
+
+   /**
+    * Turns the current row into an object of type T.
+    */
+   public interface Mapper<T> {
+      T map(Row row) throws SQLException;
+   }
+
+   private final ResultSet _rs;
+   private ResultSetMetaData _meta = null;
+   private boolean _stopped = false;
+   long _number = 0;
+
+   Row(ResultSet rs) {
+      this._rs = rs;
+   }
+
+   public int getInt(int column) throws SQLException { return this._rs.getInt(column); }
+   public long getLong(int column) throws SQLException { return this._rs.getLong(column); }
+   public double getDouble(int column) throws SQLException { return this._rs.getDouble(column); }
+   public boolean getBoolean(int column) throws SQLException { return this._rs.getBoolean(column); }
+   public Timestamp getTimestamp(int column) throws SQLException { return this._rs.getTimestamp(column); }
+   public String getString(int column) throws SQLException { return this._rs.getString(column); }
+
+   /**
+    * Returns a char(n) column with the padding removed.
+    */
+   public String getTrimmed(int column) throws SQLException {
+      String s = this._rs.getString(column);
+      return s == null ? null : s.trim();
+   }
+
+   /**
+    * Returns true when the last column read was SQL NULL.
+    */
+   public boolean wasNull() throws SQLException { return this._rs.wasNull(); }
+
+   public int getColumnCount() throws SQLException { return meta().getColumnCount(); }
+   public String getColumnName(int column) throws SQLException { return meta().getColumnName(column); }
+
+   /**
+    * Returns the column's type, one of java.sql.Types.
+    */
+   public int getColumnType(int column) throws SQLException { return meta().getColumnType(column); }
+
+   /**
+    * Returns the 1-based number of this row in the result.
+    */
+   public long getNumber() { return this._number; }
+
+   /**
+    * Stops the query after this row: no more rows are passed on.  A driver
+    * reading fetch size rows at a time reads no further; the bundled 7.3
+    * driver has already read the whole result.
+    */
+   public void stop() { this._stopped = true; }
+
+   boolean isStopped() { return this._stopped; }
+
+   private ResultSetMetaData meta() throws SQLException {
+      if(this._meta == null) this._meta = this._rs.getMetaData();
+      return this._meta;
+   }
+}//end Row
@@ -0,0 +1,249 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class maintains the per-store sales aggregates that the popular
+ * products and popular customers reports read:
+ *
+ *    StoreProductSales  (storeID, productName) -> unitsSold
+ *    StoreCustomerSales (storeID, customerID)  -> unitsOrdered, orders
+ *
+ * Every transaction that inserts Orders adds its Delta to the aggregates in
+ * the same transaction, so a snapshot always sees orders and aggregates
+ * agree.  A reconciler thread periodically recomputes each store's
+ * aggregates from Orders and corrects any drift (orders written by other
+ * programs, rows deleted by hand).  Archived orders (OrdersArchive) still
+ * count.
+ *
+ */
+
+public class Sales {
+
+   // every order: the live partitions of Orders and the archived months
+   static final String ALL_ORDERS =
+      "(SELECT storeID, customerID, productName, unitsOrdered FROM Orders UNION ALL " +
+      "SELECT storeID, customerID, productName, unitsOrdered FROM OrdersArchive)";
+
+   private static final String ADD_PRODUCT =
+      "INSERT INTO StoreProductSales (storeID, productName, unitsSold) VALUES (?, ?, ?) " +
+      "ON CONFLICT (storeID, productName) DO UPDATE SET unitsSold = StoreProductSales.unitsSold + EXCLUDED.unitsSold";
+   private static final String ADD_CUSTOMER =
+      "INSERT INTO StoreCustomerSales (storeID, customerID, unitsOrdered, orders) VALUES (?, ?, ?, ?) " +
+      "ON CONFLICT (storeID, customerID) DO UPDATE SET unitsOrdered = StoreCustomerSales.unitsOrdered + EXCLUDED.unitsOrdered, " +
+      "orders = StoreCustomerSales.orders + EXCLUDED.orders";
+
+   // held by reconcile(storeID) until it commits
+   private static final String LOCK_STORE = "SELECT pg_advisory_xact_lock(hashtext('amazon_sales'), ?)";
+   // (productName, units missing) and (customerID, units missing, orders
+   // missing) of a store, where Orders and the aggregate disagree
+   static final String PRODUCT_DRIFT =
+      "SELECT COALESCE(o.productName, a.productName), COALESCE(o.units, 0) - COALESCE(a.unitsSold, 0) " +
+      "FROM (SELECT o.productName, SUM(o.unitsOrdered) AS units FROM " + ALL_ORDERS + " o WHERE o.storeID = ? GROUP BY o.productName) o " +
+      "FULL JOIN (SELECT a.productName, a.unitsSold FROM StoreProductSales a WHERE a.storeID = ?) a ON a.productName = o.productName " +
+      "WHERE COALESCE(o.units, 0) <> COALESCE(a.unitsSold, 0)";
+   static final String CUSTOMER_DRIFT =
+      "SELECT COALESCE(o.customerID, a.customerID), COALESCE(o.units, 0) - COALESCE(a.unitsOrdered, 0), COALESCE(o.orders, 0) - COALESCE(a.orders, 0) " +
+      "FROM (SELECT o.customerID, SUM(o.unitsOrdered) AS units, COUNT(*) AS orders FROM " + ALL_ORDERS + " o WHERE o.storeID = ? GROUP BY o.customerID) o " +
+      "FULL JOIN (SELECT a.customerID, a.unitsOrdered, a.orders FROM StoreCustomerSales a WHERE a.storeID = ?) a ON a.customerID = o.customerID " +
+      "WHERE COALESCE(o.units, 0) <> COALESCE(a.unitsOrdered, 0) OR COALESCE(o.orders, 0) <> COALESCE(a.orders, 0)";
+
+   /**
+    * The sales of one transaction, merged per aggregate row.  write() adds
+    * them in key order, so concurrent transactions lock the rows in the
+    * same order.
+    */
+   public static class Delta {
+      private final TreeMap<String, Object[]> _products = new TreeMap<String, Object[]>();
+      private final TreeMap<Long, int[]> _customers = new TreeMap<Long, int[]>();
+
+      /**
+       * Adds one order.
+       */
+      public Delta add(int storeID, String productName, int customerID, int units) {
+         product(storeID, productName, units);
+         return customer(storeID, customerID, units, 1);
+      }
+
+      /**
+       * Adds units to a product's row; negative units take them away.
+       */
+      public Delta product(int storeID, String productName, int units) {
+         productName = productName.trim();
+         String key = storeID + "\u0000" + productName;
+         Object[] p = this._products.get(key);
+         if (p == null) this._products.put(key, p = new Object[]{ storeID, productName, 0 });
+         p[2] = (Integer) p[2] + units;
+         return this;
+      }//end product
+
+      /**
+       * Adds units and orders to a customer's row.
+       */
+      public Delta customer(int storeID, int customerID, int units, int orders) {
+         long key = ((long) storeID << 32) | (customerID & 0xFFFFFFFFL);
+         int[] c = this._customers.get(key);
+         if (c == null) this._customers.put(key, c = new int[2]);
+         c[0] += units;
+         c[1] += orders;
+         return this;
+      }//end customer
+
+      public boolean isEmpty() { return this._products.isEmpty() && this._customers.isEmpty(); }
+
+      /**
+       * Adds the delta to the aggregates, as part of tx.
+       */
+      public void write(Transaction tx) throws SQLException {
+         Transaction.Batch products = tx.batch(ADD_PRODUCT);
+         for (Object[] p : this._products.values())
+            if ((Integer) p[2] != 0) products.add(p);
+         products.execute();
+         Transaction.Batch customers = tx.batch(ADD_CUSTOMER);
+         for (Map.Entry<Long, int[]> e : this._customers.entrySet()){
+            if (e.getValue()[0] == 0 && e.getValue()[1] == 0) continue;
+            customers.add((int) (e.getKey() >> 32), (int) (long) e.getKey(), e.getValue()[0], e.getValue()[1]);
+         }
+         customers.execute();
+      }//end write
+   }//end Delta
+
+   private final Amazon _esql;
+   private final long _intervalMillis;
+   private final Thread _reconciler;
+   private volatile boolean _running = true;
+
+   // metrics
+   private final AtomicLong _runs = new AtomicLong();
+   private final AtomicLong _corrected = new AtomicLong();
+
+   /**
+    * Creates the aggregates of a database and starts the reconciler
+    *
+    * @param intervalMillis time between reconciliations; 0 never runs one
+    */
+   public Sales(Amazon esql, long intervalMillis) {
+      this._esql = esql;
+      this._intervalMillis = intervalMillis;
+      if (intervalMillis <= 0){
+         this._reconciler = null;
+         return;
+      }
+      this._reconciler = new Thread(new Runnable(){
+         public void run(){ reconcileLoop(); }
+      }, "amazon-sales-reconciler");
+      this._reconciler.setDaemon(true);
+      this._reconciler.start();
+   }//end Sales
+
+   private void reconcileLoop() {
+      while (this._running){
+         try{
+            Thread.sleep(this._intervalMillis);
+            reconcile();
+         }catch (InterruptedException e){
+            // stopping
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to reconcile the sales aggregates: " + e.getMessage());
+         }
+      }
+   }//end reconcileLoop
+
+   /**
+    * Recomputes the aggregates of every store from Orders and corrects the
+    * stored rows.
+    *
+    * @return the number of aggregate rows corrected
+    */
+   public int reconcile() throws SQLException {
+      List<Integer> stores = this._esql.executeQueryAndMap("SELECT s.storeID FROM Store s ORDER BY s.storeID", row -> row.getInt(1));
+      int corrected = 0;
+      for (int storeID : stores){
+         if (!this._running) break;
+         corrected += reconcile(storeID);
+      }
+      this._runs.incrementAndGet();
+      this._corrected.addAndGet(corrected);
+      return corrected;
+   }//end reconcile
+
+   /**
+    * Corrects the aggregates of one store in one transaction.  An advisory
+    * lock on the store lets one reconciler at a time in, so a second one
+    * computes its drift after the first one's correction committed.  Each
+    * drift query reads orders and aggregates in one statement, so one
+    * snapshot, where they disagree exactly by the drift; the drift is then
+    * added as a Delta, which commutes with the deltas of orders placed in
+    * the meantime.
+    *
+    * @return the number of aggregate rows corrected
+    */
+   public int reconcile(final int storeID) throws SQLException {
+      return this._esql.executeInTransaction(tx -> {
+         tx.executeQueryForObject(LOCK_STORE, row -> null, storeID);
+         Delta drift = new Delta();
+         int rows = 0;
+         for (Object[] p : tx.executeQueryAndMap(PRODUCT_DRIFT, row -> new Object[]{ row.getTrimmed(1), row.getInt(2) }, storeID, storeID)){
+            drift.product(storeID, (String) p[0], (Integer) p[1]);
+            rows++;
+         }
+         for (int[] c : tx.executeQueryAndMap(CUSTOMER_DRIFT, row -> new int[]{ row.getInt(1), row.getInt(2), row.getInt(3) }, storeID, storeID)){
+            drift.customer(storeID, c[0], c[1], c[2]);
+            rows++;
+         }
+         if (drift.isEmpty()) return 0;
+         drift.write(tx);
+         tx.executeUpdate("DELETE FROM StoreProductSales WHERE storeID = ? AND unitsSold = 0", storeID);
+         tx.executeUpdate("DELETE FROM StoreCustomerSales WHERE storeID = ? AND orders = 0", storeID);
+         return rows;
+      });
+   }//end reconcile
+
+   /**
+    * Recomputes every aggregate from Orders, e.g. after a bulk load.
+    */
+   public static void rebuild(Amazon esql) throws SQLException {
+      esql.executeInTransaction(tx -> {
+         tx.executeUpdate("DELETE FROM StoreProductSales");
+         tx.executeUpdate("DELETE FROM StoreCustomerSales");
+         tx.executeUpdate("INSERT INTO StoreProductSales (storeID, productName, unitsSold) " +
+                          "SELECT o.storeID, o.productName, SUM(o.unitsOrdered) FROM " + ALL_ORDERS + " o GROUP BY o.storeID, o.productName");
+         tx.executeUpdate("INSERT INTO StoreCustomerSales (storeID, customerID, unitsOrdered, orders) " +
+                          "SELECT o.storeID, o.customerID, SUM(o.unitsOrdered), COUNT(*) FROM " + ALL_ORDERS + " o GROUP BY o.storeID, o.customerID");
+         return null;
+      });
+   }//end rebuild
+
+   /**
+    * Stops the reconciler.
+    */
+   public void close() {
+      this._running = false;
+      if (this._reconciler == null) return;
+      this._reconciler.interrupt();
+      try{
+         this._reconciler.join(10 * 1000L);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+   public String toString() {
+      return String.format("sales: %d reconciliations, %d rows corrected", this._runs.get(), this._corrected.get());
+   }
+}//end Sales
@@ -0,0 +1,91 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.PrintStream;
+
+/**
+ * This class holds the state of one logged in user: who they are and where
+ * they are.  It also carries the streams the menu operations read their
+ * answers from and print their results to, so the same operation can be
+ * driven from the keyboard, from the HTTP server or from a script.
+ *
+ */
+
+public class Session {
+
+   // identity, filled in by LogIn
+   public int userID = -1;
+   public String name = null;
+   public double latitude = 0;
+   public double longitude = 0;
+   public String type = null;
+
+   // what the user may do; loaded at log in, reloaded when invalidated
+   public volatile Principal principal = null;
+
+   // what the last operation run on this session failed with, if it did
+   public Exception error = null;
+
+   // where the operations read input from and write output to
+   public final BufferedReader in;
+   public final PrintStream out;
+   public final PrintStream err;
+
+   /**
+    * Creates a new, logged out session
+    *
+    * @param in the source of the answers to the operation prompts
+    * @param out where prompts and results are printed
+    * @param err where error messages are printed
+    */
+   public Session(BufferedReader in, PrintStream out, PrintStream err) {
+      this.in = in;
+      this.out = out;
+      this.err = err;
+   }//end Session
+
+   /**
+    * Returns a session with the same user but different streams.  Used to
+    * run a single request of a long lived session.
+    */
+   public Session withStreams(BufferedReader in, PrintStream out, PrintStream err) {
+      Session s = new Session(in, out, err);
+      s.userID = this.userID;
+      s.name = this.name;
+      s.latitude = this.latitude;
+      s.longitude = this.longitude;
+      s.type = this.type;
+      s.principal = this.principal;
+      return s;
+   }//end withStreams
+
+   public void login(int userID, String name, double latitude, double longitude, String type) {
+      this.userID = userID;
+      this.name = name;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.type = type;
+   }//end login
+
+   public void logout() {
+      this.userID = -1;
+      this.name = null;
+      this.type = null;
+      this.principal = null;
+   }//end logout
+
+   public boolean isLoggedIn() {
+      return this.userID >= 0;
+   }
+}//end Session
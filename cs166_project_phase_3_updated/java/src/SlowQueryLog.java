@@ -0,0 +1,294 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class logs the statements of Amazon's query methods that take
+ * longer than amazon.slowQuery.millis (default 500; 0 turns the log off).
+ *
+ * Statements are grouped by shape: the SQL with its literals replaced by
+ * ?, so the same query with other values counts as one.  The first
+ * amazon.slowQuery.explain (default 3) slow runs of a shape are written in
+ * full, with their bind values, duration, rows and the plan EXPLAIN gives
+ * for them; later ones are only counted and written as one summary line
+ * per shape a minute.  Bind values are written as their type and length
+ * unless amazon.slowQuery.redact=false.
+ *
+ * The log is amazon.slowQuery.file (default slow_queries.log); when it
+ * grows past amazon.slowQuery.maxBytes (default 10 MB) it is renamed to
+ * .1, the older ones shifted up to amazon.slowQuery.files (default 5).
+ * A writer thread runs the EXPLAINs and writes the file, so a slow query
+ * only costs its caller a queue offer; entries that do not fit in the
+ * queue are dropped and counted.
+ *
+ */
+
+public class SlowQueryLog {
+
+   private static final Pattern STRINGS = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBERS = Pattern.compile("(?<![\\w$])-?\\d+(?:\\.\\d+)?");
+   private static final Pattern SPACES = Pattern.compile("\\s+");
+   private static final long SUMMARY_MILLIS = 60 * 1000L;
+
+   /*
+    * The slow runs of one shape.
+    */
+   private static class Shape {
+      final String sql;
+      final String id;
+      final AtomicLong count = new AtomicLong();
+      // counted since the last summary
+      long pendingCount = 0, pendingNanos = 0, pendingMax = 0;
+
+      Shape(String sql) {
+         this.sql = sql;
+         this.id = String.format("%08x", sql.hashCode());
+      }
+   }//end Shape
+
+   /*
+    * One slow run, for the writer.
+    */
+   private static class Run {
+      final Shape shape;
+      final long occurrence;
+      final String sql;
+      final Object[] params;
+      final long nanos;
+      final long rows;
+      final long time = System.currentTimeMillis();
+
+      Run(Shape shape, long occurrence, String sql, Object[] params, long nanos, long rows) {
+         this.shape = shape;
+         this.occurrence = occurrence;
+         this.sql = sql;
+         this.params = params;
+         this.nanos = nanos;
+         this.rows = rows;
+      }
+   }//end Run
+
+   private final Amazon _esql;
+   private final long _thresholdNanos;
+   private final File _file;
+   private final long _maxBytes;
+   private final int _files;
+   private final int _explain;
+   private final boolean _redact;
+
+   private final ConcurrentHashMap<String, Shape> _shapes = new ConcurrentHashMap<String, Shape>();
+   private final ArrayBlockingQueue<Run> _queue = new ArrayBlockingQueue<Run>(1024);
+   private final Thread _writer;
+   private volatile boolean _running = true;
+
+   // metrics
+   private final AtomicLong _slow = new AtomicLong();
+   private final AtomicLong _dropped = new AtomicLong();
+
+   /**
+    * Creates the log from the amazon.slowQuery.* properties and starts its
+    * writer
+    */
+   public SlowQueryLog(Amazon esql) {
+      this._esql = esql;
+      this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("amazon.slowQuery.millis", 500L));
+      this._file = new File(System.getProperty("amazon.slowQuery.file", "slow_queries.log"));
+      this._maxBytes = Long.getLong("amazon.slowQuery.maxBytes", 10L * 1024 * 1024);
+      this._files = Integer.getInteger("amazon.slowQuery.files", 5);
+      this._explain = Integer.getInteger("amazon.slowQuery.explain", 3);
+      this._redact = !"false".equals(System.getProperty("amazon.slowQuery.redact"));
+      if (this._thresholdNanos <= 0){
+         this._writer = null;
+         return;
+      }
+      this._writer = new Thread(new Runnable(){
+         public void run(){ writeLoop(); }
+      }, "amazon-slow-query-log");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end SlowQueryLog
+
+   /**
+    * Logs a statement that started at start (System.nanoTime) if it took
+    * longer than the threshold.
+    */
+   public void check(String sql, Object[] params, long start, long rows) {
+      if (this._writer == null) return;
+      long nanos = System.nanoTime() - start;
+      if (nanos < this._thresholdNanos) return;
+      this._slow.incrementAndGet();
+      String key = shape(sql);
+      Shape shape = this._shapes.get(key);
+      if (shape == null){
+         Shape created = new Shape(key);
+         shape = this._shapes.putIfAbsent(key, created);
+         if (shape == null) shape = created;
+      }
+      long occurrence = shape.count.incrementAndGet();
+      if (!this._queue.offer(new Run(shape, occurrence, sql, params, nanos, rows)))
+         this._dropped.incrementAndGet();
+   }//end check
+
+   /**
+    * Returns the shape of a statement: literals replaced by ?, white space
+    * collapsed.
+    */
+   public static String shape(String sql) {
+      String s = STRINGS.matcher(sql).replaceAll("?");
+      s = NUMBERS.matcher(s).replaceAll("?");
+      return SPACES.matcher(s).replaceAll(" ").trim();
+   }//end shape
+
+   private String binds(Object[] params) {
+      StringBuilder sb = new StringBuilder("[");
+      for (int i = 0; i < params.length; ++i){
+         if (i > 0) sb.append(", ");
+         Object p = params[i];
+         if (p == null) sb.append("null");
+         else if (!this._redact) sb.append(p instanceof String ? "'" + p + "'" : String.valueOf(p));
+         else if (p instanceof String) sb.append("String(").append(((String) p).length()).append(')');
+         else sb.append(p.getClass().getSimpleName());
+      }
+      return sb.append(']').toString();
+   }//end binds
+
+   /*
+    * EXPLAIN without ANALYZE: the plan the statement got, without running
+    * it again.
+    */
+   private List<String> explain(String sql, Object[] params) {
+      List<String> plan = new ArrayList<String>();
+      ConnectionPool.Pooled c = null;
+      try{
+         c = this._esql.getPool().borrow();
+         // not kept in the statement cache
+         PreparedStatement stmt = c.getConnection().prepareStatement("EXPLAIN " + sql);
+         try{
+            for (int i = 0; i < params.length; ++i)
+               stmt.setObject(i + 1, params[i]);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) plan.add(rs.getString(1));
+            rs.close();
+         }finally{
+            stmt.close();
+         }
+      }catch (SQLException e){
+         plan.add("(no plan: " + e.getMessage() + ")");
+      }finally{
+         this._esql.getPool().release(c);
+      }
+      return plan;
+   }//end explain
+
+   private void writeLoop() {
+      long lastSummary = System.currentTimeMillis();
+      boolean last = false;
+      while (!last){
+         // one more pass after close() for what is still queued
+         last = !this._running;
+         try{
+            List<String> lines = new ArrayList<String>();
+            Run run = this._queue.poll(last ? 0 : 1000, TimeUnit.MILLISECONDS);
+            while (run != null){
+               write(run, lines);
+               run = this._queue.poll();
+            }
+            if (last || System.currentTimeMillis() - lastSummary >= SUMMARY_MILLIS){
+               summarize(lines);
+               lastSummary = System.currentTimeMillis();
+            }
+            if (!lines.isEmpty()) append(lines);
+         }catch (InterruptedException e){
+            // stopping
+         }catch (IOException e){
+            System.err.println("Warning - Unable to write the slow query log: " + e.getMessage());
+         }
+      }
+   }//end writeLoop
+
+   private void write(Run run, List<String> lines) {
+      Shape shape = run.shape;
+      if (run.occurrence > this._explain){
+         shape.pendingCount++;
+         shape.pendingNanos += run.nanos;
+         shape.pendingMax = Math.max(shape.pendingMax, run.nanos);
+         return;
+      }
+      lines.add(String.format("%s slow query %s #%d: %.3f ms, %d rows", new Timestamp(run.time), shape.id, run.occurrence,
+                              run.nanos / 1e6, run.rows));
+      lines.add("   shape: " + shape.sql);
+      lines.add("   binds: " + binds(run.params));
+      for (String p : explain(run.sql, run.params)) lines.add("   | " + p);
+   }//end write
+
+   private void summarize(List<String> lines) {
+      for (Shape shape : this._shapes.values()){
+         if (shape.pendingCount == 0) continue;
+         lines.add(String.format("%s slow query %s: %d more, mean %.3f ms, max %.3f ms, %d in all", new Timestamp(System.currentTimeMillis()),
+                                 shape.id, shape.pendingCount, shape.pendingNanos / 1e6 / shape.pendingCount, shape.pendingMax / 1e6,
+                                 shape.count.get()));
+         shape.pendingCount = shape.pendingNanos = shape.pendingMax = 0;
+      }
+   }//end summarize
+
+   private void append(List<String> lines) throws IOException {
+      if (this._file.length() > this._maxBytes) rotate();
+      PrintWriter out = new PrintWriter(new FileWriter(this._file, true));
+      try{
+         for (String line : lines) out.println(line);
+      }finally{
+         out.close();
+      }
+   }//end append
+
+   private void rotate() {
+      new File(this._file.getPath() + "." + this._files).delete();
+      for (int i = this._files - 1; i >= 1; --i)
+         new File(this._file.getPath() + "." + i).renameTo(new File(this._file.getPath() + "." + (i + 1)));
+      this._file.renameTo(new File(this._file.getPath() + ".1"));
+   }//end rotate
+
+   /**
+    * Stops the writer after it wrote what is queued and the summaries.
+    * Call before the pool closes: the writer may still run EXPLAINs.
+    */
+   public void close() {
+      this._running = false;
+      if (this._writer == null) return;
+      try{
+         this._writer.join(10 * 1000L);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+   public String toString() {
+      return String.format("slow queries: %d over %d ms, %d shapes, %d dropped", this._slow.get(),
+                           TimeUnit.NANOSECONDS.toMillis(this._thresholdNanos), this._shapes.size(), this._dropped.get());
+   }
+}//end SlowQueryLog
@@ -0,0 +1,135 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least-recently-used cache of PreparedStatements
+ * for one physical connection.  Statements are keyed by their SQL shape (the
+ * text with '?' placeholders), so every call with the same shape reuses the
+ * same statement object instead of preparing a new one.
+ *
+ * Whether the server parses and plans a shape once depends on the driver.
+ * The bundled 7.3 driver substitutes the parameters on the client and sends
+ * plain SQL every time, so there the cache saves client work only.  Its
+ * server prepare (PGStatement.setUseServerPrepare) is left off: it declares
+ * Double parameters as "double", which the server rejects, and String ones
+ * as text, which keeps char(n) comparisons off their indexes.  A current
+ * driver prepares a reused statement on the server by itself after a few
+ * executions (prepareThreshold).
+ *
+ */
+
+public class StatementCache {
+
+   // default number of statement shapes kept open per connection
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // connection the cached statements belong to
+   private final Connection _connection;
+   private final int _capacity;
+
+   // access ordered, so the eldest entry is always the least recently used
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   /**
+    * Creates a new statement cache
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, int capacity) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+            if(size() > _capacity){
+               _evictions++;
+               closeQuietly(eldest.getValue());
+               return true;
+            }
+            return false;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for the given SQL shape, preparing it on
+    * the connection the first time the shape is seen.  Parameters left over
+    * from the previous use are cleared.
+    *
+    * @param sql the SQL string with '?' placeholders
+    * @return a statement ready for binding
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public synchronized PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if(stmt != null){
+         this._hits++;
+         stmt.clearParameters();
+         return stmt;
+      }
+      this._misses++;
+      stmt = this._connection.prepareStatement(sql);
+      this._statements.put(sql, stmt);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Drops a statement from the cache, e.g. after it failed in a way that
+    * may have left it unusable.
+    */
+   public synchronized void invalidate(String sql) {
+      closeQuietly(this._statements.remove(sql));
+   }//end invalidate
+
+   public synchronized long getHits() { return this._hits; }
+   public synchronized long getMisses() { return this._misses; }
+   public synchronized long getEvictions() { return this._evictions; }
+   public synchronized int size() { return this._statements.size(); }
+   public int getCapacity() { return this._capacity; }
+
+   /**
+    * Closes every cached statement.  The connection itself is left open.
+    */
+   public synchronized void close() {
+      Iterator<PreparedStatement> it = this._statements.values().iterator();
+      while(it.hasNext()){
+         closeQuietly(it.next());
+      }
+      this._statements.clear();
+   }//end close
+
+   public synchronized String toString() {
+      return String.format("statements: %d/%d cached, %d hits, %d misses, %d evictions",
+                           this._statements.size(), this._capacity, this._hits, this._misses, this._evictions);
+   }
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      if(stmt == null) return;
+      try{
+         stmt.close();
+      }catch(SQLException e){
+         // ignored.
+      }
+   }
+}//end StatementCache
@@ -0,0 +1,298 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps every store's coordinates in memory, bucketed into a
+ * uniform grid, so "stores within r" and "k nearest stores" look at a few
+ * grid cells instead of the whole Store table.
+ *
+ * The index is an immutable snapshot.  refresh() builds a new snapshot from
+ * the database and swaps it in, so readers never block.  Snapshots older
+ * than the refresh interval are rebuilt on the next lookup.
+ *
+ * The same index serves any table of points, e.g. the warehouses, when
+ * created with a query returning (id, latitude, longitude).
+ *
+ */
+
+public class StoreIndex {
+
+   /**
+    * A store found by a lookup and its distance from the query point.
+    */
+   public static class Hit {
+      public final int storeID;
+      public final double latitude;
+      public final double longitude;
+      public final double distance;
+
+      public Hit(int storeID, double latitude, double longitude, double distance) {
+         this.storeID = storeID;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   private static final Comparator<Hit> BY_DISTANCE = new Comparator<Hit>(){
+      public int compare(Hit a, Hit b){
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : Integer.compare(a.storeID, b.storeID);
+      }
+   };
+
+   static Hit hit(int storeID, double latitude, double longitude, double fromLatitude, double fromLongitude) {
+      return new Hit(storeID, latitude, longitude, Amazon.calculateDistance(latitude, longitude, fromLatitude, fromLongitude));
+   }
+
+   /**
+    * Sorts hits nearest first, ties by storeID, as every lookup returns them.
+    */
+   public static void sortByDistance(List<Hit> hits) {
+      Collections.sort(hits, BY_DISTANCE);
+   }
+
+   /*
+    * One immutable build of the index.  Stores are laid out cell by cell:
+    * the stores of cell c are positions cellStart[c] .. cellStart[c+1]-1.
+    */
+   private static class Grid {
+      final int[] ids;
+      final double[] lat;
+      final double[] lon;
+      final double minLat, minLon, cellSize;
+      final int rows, cols;
+      final int[] cellStart;
+      final HashMap<Integer, Integer> byId;
+      final long builtAt = System.currentTimeMillis();
+
+      Grid(int[] ids, double[] lat, double[] lon, double cellSize) {
+         int n = ids.length;
+         double loLat = Double.MAX_VALUE, loLon = Double.MAX_VALUE, hiLat = -Double.MAX_VALUE, hiLon = -Double.MAX_VALUE;
+         for(int i = 0; i < n; ++i){
+            loLat = Math.min(loLat, lat[i]); hiLat = Math.max(hiLat, lat[i]);
+            loLon = Math.min(loLon, lon[i]); hiLon = Math.max(hiLon, lon[i]);
+         }
+         if(n == 0){ loLat = loLon = hiLat = hiLon = 0; }
+         this.minLat = loLat;
+         this.minLon = loLon;
+         // never more than MAX_CELLS_PER_AXIS cells along either axis
+         double extent = Math.max(hiLat - loLat, hiLon - loLon);
+         this.cellSize = Math.max(cellSize, extent / MAX_CELLS_PER_AXIS);
+         this.rows = (int) ((hiLat - loLat) / this.cellSize) + 1;
+         this.cols = (int) ((hiLon - loLon) / this.cellSize) + 1;
+
+         // counting sort of the stores by cell
+         int[] cellOf = new int[n];
+         this.cellStart = new int[this.rows * this.cols + 1];
+         for(int i = 0; i < n; ++i){
+            cellOf[i] = row(lat[i]) * this.cols + col(lon[i]);
+            this.cellStart[cellOf[i] + 1]++;
+         }
+         for(int c = 0; c < this.rows * this.cols; ++c)
+            this.cellStart[c + 1] += this.cellStart[c];
+         int[] next = this.cellStart.clone();
+         this.ids = new int[n];
+         this.lat = new double[n];
+         this.lon = new double[n];
+         this.byId = new HashMap<Integer, Integer>(n * 2);
+         for(int i = 0; i < n; ++i){
+            int p = next[cellOf[i]]++;
+            this.ids[p] = ids[i];
+            this.lat[p] = lat[i];
+            this.lon[p] = lon[i];
+            this.byId.put(ids[i], p);
+         }
+      }
+
+      int row(double latitude) { return clamp((int) Math.floor((latitude - this.minLat) / this.cellSize), this.rows); }
+      int col(double longitude) { return clamp((int) Math.floor((longitude - this.minLon) / this.cellSize), this.cols); }
+
+      static int clamp(int v, int n) { return v < 0 ? 0 : (v >= n ? n - 1 : v); }
+   }//end Grid
+
+   // default grid cell edge; a 30 mile radius then covers about 13x13 cells,
+   // which keeps the scanned square close to the area of the circle
+   public static final double DEFAULT_CELL_SIZE = 5.0;
+   private static final int MAX_CELLS_PER_AXIS = 1024;
+
+   public static final String STORES = "SELECT s.storeID, s.latitude, s.longitude FROM Store s";
+   public static final String WAREHOUSES = "SELECT w.WarehouseID, w.latitude, w.longitude FROM Warehouse w";
+
+   private final String _query;
+   private final double _cellSize;
+   private final long _refreshMillis;
+   private volatile Grid _grid = null;
+   // held while a stale snapshot is rebuilt, so only one caller reloads
+   private final ReentrantLock _refreshing = new ReentrantLock();
+
+   /**
+    * Creates a new, empty index
+    *
+    * @param cellSize the edge length of a grid cell, in coordinate units
+    * @param refreshMillis how old a snapshot may get before it is rebuilt;
+    *        0 or less to rebuild only on refresh()
+    */
+   public StoreIndex(double cellSize, long refreshMillis) {
+      this(STORES, cellSize, refreshMillis);
+   }//end StoreIndex
+
+   /**
+    * Creates a new, empty index of the points query returns
+    *
+    * @param query a query returning the id, latitude and longitude of
+    *        every point
+    */
+   public StoreIndex(String query, double cellSize, long refreshMillis) {
+      this._query = query;
+      this._cellSize = cellSize;
+      this._refreshMillis = refreshMillis;
+   }//end StoreIndex
+
+   /**
+    * Rebuilds the index from the Store table (or the index's query).
+    *
+    * @param esql the database to read the stores from
+    * @throws java.sql.SQLException when the stores cannot be read
+    */
+   public void refresh(Amazon esql) throws SQLException {
+      // streamed straight into growable primitive arrays
+      final int[][] ids = { new int[1024] };
+      final double[][] lat = { new double[1024] };
+      final double[][] lon = { new double[1024] };
+      final int[] n = { 0 };
+      esql.executeQueryStreaming(this._query, row -> {
+         int i = n[0]++;
+         if(i == ids[0].length){
+            ids[0] = Arrays.copyOf(ids[0], i * 2);
+            lat[0] = Arrays.copyOf(lat[0], i * 2);
+            lon[0] = Arrays.copyOf(lon[0], i * 2);
+         }
+         ids[0][i] = row.getInt(1);
+         lat[0][i] = row.getDouble(2);
+         lon[0][i] = row.getDouble(3);
+      });
+      this._grid = new Grid(Arrays.copyOf(ids[0], n[0]), Arrays.copyOf(lat[0], n[0]), Arrays.copyOf(lon[0], n[0]), this._cellSize);
+   }//end refresh
+
+   /**
+    * Drops the current snapshot, so the next lookup reloads the stores.
+    */
+   public void invalidate() {
+      this._grid = null;
+   }
+
+   private Grid grid(Amazon esql) throws SQLException {
+      Grid g = this._grid;
+      if(g == null || (this._refreshMillis > 0 && System.currentTimeMillis() - g.builtAt > this._refreshMillis)){
+         this._refreshing.lock();
+         try{
+            g = this._grid;
+            if(g == null || (this._refreshMillis > 0 && System.currentTimeMillis() - g.builtAt > this._refreshMillis)){
+               refresh(esql);
+               g = this._grid;
+            }
+         }finally{
+            this._refreshing.unlock();
+         }
+      }
+      return g;
+   }//end grid
+
+   /**
+    * Returns the store with the given ID and its distance from the point, or
+    * null when there is no such store.
+    */
+   public Hit find(Amazon esql, int storeID, double latitude, double longitude) throws SQLException {
+      Grid g = grid(esql);
+      Integer p = g.byId.get(storeID);
+      if(p == null) return null;
+      return new Hit(storeID, g.lat[p], g.lon[p], Amazon.calculateDistance(g.lat[p], g.lon[p], latitude, longitude));
+   }//end find
+
+   /**
+    * Returns every store within radius of the point, nearest first.
+    */
+   public List<Hit> withinRadius(Amazon esql, double latitude, double longitude, double radius) throws SQLException {
+      Grid g = grid(esql);
+      List<Hit> hits = new ArrayList<Hit>();
+      int r0 = g.row(latitude - radius), r1 = g.row(latitude + radius);
+      int c0 = g.col(longitude - radius), c1 = g.col(longitude + radius);
+      for(int r = r0; r <= r1; ++r){
+         for(int c = c0; c <= c1; ++c){
+            int cell = r * g.cols + c;
+            for(int p = g.cellStart[cell]; p < g.cellStart[cell + 1]; ++p){
+               double d = Amazon.calculateDistance(g.lat[p], g.lon[p], latitude, longitude);
+               if(d <= radius)
+                  hits.add(new Hit(g.ids[p], g.lat[p], g.lon[p], d));
+            }
+         }
+      }
+      Collections.sort(hits, BY_DISTANCE);
+      return hits;
+   }//end withinRadius
+
+   /**
+    * Returns the k stores nearest to the point, nearest first.  Grid cells
+    * are visited in rings around the point's cell, stopping once the ring is
+    * farther away than the k-th best store found so far.
+    */
+   public List<Hit> nearest(Amazon esql, double latitude, double longitude, int k) throws SQLException {
+      Grid g = grid(esql);
+      // max-heap on distance holding the best k so far
+      PriorityQueue<Hit> best = new PriorityQueue<Hit>(Math.max(1, k), Collections.reverseOrder(BY_DISTANCE));
+      if(k <= 0 || g.ids.length == 0) return new ArrayList<Hit>();
+      int pr = g.row(latitude), pc = g.col(longitude);
+      int maxRing = Math.max(g.rows, g.cols);
+      for(int ring = 0; ring <= maxRing; ++ring){
+         // every point in a cell of this ring is at least this far away
+         double ringDistance = (ring - 1) * g.cellSize;
+         if(best.size() == k && ringDistance > best.peek().distance) break;
+         for(int r = pr - ring; r <= pr + ring; ++r){
+            if(r < 0 || r >= g.rows) continue;
+            for(int c = pc - ring; c <= pc + ring; ++c){
+               if(c < 0 || c >= g.cols) continue;
+               if(Math.abs(r - pr) != ring && Math.abs(c - pc) != ring) continue;
+               int cell = r * g.cols + c;
+               for(int p = g.cellStart[cell]; p < g.cellStart[cell + 1]; ++p){
+                  double d = Amazon.calculateDistance(g.lat[p], g.lon[p], latitude, longitude);
+                  if(best.size() < k){
+                     best.add(new Hit(g.ids[p], g.lat[p], g.lon[p], d));
+                  }else if(d < best.peek().distance){
+                     best.poll();
+                     best.add(new Hit(g.ids[p], g.lat[p], g.lon[p], d));
+                  }
+               }
+            }
+         }
+      }
+      List<Hit> hits = new ArrayList<Hit>(best);
+      Collections.sort(hits, BY_DISTANCE);
+      return hits;
+   }//end nearest
+
+   public int size() {
+      Grid g = this._grid;
+      return g == null ? 0 : g.ids.length;
+   }
+}//end StoreIndex
@@ -0,0 +1,232 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class runs several statements on one pooled connection inside a
+ * single database transaction.  Instances are handed to the Work passed to
+ * Amazon.executeInTransaction, which commits when the work returns and rolls
+ * back when it throws.
+ *
+ */
+
+public class Transaction {
+
+   /**
+    * The statements to run inside one transaction.
+    */
+   public interface Work<T> {
+      T run(Transaction tx) throws SQLException;
+   }
+
+   /**
+    * A batch of executions of one SQL shape.  When every parameter of the
+    * shape is in its one VALUES row, as in an INSERT or an UPDATE ... FROM
+    * (VALUES (...)), the batch is sent as ONE statement listing all of its
+    * rows (at most MAX_PARAMETERS parameters to a statement), so it takes
+    * one round trip whatever the driver.  Such a statement that returns rows
+    * (a SELECT, or RETURNING) must return, first, the position in the batch
+    * (from 0, passed as a parameter) of each row it changed or found: that
+    * is how the counts of an UPDATE are told apart.  Any other shape goes through executeBatch,
+    * which the 7.3 driver sends one execution at a time.
+    */
+   public class Batch {
+      private final String _sql;
+      // the statement before the VALUES row, the row and the rest; null
+      // when the shape is sent through executeBatch
+      private final String _head, _row, _tail;
+      private final int _width;
+      private final boolean _returning;
+      private final List<Object[]> _rows = new ArrayList<Object[]>();
+      private final PreparedStatement _stmt;
+      private int _size = 0;
+
+      Batch(String sql) throws SQLException {
+         this._sql = sql;
+         String upper = sql.toUpperCase();
+         int start = upper.indexOf("VALUES ("), end = -1;
+         if (start >= 0){
+            start += "VALUES ".length();
+            for (int depth = 0, i = start; i < sql.length() && end < 0; ++i){
+               if (sql.charAt(i) == '(') depth++;
+               else if (sql.charAt(i) == ')' && --depth == 0) end = i + 1;
+            }
+         }
+         int width = end < 0 ? 0 : count(sql.substring(start, end));
+         if (width > 0 && width == count(sql)){
+            this._head = sql.substring(0, start);
+            this._row = sql.substring(start, end);
+            this._tail = sql.substring(end);
+            this._stmt = null;
+         }else{
+            this._head = this._row = this._tail = null;
+            this._stmt = _connection.getStatements().prepare(sql);
+         }
+         this._width = width;
+         this._returning = this._tail != null && (upper.startsWith("SELECT ") || this._tail.toUpperCase().contains("RETURNING "));
+      }
+
+      /**
+       * Adds one execution with the given parameters.
+       */
+      public Batch add(Object... params) throws SQLException {
+         if (this._row != null){
+            if (params.length != this._width)
+               throw new SQLException("Expected " + this._width + " parameters, got " + params.length);
+            this._rows.add(params.clone());
+         }else{
+            for (int i = 0; i < params.length; ++i)
+               this._stmt.setObject(i + 1, params[i]);
+            this._stmt.addBatch();
+         }
+         this._size++;
+         return this;
+      }
+
+      public int size() { return this._size; }
+
+      /**
+       * Sends the batch and returns the update count of each execution, or
+       * Statement.SUCCESS_NO_INFO for the rows of a statement that changed
+       * fewer rows than it listed.
+       */
+      public int[] execute() throws SQLException {
+         if (this._size == 0) return new int[0];
+         try{
+            if (this._row == null) return this._stmt.executeBatch();
+            int[] counts = new int[this._size];
+            int rows = Math.max(1, MAX_PARAMETERS / this._width);
+            for (int from = 0; from < this._size; from += rows)
+               send(from, Math.min(this._size, from + rows), counts);
+            return counts;
+         }catch(SQLException e){
+            if (this._stmt != null) this._stmt.clearBatch();
+            _connection.getStatements().invalidate(this._sql);
+            throw e;
+         }finally{
+            this._rows.clear();
+            this._size = 0;
+         }
+      }//end execute
+
+      private void send(int from, int to, int[] counts) throws SQLException {
+         PreparedStatement stmt;
+         if (to - from == 1){
+            stmt = _connection.getStatements().prepare(this._sql);
+         }else{
+            // a shape per row count: not worth a place in the statement cache
+            StringBuilder sql = new StringBuilder(this._head);
+            for (int i = from; i < to; ++i) sql.append(i > from ? ", " : "").append(this._row);
+            stmt = _connection.getConnection().prepareStatement(sql.append(this._tail).toString());
+         }
+         try{
+            int p = 0;
+            for (int i = from; i < to; ++i)
+               for (Object value : this._rows.get(i)) stmt.setObject(++p, value);
+            if (this._returning){
+               ResultSet rs = stmt.executeQuery();
+               try{
+                  while (rs.next()) counts[rs.getInt(1)]++;
+               }finally{
+                  rs.close();
+               }
+            }else{
+               int changed = stmt.executeUpdate();
+               Arrays.fill(counts, from, to, changed == to - from ? 1 : Statement.SUCCESS_NO_INFO);
+            }
+         }finally{
+            if (to - from > 1) stmt.close();
+         }
+      }//end send
+   }//end Batch
+
+   /**
+    * The most parameters a batch puts in one statement; the current protocol
+    * allows 65535.
+    */
+   public static final int MAX_PARAMETERS = 32767;
+
+   private static int count(String sql) {
+      int n = 0;
+      for (int i = 0; i < sql.length(); ++i)
+         if (sql.charAt(i) == '?') n++;
+      return n;
+   }
+
+   private final ConnectionPool.Pooled _connection;
+
+   Transaction(ConnectionPool.Pooled connection) {
+      this._connection = connection;
+   }
+
+   private PreparedStatement prepare(String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = this._connection.getStatements().prepare(sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Runs an INSERT, UPDATE or DELETE and returns the number of rows affected.
+    */
+   public int executeUpdate(String sql, Object... params) throws SQLException {
+      return prepare(sql, params).executeUpdate();
+   }
+
+   /**
+    * Runs a query and returns every row converted by the mapper.
+    */
+   public <T> List<T> executeQueryAndMap(String query, Row.Mapper<T> mapper, Object... params) throws SQLException {
+      List<T> result = new ArrayList<T>();
+      ResultSet rs = prepare(query, params).executeQuery();
+      try{
+         Row row = new Row(rs);
+         while (rs.next()){
+            row._number++;
+            result.add(mapper.map(row));
+         }
+      }finally{
+         rs.close();
+      }
+      return result;
+   }//end executeQueryAndMap
+
+   /**
+    * Runs a query and returns the first row converted by the mapper, or null.
+    */
+   public <T> T executeQueryForObject(String query, Row.Mapper<T> mapper, Object... params) throws SQLException {
+      ResultSet rs = prepare(query, params).executeQuery();
+      try{
+         if (!rs.next()) return null;
+         Row row = new Row(rs);
+         row._number = 1;
+         return mapper.map(row);
+      }finally{
+         rs.close();
+      }
+   }//end executeQueryForObject
+
+   /**
+    * Starts a batch of the given SQL shape.
+    */
+   public Batch batch(String sql) throws SQLException {
+      return new Batch(sql);
+   }
+}//end Transaction
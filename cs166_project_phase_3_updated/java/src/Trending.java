@@ -0,0 +1,300 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class tracks the products with the most units ordered in the last 5
+ * minutes, hour and day, chain-wide and per store, in bounded memory and
+ * without querying the database.  Placed orders are recorded as they
+ * commit.
+ *
+ * Each window is cut into buckets (1/12 of the window chain-wide, 1/6 per
+ * store).  Each bucket is a Space-Saving summary of at most m products: a
+ * product not yet tracked when the summary is full replaces the product
+ * with the fewest units and inherits that count as its error.  A window
+ * query sums the buckets that are still inside the window, so it covers
+ * between (B-1)/B and all of the window for B buckets.
+ *
+ * Error bounds: with N units recorded in a window and m counters per
+ * bucket, every reported count is at most N/m above the true count of the
+ * covered buckets, and a product ordered more than N/m units is never
+ * missed.  Each Item reports the range its true count lies in.  Chain-wide
+ * m is amazon.trending.counters (default 64), per store a quarter of it;
+ * at most amazon.trending.stores (default 1024) stores are tracked, the
+ * least recently ordered from are dropped first.
+ *
+ */
+
+public class Trending {
+
+   public static final String[] WINDOW_NAMES = { "5m", "1h", "24h" };
+   private static final long[] WINDOW_MILLIS = { 5 * 60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L };
+
+   /**
+    * A trending product: its estimated units and the range the true units
+    * lie in.
+    */
+   public static class Item {
+      public final String productName;
+      public final long units;
+      public final long atLeast;
+      public final long atMost;
+
+      Item(String productName, long units, long atLeast, long atMost) {
+         this.productName = productName;
+         this.units = units;
+         this.atLeast = atLeast;
+         this.atMost = atMost;
+      }
+   }//end Item
+
+   /*
+    * A Space-Saving summary of at most m keys.  The slots are ordered by
+    * count in an indexed binary min-heap, so the key to replace is at the
+    * root and an increment only sifts its slot down.
+    */
+   static class Summary {
+      private final String[] _keys;
+      private final long[] _counts;
+      private final long[] _errors;
+      private final int[] _heap;      // heap position -> slot
+      private final int[] _position;  // slot -> heap position
+      private final HashMap<String, Integer> _slots;
+      private int _size = 0;
+      long total = 0;
+
+      Summary(int m) {
+         this._keys = new String[m];
+         this._counts = new long[m];
+         this._errors = new long[m];
+         this._heap = new int[m];
+         this._position = new int[m];
+         this._slots = new HashMap<String, Integer>(m * 2);
+      }
+
+      void add(String key, long units) {
+         this.total += units;
+         Integer slot = this._slots.get(key);
+         if (slot == null){
+            if (this._size < this._keys.length){
+               slot = this._size;
+               this._heap[this._size] = slot;
+               this._position[slot] = this._size++;
+               this._counts[slot] = 0;
+               this._errors[slot] = 0;
+            }else{
+               // replace the key with the smallest count
+               slot = this._heap[0];
+               this._slots.remove(this._keys[slot]);
+               this._errors[slot] = this._counts[slot];
+            }
+            this._keys[slot] = key;
+            this._slots.put(key, slot);
+         }
+         this._counts[slot] += units;
+         siftDown(this._position[slot]);
+      }//end add
+
+      private void siftDown(int i) {
+         while (true){
+            int smallest = i, l = 2 * i + 1, r = l + 1;
+            if (l < this._size && this._counts[this._heap[l]] < this._counts[this._heap[smallest]]) smallest = l;
+            if (r < this._size && this._counts[this._heap[r]] < this._counts[this._heap[smallest]]) smallest = r;
+            if (smallest == i) return;
+            int a = this._heap[i], b = this._heap[smallest];
+            this._heap[i] = b; this._position[b] = i;
+            this._heap[smallest] = a; this._position[a] = smallest;
+            i = smallest;
+         }
+      }//end siftDown
+
+      /*
+       * The most units an untracked key can have had.
+       */
+      long missing() {
+         return this._size < this._keys.length ? 0 : this._counts[this._heap[0]];
+      }
+
+      void clear() {
+         this._slots.clear();
+         this._size = 0;
+         this.total = 0;
+      }
+   }//end Summary
+
+   /*
+    * One sliding window: a ring of summaries, one per bucket of time.
+    */
+   static class Window {
+      private final long _bucketMillis;
+      private final Summary[] _buckets;
+      private final long[] _epochs;
+      private final int _counters;
+
+      Window(long millis, int buckets, int counters) {
+         this._bucketMillis = millis / buckets;
+         this._buckets = new Summary[buckets];
+         this._epochs = new long[buckets];
+         this._counters = counters;
+         Arrays.fill(this._epochs, -1);
+      }
+
+      void add(String key, long units, long now) {
+         long epoch = now / this._bucketMillis;
+         int i = (int) (epoch % this._buckets.length);
+         if (this._epochs[i] != epoch){
+            // summaries are allocated on first use and reused
+            if (this._buckets[i] == null) this._buckets[i] = new Summary(this._counters);
+            else this._buckets[i].clear();
+            this._epochs[i] = epoch;
+         }
+         this._buckets[i].add(key, units);
+      }//end add
+
+      List<Item> top(int k, long now) {
+         long epoch = now / this._bucketMillis;
+         List<Summary> live = new ArrayList<Summary>();
+         for (int i = 0; i < this._buckets.length; ++i)
+            if (this._epochs[i] > epoch - this._buckets.length && this._epochs[i] <= epoch)
+               live.add(this._buckets[i]);
+         // key -> {estimate, error}
+         HashMap<String, long[]> merged = new HashMap<String, long[]>();
+         for (Summary s : live){
+            for (int slot = 0; slot < s._size; ++slot){
+               long[] c = merged.get(s._keys[slot]);
+               if (c == null) merged.put(s._keys[slot], c = new long[2]);
+               c[0] += s._counts[slot];
+               c[1] += s._errors[slot];
+            }
+         }
+         List<Item> items = new ArrayList<Item>(merged.size());
+         for (Map.Entry<String, long[]> e : merged.entrySet()){
+            long atMost = e.getValue()[0];
+            for (Summary s : live)
+               if (!s._slots.containsKey(e.getKey())) atMost += s.missing();
+            items.add(new Item(e.getKey(), e.getValue()[0], e.getValue()[0] - e.getValue()[1], atMost));
+         }
+         Collections.sort(items, (a, b) -> Long.compare(b.units, a.units));
+         return items.size() > k ? new ArrayList<Item>(items.subList(0, k)) : items;
+      }//end top
+   }//end Window
+
+   /*
+    * The windows of one scope, chain-wide or one store.
+    */
+   private static class Scope {
+      final ReentrantLock lock = new ReentrantLock();
+      final Window[] windows = new Window[WINDOW_MILLIS.length];
+
+      Scope(int buckets, int counters) {
+         for (int i = 0; i < this.windows.length; ++i)
+            this.windows[i] = new Window(WINDOW_MILLIS[i], buckets, counters);
+      }
+
+      void add(String key, long units, long now) {
+         this.lock.lock();
+         try{
+            for (Window w : this.windows) w.add(key, units, now);
+         }finally{
+            this.lock.unlock();
+         }
+      }
+
+      List<Item> top(int window, int k, long now) {
+         this.lock.lock();
+         try{
+            return this.windows[window].top(k, now);
+         }finally{
+            this.lock.unlock();
+         }
+      }
+   }//end Scope
+
+   private final int _counters;
+   private final Scope _chain;
+   private final ReentrantLock _storesLock = new ReentrantLock();
+   private final LinkedHashMap<Integer, Scope> _stores;
+
+   /**
+    * Creates a new tracker
+    *
+    * @param counters products tracked per bucket chain-wide
+    * @param maxStores stores tracked at the same time
+    */
+   public Trending(int counters, final int maxStores) {
+      this._counters = counters;
+      this._chain = new Scope(12, counters);
+      this._stores = new LinkedHashMap<Integer, Scope>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<Integer, Scope> eldest){
+            return size() > maxStores;
+         }
+      };
+   }//end Trending
+
+   /**
+    * Records units of a product ordered at a store.
+    */
+   public void record(int storeID, String productName, int units) {
+      long now = System.currentTimeMillis();
+      productName = productName.trim();
+      this._chain.add(productName, units, now);
+      Scope store;
+      this._storesLock.lock();
+      try{
+         store = this._stores.get(storeID);
+         if (store == null){
+            store = new Scope(6, Math.max(4, this._counters / 4));
+            this._stores.put(storeID, store);
+         }
+      }finally{
+         this._storesLock.unlock();
+      }
+      store.add(productName, units, now);
+   }//end record
+
+   /**
+    * Returns the k products with the most units ordered in a window.
+    *
+    * @param storeID the store, or 0 for every store
+    * @param window an index of WINDOW_NAMES
+    */
+   public List<Item> top(int storeID, int window, int k) {
+      long now = System.currentTimeMillis();
+      if (storeID == 0) return this._chain.top(window, k, now);
+      Scope store;
+      this._storesLock.lock();
+      try{
+         store = this._stores.get(storeID);
+      }finally{
+         this._storesLock.unlock();
+      }
+      return store == null ? new ArrayList<Item>() : store.top(window, k, now);
+   }//end top
+
+   /**
+    * Returns the index of a window name, or -1.
+    */
+   public static int window(String name) {
+      for (int i = 0; i < WINDOW_NAMES.length; ++i)
+         if (WINDOW_NAMES[i].equals(name)) return i;
+      return -1;
+   }
+}//end Trending
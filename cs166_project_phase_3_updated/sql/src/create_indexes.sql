@@ -0,0 +1,56 @@
+-- Indexes for the queries the Java client runs.  Each one names the
+-- operations it serves; java/src/PlanCheck.java checks that their plans
+-- use them.  Primary keys already cover lookups by userID, storeID,
+-- (storeID, productName) and warehouseID.
+
+-- bounding box prefilter for "stores within r" (Amazon.storesWithin)
+DROP INDEX IF EXISTS store_lat_long_idx;
+CREATE INDEX store_lat_long_idx ON Store (latitude, longitude);
+
+-- stores a manager manages (Principal)
+DROP INDEX IF EXISTS store_manager_idx;
+CREATE INDEX store_manager_idx ON Store (managerID);
+
+-- log in
+DROP INDEX IF EXISTS users_name_password_idx;
+CREATE INDEX users_name_password_idx ON Users (name, password);
+
+-- a customer's recent orders (viewRecentOrders); also the Users foreign key.
+-- Indexes on Orders and ProductUpdates are created on every monthly
+-- partition, so a lookup limited to recent months reads only theirs.
+DROP INDEX IF EXISTS orders_customer_idx;
+CREATE INDEX orders_customer_idx ON Orders (customerID, orderTime, orderNumber);
+
+-- a store's orders by number (exportStoreData)
+DROP INDEX IF EXISTS orders_store_number_idx;
+CREATE INDEX orders_store_number_idx ON Orders (storeID, orderNumber);
+
+-- a store's recent orders (recentStoreOrders), newest by time; order
+-- numbers are handed out in blocks, so they only break ties
+DROP INDEX IF EXISTS orders_store_time_idx;
+CREATE INDEX orders_store_time_idx ON Orders (storeID, orderTime, orderNumber);
+
+-- units sold per product of a store, read from the index alone
+-- (Sales reconciliation); also the Product foreign key
+DROP INDEX IF EXISTS orders_store_product_idx;
+CREATE INDEX orders_store_product_idx ON Orders (storeID, productName, unitsOrdered);
+
+-- a store's recent product updates (viewRecentUpdates)
+DROP INDEX IF EXISTS productupdates_store_idx;
+CREATE INDEX productupdates_store_idx ON ProductUpdates (storeID, updatedOn, updateNumber);
+
+-- top 5 products and customers of a store, read in index order
+-- (viewPopularProducts, viewPopularCustomers)
+DROP INDEX IF EXISTS storeproductsales_top_idx;
+CREATE INDEX storeproductsales_top_idx ON StoreProductSales (storeID, unitsSold DESC);
+DROP INDEX IF EXISTS storecustomersales_top_idx;
+CREATE INDEX storecustomersales_top_idx ON StoreCustomerSales (storeID, orders DESC);
+
+-- archived months: a time range is found through the block ranges, a
+-- store's archived orders by number (Sales.reconcile, exportStoreData)
+DROP INDEX IF EXISTS ordersarchive_time_idx;
+CREATE INDEX ordersarchive_time_idx ON OrdersArchive USING brin (orderTime);
+DROP INDEX IF EXISTS ordersarchive_store_idx;
+CREATE INDEX ordersarchive_store_idx ON OrdersArchive (storeID, orderNumber);
+DROP INDEX IF EXISTS productupdatesarchive_time_idx;
+CREATE INDEX productupdatesarchive_time_idx ON ProductUpdatesArchive USING brin (updatedOn);
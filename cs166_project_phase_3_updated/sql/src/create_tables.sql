@@ -5,6 +5,11 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS OrdersArchive CASCADE;
+DROP TABLE IF EXISTS ProductUpdatesArchive CASCADE;
+DROP TABLE IF EXISTS StoreProductSales CASCADE;
+DROP TABLE IF EXISTS StoreCustomerSales CASCADE;
+DROP TABLE IF EXISTS ProductLevels CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -48,10 +53,15 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
+
+-- Orders and ProductUpdates are cut into one partition per month of
+-- orderTime / updatedOn (partitions.sql creates them); rows no monthly
+-- partition covers go to the default partition.
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -72,7 +82,56 @@ CREATE TABLE ProductUpdates (
                         	storeID integer NOT NULL,
                        		productName char(30) NOT NULL, 
                             updatedOn timestamp NOT NULL,
-                        	PRIMARY KEY(updateNumber),
+                        	PRIMARY KEY(updateNumber, updatedOn),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+) PARTITION BY RANGE (updatedOn);
+CREATE TABLE ProductUpdates_default PARTITION OF ProductUpdates DEFAULT;
+
+-- Months moved out of Orders and ProductUpdates by amazon_archive_partitions
+-- (partitions.sql): the same columns without keys, read only by the sales
+-- reconciliation and by hand.
+CREATE TABLE OrdersArchive ( orderNumber integer NOT NULL,
+                             customerID integer NOT NULL,
+                             storeID integer NOT NULL,
+                             productName char(30) NOT NULL,
+                             unitsOrdered integer NOT NULL,
+                             orderTime timestamp NOT NULL
+);
+
+CREATE TABLE ProductUpdatesArchive ( updateNumber integer NOT NULL,
+                                     managerID integer NOT NULL,
+                                     storeID integer NOT NULL,
+                                     productName char(30) NOT NULL,
+                                     updatedOn timestamp NOT NULL
+);
+
+-- Per-store sales, derived from Orders and kept up to date by the Java
+-- client (Sales.java).  No foreign keys: they are rebuilt from Orders.
+CREATE TABLE StoreProductSales (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            unitsSold integer NOT NULL,
+                            PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE StoreCustomerSales (
+                            storeID integer NOT NULL,
+                            customerID integer NOT NULL,
+                            unitsOrdered integer NOT NULL,
+                            orders integer NOT NULL,
+                            PRIMARY KEY(storeID, customerID)
+);
+
+-- When a product's stock falls below lowWater, the Java client
+-- (Replenisher.java) requests enough units from the nearest warehouse to
+-- bring it back to restockTo.  Products without a row use the client's
+-- defaults.
+CREATE TABLE ProductLevels (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            lowWater integer NOT NULL,
+                            restockTo integer NOT NULL,
+                            PRIMARY KEY(storeID, productName),
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
@@ -31,3 +31,8 @@ FROM '/class/classes/jmaro005/cs166_project_phase_3_updated/cs166_project_phase_
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;
 
+-- per-store sales aggregates (Sales.rebuild)
+INSERT INTO StoreProductSales (storeID, productName, unitsSold)
+SELECT storeID, productName, SUM(unitsOrdered) FROM Orders GROUP BY storeID, productName;
+INSERT INTO StoreCustomerSales (storeID, customerID, unitsOrdered, orders)
+SELECT storeID, customerID, SUM(unitsOrdered), COUNT(*) FROM Orders GROUP BY storeID, customerID;
@@ -0,0 +1,77 @@
+-- Monthly partitions of Orders (by orderTime) and ProductUpdates (by
+-- updatedOn), and their archival.  The Java client (Partitions.java) keeps
+-- the partitions of the next months created and can archive old ones;
+-- this script creates them for the data already loaded.  Run it after
+-- load_data.sql, and again after loading data by other means.
+
+-- Creates the monthly partitions of parent from the month of since to the
+-- month of upto.  Rows of a new partition's month that went to the default
+-- partition are moved into it.  Returns the number of partitions created.
+CREATE OR REPLACE FUNCTION amazon_create_partitions(parent text, since timestamp, upto timestamp)
+RETURNS integer AS $$
+DECLARE
+   col text;
+   month timestamp := date_trunc('month', since);
+   part text;
+   created integer := 0;
+BEGIN
+   -- one client at a time creates the partitions of a table
+   PERFORM pg_advisory_xact_lock(hashtext('amazon_partitions_' || parent));
+   SELECT a.attname INTO col
+     FROM pg_partitioned_table p JOIN pg_attribute a ON a.attrelid = p.partrelid AND a.attnum = p.partattrs[0]
+    WHERE p.partrelid = parent::regclass;
+   IF col IS NULL THEN
+      RAISE EXCEPTION '% is not partitioned', parent;
+   END IF;
+   WHILE month <= upto LOOP
+      part := parent || '_p' || to_char(month, 'YYYYMM');
+      IF to_regclass(part) IS NULL THEN
+         EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part, parent);
+         EXECUTE format('WITH moved AS (DELETE FROM %I WHERE %I >= $1 AND %I < $2 RETURNING *) INSERT INTO %I SELECT * FROM moved',
+                        parent || '_default', col, col, part)
+            USING month, month + interval '1 month';
+         -- the indexes and foreign keys of parent are added to the partition
+         EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                        parent, part, month, month + interval '1 month');
+         created := created + 1;
+      END IF;
+      month := month + interval '1 month';
+   END LOOP;
+   RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves the monthly partitions of parent that end on or before the month
+-- of before into archive, each in the same transaction as its drop, so a
+-- row is always either live or archived.  Returns the number of rows moved.
+CREATE OR REPLACE FUNCTION amazon_archive_partitions(parent text, archive text, before timestamp)
+RETURNS bigint AS $$
+DECLARE
+   part record;
+   moved bigint := 0;
+   n bigint;
+BEGIN
+   PERFORM pg_advisory_xact_lock(hashtext('amazon_partitions_' || parent));
+   FOR part IN
+      SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+       WHERE i.inhparent = parent::regclass AND c.relname ~ ('^' || parent || '_p[0-9]{6}$')
+         AND to_date(right(c.relname, 6), 'YYYYMM') + interval '1 month' <= date_trunc('month', before)
+       ORDER BY c.relname
+   LOOP
+      EXECUTE format('INSERT INTO %I SELECT * FROM %I', archive, part.relname);
+      GET DIAGNOSTICS n = ROW_COUNT;
+      moved := moved + n;
+      EXECUTE format('DROP TABLE %I', part.relname);
+   END LOOP;
+   RETURN moved;
+END;
+$$ LANGUAGE plpgsql;
+
+-- the months that have data, and this month and the next two; the rows of
+-- the months between stay in the default partitions
+SELECT amazon_create_partitions('orders', m, m) FROM (SELECT DISTINCT date_trunc('month', orderTime) AS m FROM Orders) months;
+SELECT amazon_create_partitions('orders', now()::timestamp, now()::timestamp + interval '2 months');
+SELECT amazon_create_partitions('productupdates', m, m) FROM (SELECT DISTINCT date_trunc('month', updatedOn) AS m FROM ProductUpdates) months;
+SELECT amazon_create_partitions('productupdates', now()::timestamp, now()::timestamp + interval '2 months');
+ANALYZE Orders;
+ANALYZE ProductUpdates;
@@ -1,3 +1,8 @@
+-- orderNumber, updateNumber and requestNumber come from the tables' serial
+-- sequences; the Java client allocates them in blocks (KeyAllocator).  The
+-- triggers that used to number new rows with SELECT COUNT(*) scanned the
+-- whole table on every insert and gave concurrent inserts the same number,
+-- so they are removed.
 DROP TRIGGER IF EXISTS orderNumberTrigger ON Orders;
 DROP TRIGGER IF EXISTS updateNumberTrigger ON ProductUpdates;
 DROP TRIGGER IF EXISTS productSupplyNumberTrigger ON ProductSupplyRequests;
@@ -6,56 +11,7 @@ DROP FUNCTION IF EXISTS orderNumberFunc();
 DROP FUNCTION IF EXISTS updateNumberFunc();
 DROP FUNCTION IF EXISTS productSupplyNumber();
 
-CREATE OR REPLACE LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION orderNumberFunc()
-RETURNS "trigger" AS
-$BODY$
-DECLARE
-	numRows INTEGER;
-BEGIN
-	SELECT COUNT(*) INTO numRows FROM Orders;
-	NEW.orderNumber := numRows + 1;
-	RETURN NEW;
-END;
-$BODY$
-LANGUAGE plpgsql VOLATILE;
-
-CREATE TRIGGER orderNumberTrigger BEFORE INSERT
-ON Orders FOR EACH ROW
-EXECUTE PROCEDURE orderNumberFunc();
-
-CREATE OR REPLACE LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION updateNumberFunc()
-RETURNS "trigger" AS 
-$BODY$
-DECLARE
-	numRows INTEGER;
-BEGIN
-	SELECT COUNT(*) INTO numRows FROM ProductUpdates;
-	NEW.updateNumber := numRows + 1;
-	RETURN NEW;
-END;
-$BODY$
-LANGUAGE plpgsql VOLATILE;
-
-CREATE TRIGGER updateNumberTrigger BEFORE INSERT
-ON ProductUpdates FOR EACH ROW
-EXECUTE PROCEDURE updateNumberFunc();
-
-CREATE OR REPLACE LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION productSupplyNumber()
-RETURNS "trigger" AS
-$BODY$
-DECLARE
-        numRows INTEGER;
-BEGIN
-        SELECT COUNT(*) INTO numRows FROM ProductSupplyRequests;
-        NEW.requestNumber := numRows + 1;
-        RETURN NEW;
-END;
-$BODY$
-LANGUAGE plpgsql VOLATILE;
-
-CREATE TRIGGER ProductSupplyNumberTrigger BEFORE INSERT
-ON ProductSupplyRequests FOR EACH ROW
-EXECUTE PROCEDURE productSupplyNumber();
+-- continue each sequence after the highest key already loaded
+SELECT setval('orders_ordernumber_seq', COALESCE(MAX(orderNumber), 0) + 1, false) FROM Orders;
+SELECT setval('productupdates_updatenumber_seq', COALESCE(MAX(updateNumber), 0) + 1, false) FROM ProductUpdates;
+SELECT setval('productsupplyrequests_requestnumber_seq', COALESCE(MAX(requestNumber), 0) + 1, false) FROM ProductSupplyRequests;